@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2016 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.copybara;
+
+import com.google.copybara.util.ExitCode;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * Sends a request to a Copybara {@link Server} and copies its console output to {@code output}.
+ */
+final class Client {
+
+  private final int port;
+  private final Path tokenDir;
+
+  /**
+   * @param tokenDir directory where the server wrote its token (See {@link Server#tokenFile})
+   */
+  Client(int port, Path tokenDir) {
+    this.port = port;
+    this.tokenDir = tokenDir;
+  }
+
+  /**
+   * Executes the command represented by {@code args} in the server, using the given
+   * environment, and returns its exit code.
+   */
+  ExitCode run(List<String> args, Map<String, String> environment, OutputStream output)
+      throws IOException {
+    Path tokenFile = Server.tokenFile(tokenDir, port);
+    if (!Files.exists(tokenFile)) {
+      throw new IOException("Cannot find " + tokenFile + ". Is the server running?");
+    }
+    byte[] token = Files.readAllBytes(tokenFile);
+    try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+      DataOutputStream out =
+          new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+      Server.writeBytes(out, token);
+      out.writeInt(environment.size());
+      for (Entry<String, String> entry : environment.entrySet()) {
+        Server.writeString(out, entry.getKey());
+        Server.writeString(out, entry.getValue());
+      }
+      out.writeInt(args.size());
+      for (String arg : args) {
+        Server.writeString(out, arg);
+      }
+      out.flush();
+
+      DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+      byte[] buffer = new byte[8192];
+      while (true) {
+        byte type;
+        try {
+          type = in.readByte();
+        } catch (EOFException e) {
+          // The server drops the connections with an invalid token or request
+          throw new IOException("The server closed the connection without an exit code."
+              + " Was the token in " + tokenFile + " rejected?", e);
+        }
+        if (type == Server.EXIT) {
+          output.flush();
+          return exitCode(in.readInt());
+        }
+        if (type != Server.OUTPUT) {
+          throw new IOException("Unexpected message from the server: " + type);
+        }
+        int length = in.readInt();
+        while (length > 0) {
+          int read = in.read(buffer, 0, Math.min(buffer.length, length));
+          if (read < 0) {
+            throw new IOException("Connection to the server closed unexpectedly");
+          }
+          output.write(buffer, 0, read);
+          length -= read;
+        }
+        output.flush();
+      }
+    }
+  }
+
+  private static ExitCode exitCode(int code) throws IOException {
+    for (ExitCode exitCode : ExitCode.values()) {
+      if (exitCode.getCode() == code) {
+        return exitCode;
+      }
+    }
+    throw new IOException("Unknown exit code from the server: " + code);
+  }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2016 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.copybara;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSortedMap;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.copybara.config.ConfigFile;
+import com.google.copybara.config.SkylarkParser;
+import com.google.copybara.config.SkylarkParser.ConfigWithDependencies;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.logging.Logger;
+
+/**
+ * A cache of parsed {@link Config}s for long running Copybara processes.
+ *
+ * <p>A config is reused if it was parsed with the same options and the content of all the files
+ * that it loaded, transitively, did not change. Since the migrations of a {@link Config} keep a
+ * reference to the {@link Options} used for parsing it, the caller is responsible for providing
+ * an options key that identifies them (For example the flags and the environment).
+ */
+public final class ConfigCache {
+
+  private static final Logger logger = Logger.getLogger(ConfigCache.class.getName());
+
+  private final Map<String, CachedConfig> entries;
+
+  /**
+   * Creates a cache that holds at most {@code maxEntries} configs, evicting the least recently
+   * used ones.
+   */
+  public ConfigCache(int maxEntries) {
+    Preconditions.checkArgument(maxEntries > 0, "Invalid max entries: %s", maxEntries);
+    this.entries = Collections.synchronizedMap(
+        new LinkedHashMap<String, CachedConfig>(16, 0.75f, /*accessOrder=*/true) {
+          @Override
+          protected boolean removeEldestEntry(Map.Entry<String, CachedConfig> eldest) {
+            return size() > maxEntries;
+          }
+        });
+  }
+
+  /**
+   * Returns the config for {@code configFile}, reusing a previously parsed one if possible.
+   *
+   * @param optionsKey a key that identifies the {@code options}
+   */
+  public Config load(SkylarkParser parser, ConfigFile<?> configFile, Options options,
+      String optionsKey) throws IOException, ValidationException {
+    String key = optionsKey + "\0" + configFile.path();
+    CachedConfig cached = entries.get(key);
+    if (cached != null && cached.contentHash.equals(contentHash(cached.files))) {
+      logger.info(String.format("Reusing parsed config for '%s'", configFile.path()));
+      return cached.config;
+    }
+    ConfigWithDependencies<?> parsed = parser.getConfigWithTransitiveImports(configFile, options);
+    ImmutableMap<String, ? extends ConfigFile<?>> files = parsed.files;
+    entries.put(key, new CachedConfig(files, contentHash(files), parsed.config));
+    return parsed.config;
+  }
+
+  private static String contentHash(Map<String, ? extends ConfigFile<?>> files)
+      throws IOException {
+    Hasher hasher = Hashing.sha256().newHasher();
+    for (Entry<String, ? extends ConfigFile<?>> file : ImmutableSortedMap.copyOf(files)
+        .entrySet()) {
+      byte[] content = file.getValue().content();
+      hasher.putString(file.getKey(), StandardCharsets.UTF_8).putByte((byte) 0)
+          .putInt(content.length).putBytes(content);
+    }
+    return hasher.hash().toString();
+  }
+
+  private static final class CachedConfig {
+
+    private final ImmutableMap<String, ? extends ConfigFile<?>> files;
+    private final String contentHash;
+    private final Config config;
+
+    private CachedConfig(ImmutableMap<String, ? extends ConfigFile<?>> files, String contentHash,
+        Config config) {
+      this.files = files;
+      this.contentHash = contentHash;
+      this.config = config;
+    }
+  }
+}
@@ -16,16 +16,35 @@
 
 package com.google.copybara;
 
+import com.google.common.base.Joiner;
 import com.google.common.base.Preconditions;
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Iterables;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.copybara.Info.MigrationReference;
 import com.google.copybara.config.ConfigFile;
 import com.google.copybara.config.ConfigValidator;
 import com.google.copybara.config.SkylarkParser;
 import com.google.copybara.util.console.Console;
+import com.google.copybara.util.console.PrefixConsole;
+import com.google.copybara.util.console.ThreadLocalConsole;
 import java.io.IOException;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
 import javax.annotation.Nullable;
 
 /**
@@ -38,22 +57,145 @@ public class Copybara {
 
   private final SkylarkParser skylarkParser;
   private final ConfigValidator configValidator;
+  @Nullable
+  private final ConfigCache configCache;
+  @Nullable
+  private final String configCacheKey;
 
   public Copybara(SkylarkParser skylarkParser) {
-    this.skylarkParser = Preconditions.checkNotNull(skylarkParser);
-    this.configValidator = new ConfigValidator();
+    this(skylarkParser, new ConfigValidator());
   }
 
   public Copybara(SkylarkParser skylarkParser, ConfigValidator configValidator) {
+    this(skylarkParser, configValidator, /*configCache=*/ null, /*configCacheKey=*/ null);
+  }
+
+  private Copybara(SkylarkParser skylarkParser, ConfigValidator configValidator,
+      @Nullable ConfigCache configCache, @Nullable String configCacheKey) {
     this.skylarkParser = Preconditions.checkNotNull(skylarkParser);
     this.configValidator = Preconditions.checkNotNull(configValidator);
+    this.configCache = configCache;
+    this.configCacheKey = configCacheKey;
+  }
+
+  /**
+   * Returns a copy of this instance that reuses the configs in {@code configCache} that were
+   * parsed with the same options, identified by {@code optionsKey}. Used by long running
+   * processes, that create one copy per request.
+   */
+  public Copybara withConfigCache(ConfigCache configCache, String optionsKey) {
+    return new Copybara(skylarkParser, configValidator, Preconditions.checkNotNull(configCache),
+        Preconditions.checkNotNull(optionsKey));
   }
 
   public void run(Options options, ConfigFile<?> configContents, String migrationName,
       Path baseWorkdir, @Nullable String sourceRef)
       throws RepoException, ValidationException, IOException {
     Config config = loadConfig(options, configContents, migrationName);
-    config.getMigration(migrationName).run(baseWorkdir, sourceRef);
+    try (RunScope ignored = RunScope.enter()) {
+      config.getMigration(migrationName).run(baseWorkdir, sourceRef);
+    }
+  }
+
+  /**
+   * Runs all the migrations whose name matches {@code migrationGlob} on a pool of {@code jobs}
+   * threads. The configuration is loaded and validated only once, and each migration runs in its
+   * own sub-directory of {@code baseWorkdir}. All the migrations share the same {@link RunScope}.
+   * If the console of the options is a {@link ThreadLocalConsole}, the output of each migration
+   * is prefixed with its name.
+   *
+   * @return the result of each migration, sorted by name: empty if the migration succeeded or the
+   *     exception that made it fail otherwise.
+   */
+  public ImmutableMap<String, Optional<Exception>> runAll(Options options,
+      ConfigFile<?> configContents, String migrationGlob, Path baseWorkdir, int jobs)
+      throws RepoException, ValidationException, IOException, InterruptedException {
+    Console console = options.get(GeneralOptions.class).console();
+    Config config = parseConfig(options, configContents);
+    ImmutableList<String> names = matchingMigrations(config, migrationGlob);
+    ValidationException.checkCondition(!names.isEmpty(),
+        String.format("No migration matches '%s'. Valid migrations: %s",
+            migrationGlob, config.getMigrations().keySet()));
+    console.progress("Validating configuration");
+    List<String> validationMessages = new ArrayList<>();
+    for (String name : names) {
+      validationMessages.addAll(validateConfig(config, name));
+    }
+    failIfInvalid(console, validationMessages);
+
+    console.info(String.format("Migrating %d workflows: %s", names.size(), names));
+    Map<String, Future<?>> futures = new LinkedHashMap<>();
+    ExecutorService executor = Executors.newFixedThreadPool(Math.min(jobs, names.size()),
+        new ThreadFactoryBuilder().setNameFormat("copybara-migrate-%d").setDaemon(true).build());
+    // The threads of the executor are created by the submits, so they inherit the scope
+    try (RunScope runScope = RunScope.enter()) {
+      for (String name : names) {
+        Migration migration = config.getMigration(name);
+        Path workdir = baseWorkdir.resolve(name);
+        Console jobConsole = new PrefixConsole("[" + name + "] ", currentConsole(console));
+        futures.put(name, executor.submit(() -> {
+          try (ThreadLocalConsole.Scope ignored = enterConsole(console, jobConsole)) {
+            Files.createDirectories(workdir);
+            migration.run(workdir, /*sourceRef=*/ null);
+            return null;
+          }
+        }));
+      }
+      ImmutableMap.Builder<String, Optional<Exception>> result = ImmutableMap.builder();
+      for (Entry<String, Future<?>> entry : futures.entrySet()) {
+        try {
+          entry.getValue().get();
+          result.put(entry.getKey(), Optional.empty());
+        } catch (ExecutionException e) {
+          Throwable cause = e.getCause();
+          if (cause instanceof Error) {
+            throw (Error) cause;
+          }
+          result.put(entry.getKey(), Optional.of((Exception) cause));
+        }
+      }
+      return result.build();
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  private static Console currentConsole(Console console) {
+    return console instanceof ThreadLocalConsole
+        ? ((ThreadLocalConsole) console).current()
+        : console;
+  }
+
+  /**
+   * Sends the output of the current thread to {@code jobConsole} if {@code console}, the one
+   * captured by the migrations, is a {@link ThreadLocalConsole}. Returns null otherwise, in which
+   * case the output is not prefixed.
+   */
+  @Nullable
+  private static ThreadLocalConsole.Scope enterConsole(Console console, Console jobConsole) {
+    return console instanceof ThreadLocalConsole
+        ? ((ThreadLocalConsole) console).enter(jobConsole)
+        : null;
+  }
+
+  /**
+   * Returns the names, sorted, of the migrations in {@code config} that match the glob {@code
+   * migrationGlob}. '*' matches any sequence of characters and '?' any single character.
+   */
+  static ImmutableList<String> matchingMigrations(Config config, String migrationGlob) {
+    StringBuilder regex = new StringBuilder();
+    for (String part : Splitter.on('*').split(migrationGlob)) {
+      if (regex.length() > 0) {
+        regex.append(".*");
+      }
+      regex.append(Joiner.on('.').join(
+          Iterables.transform(Splitter.on('?').split(part), Pattern::quote)));
+    }
+    Pattern pattern = Pattern.compile(regex.toString());
+    return ImmutableList.copyOf(config.getMigrations().keySet().stream()
+        .filter(name -> pattern.matcher(name).matches())
+        .sorted()
+        .collect(Collectors.toList()));
   }
 
   public Config info(Options options, ConfigFile<?> configContents, String migrationName)
@@ -76,7 +218,7 @@ public class Copybara {
     Console console = options.get(GeneralOptions.class).console();
     ArrayList<String> messages = new ArrayList<>();
     try {
-      Config config = skylarkParser.loadConfig(configContent, options);
+      Config config = parseConfig(options, configContent);
       messages.addAll(validateConfig(config, migrationName));
     } catch (ValidationException e) {
       // The validate subcommand should not throw Validation exceptions but log a result
@@ -101,9 +243,21 @@ public class Copybara {
       throws IOException, ValidationException {
     GeneralOptions generalOptions = options.get(GeneralOptions.class);
     Console console = generalOptions.console();
-    Config config = skylarkParser.loadConfig(configContents, options);
+    Config config = parseConfig(options, configContents);
     console.progress("Validating configuration");
-    List<String> validationMessages = validateConfig(config, migrationName);
+    failIfInvalid(console, validateConfig(config, migrationName));
+    return config;
+  }
+
+  private Config parseConfig(Options options, ConfigFile<?> configContents)
+      throws IOException, ValidationException {
+    return configCache == null
+        ? skylarkParser.loadConfig(configContents, options)
+        : configCache.load(skylarkParser, configContents, options, configCacheKey);
+  }
+
+  private static void failIfInvalid(Console console, List<String> validationMessages)
+      throws ValidationException {
     if (!validationMessages.isEmpty()) {
       console.error("Configuration is invalid:");
       for (String validationMessage : validationMessages) {
@@ -111,7 +265,6 @@ public class Copybara {
       }
       throw new ValidationException("Error validating configuration: Configuration is invalid.");
     }
-    return config;
   }
 
   /**
@@ -109,6 +109,18 @@ public interface Destination<R extends Reference> extends ConfigItemDescription
      */
     WriterResult write(TransformResult transformResult, Console console)
         throws ValidationException, RepoException, IOException;
+
+    /**
+     * Writes to the destination any change that {@link #write(TransformResult, Console)} only
+     * stored locally, for example for batching several changes together.
+     *
+     * <p>Called once after the last write of a migration, also if the migration failed, so that
+     * the changes that were successfully written are not lost and any resource held by the writer
+     * is released.
+     *
+     * @throws RepoException if there was an issue with the destination repository
+     */
+    default void flush(Console console) throws ValidationException, RepoException {}
   }
 
   /**
@@ -125,6 +137,14 @@ public interface Destination<R extends Reference> extends ConfigItemDescription
    */
   Writer newWriter(Glob destinationFiles) throws ValidationException;
 
+  /**
+   * Like {@link #newWriter(Glob)}, for a workflow that migrates changes from {@code origin}.
+   * Destinations can use it to reuse data of the origin, like its repository cache.
+   */
+  default Writer newWriter(Glob destinationFiles, Origin<?> origin) throws ValidationException {
+    return newWriter(destinationFiles);
+  }
+
   /**
    * Given a reverse workflow with an {@code Origin} than is of the same type as this destination,
    * the label that that {@link Origin#getLabelName()} would return.
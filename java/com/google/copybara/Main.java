@@ -17,9 +17,13 @@
 package com.google.copybara;
 
 import static com.google.copybara.MainArguments.COPYBARA_SKYLARK_CONFIG_FILENAME;
+import static com.google.copybara.MainArguments.SERVER_PORT_FLAG;
+import static com.google.copybara.MainArguments.SERVER_SUBCOMMAND;
 
 import com.beust.jcommander.JCommander;
+import com.beust.jcommander.ParameterDescription;
 import com.beust.jcommander.ParameterException;
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Joiner;
 import com.google.common.base.Preconditions;
 import com.google.common.base.StandardSystemProperty;
@@ -31,6 +35,7 @@ import com.google.copybara.config.SkylarkParser;
 import com.google.copybara.util.ExitCode;
 import com.google.copybara.util.console.AnsiConsole;
 import com.google.copybara.util.console.Console;
+import com.google.copybara.util.console.ThreadLocalConsole;
 import com.google.copybara.util.console.LogConsole;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
@@ -41,8 +46,12 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Optional;
+import java.util.TreeMap;
 import java.util.function.Supplier;
 import java.util.logging.Level;
 import java.util.logging.LogManager;
@@ -60,6 +69,10 @@ public class Main {
   private static final String COPYBARA_NAMESPACE = "com.google.copybara";
 
   private static final Logger logger = Logger.getLogger(Main.class.getName());
+
+  /** Maximum number of parsed configs kept by a {@link Server}. */
+  private static final int MAX_CACHED_CONFIGS = 100;
+
   /**
    * Represents the environment, typically {@code System.getEnv()}. Injected to make easier tests.
    *
@@ -80,6 +93,17 @@ public class Main {
   }
 
   protected ExitCode run(String[] args) {
+    Integer serverPort;
+    try {
+      serverPort = serverPort(args);
+    } catch (CommandLineException e) {
+      System.err.println("ERROR: " + e.getMessage());
+      return ExitCode.COMMAND_LINE_ERROR;
+    }
+    boolean server = args.length > 0 && args[0].equals(SERVER_SUBCOMMAND);
+    if (serverPort != null && !server) {
+      return runClient(serverPort, args);
+    }
     // We need a console before parsing the args because it could fail with wrong
     // arguments and we need to show the error.
     Console console = getConsole(args);
@@ -97,7 +121,9 @@ public class Main {
 
     console.startupMessage();
 
-    ExitCode exitCode = runInternal(args, console, fs);
+    ExitCode exitCode = server
+        ? runServer(serverPort, console, fs)
+        : runInternal(args, environment, console, fs, /*server=*/null);
     try {
       shutdown(exitCode);
     } catch (InterruptedException e) {
@@ -107,15 +133,142 @@ public class Main {
     return exitCode;
   }
 
+  /**
+   * Returns the value of {@code --server-port}, in the form {@code --server-port=N} or
+   * {@code --server-port N}, or null if not present.
+   */
+  @Nullable
+  private static Integer serverPort(String[] args) throws CommandLineException {
+    for (int i = 0; i < args.length; i++) {
+      String port;
+      if (args[i].startsWith(SERVER_PORT_FLAG + "=")) {
+        port = args[i].substring(SERVER_PORT_FLAG.length() + 1);
+      } else if (args[i].equals(SERVER_PORT_FLAG)) {
+        if (i + 1 == args.length) {
+          throw new CommandLineException(
+              String.format("Expected a value for %s", SERVER_PORT_FLAG));
+        }
+        port = args[i + 1];
+      } else {
+        continue;
+      }
+      try {
+        return Integer.parseInt(port);
+      } catch (NumberFormatException e) {
+        throw new CommandLineException(
+            String.format("Invalid %s value: '%s'", SERVER_PORT_FLAG, port));
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Returns the directory where the server writes the token that its clients need to send.
+   */
+  private Path serverTokenDir(FileSystem fs) throws CommandLineException {
+    String home = environment.get("HOME");
+    if (Strings.isNullOrEmpty(home)) {
+      throw new CommandLineException("HOME is required for using the Copybara server");
+    }
+    return fs.getPath(home, ".copybara", "server");
+  }
+
+  /**
+   * Executes the command in the server listening in {@code port}, forwarding the environment and
+   * printing its console output.
+   */
+  private ExitCode runClient(int port, String[] args) {
+    List<String> clientArgs = new ArrayList<>();
+    for (int i = 0; i < args.length; i++) {
+      if (args[i].equals(SERVER_PORT_FLAG)) {
+        // Skip the value too
+        i++;
+      } else if (!args[i].startsWith(SERVER_PORT_FLAG + "=")) {
+        clientArgs.add(args[i]);
+      }
+    }
+    try {
+      return new Client(port, serverTokenDir(FileSystems.getDefault()))
+          .run(clientArgs, environment, System.err);
+    } catch (CommandLineException e) {
+      System.err.println("ERROR: " + e.getMessage());
+      return ExitCode.COMMAND_LINE_ERROR;
+    } catch (IOException e) {
+      logger.log(Level.SEVERE, "Error executing the command in the server", e);
+      System.err.println(String.format(
+          "ERROR: Cannot execute the command in the Copybara server at port %d: %s", port, e));
+      return ExitCode.ENVIRONMENT_ERROR;
+    }
+  }
+
+  /**
+   * Starts a {@link Server} that executes commands until the process is killed.
+   */
+  private ExitCode runServer(@Nullable Integer port, Console console, FileSystem fs) {
+    if (port == null) {
+      console.error(String.format("Subcommand '%s' requires %s=<port>.",
+          SERVER_SUBCOMMAND, SERVER_PORT_FLAG));
+      return ExitCode.COMMAND_LINE_ERROR;
+    }
+    Path tokenDir;
+    try {
+      tokenDir = serverTokenDir(fs);
+    } catch (CommandLineException e) {
+      console.error(e.getMessage());
+      return ExitCode.COMMAND_LINE_ERROR;
+    }
+    ConfigSupplier configSupplier = newConfigSupplier();
+    ServerState state = new ServerState(configSupplier, newCopybaraTool(configSupplier),
+        new ConfigCache(MAX_CACHED_CONFIGS), new ThreadLocalConsole(console));
+    try (Server server = new Server(port, tokenDir, console)) {
+      server.start();
+      server.serve((args, environment, requestConsole) -> {
+        try (ThreadLocalConsole.Scope ignored = state.console.enter(requestConsole)) {
+          return runInternal(args, environment, state.console, fs, state);
+        }
+      });
+    } catch (IOException e) {
+      handleUnexpectedError(console, "Copybara server failed: " + e.getMessage(), e);
+      return ExitCode.ENVIRONMENT_ERROR;
+    }
+    return ExitCode.SUCCESS;
+  }
+
+  /** State reused by all the requests executed by a {@link Server}. */
+  private static final class ServerState {
+
+    private final ConfigSupplier configSupplier;
+    private final Copybara copybara;
+    private final ConfigCache configCache;
+    /**
+     * The console of all the requests. The cached configs keep the console of the request that
+     * loaded them, so each request sets its own console in this one instead.
+     */
+    private final ThreadLocalConsole console;
+
+    private ServerState(ConfigSupplier configSupplier, Copybara copybara,
+        ConfigCache configCache, ThreadLocalConsole console) {
+      this.configSupplier = configSupplier;
+      this.copybara = copybara;
+      this.configCache = configCache;
+      this.console = console;
+    }
+  }
+
   /**
    * Runs the command and returns the {@link ExitCode}.
    *
    * <p>This method is also responsible for the exception handling/logging.
+   *
+   * @param server if not null, the command is a request of a client of a {@link Server}
    */
-  private ExitCode runInternal(String[] args, Console console, FileSystem fs) {
+  private ExitCode runInternal(String[] args, Map<String, String> environment, Console console,
+      FileSystem fs, @Nullable ServerState server) {
     try {
-      ConfigSupplier configSupplier = newConfigSupplier();
-      Copybara copybara = newCopybaraTool(configSupplier);
+      ConfigSupplier configSupplier =
+          server == null ? newConfigSupplier() : server.configSupplier;
+      Copybara copybara =
+          server == null ? newCopybaraTool(configSupplier) : server.copybara;
 
       final MainArguments mainArgs = new MainArguments();
       GeneralOptions.Args generalOptionsArgs = new GeneralOptions.Args();
@@ -138,6 +291,10 @@ public class Main {
         return ExitCode.SUCCESS;
       }
       mainArgs.parseUnnamedArgs();
+      if (mainArgs.isMultipleWorkflows() && !(console instanceof ThreadLocalConsole)) {
+        // Workflows migrated in parallel print their output with the workflow name as prefix
+        console = new ThreadLocalConsole(console);
+      }
 
       GeneralOptions generalOptions = generalOptionsArgs.init(environment, fs, console);
       allOptions.add(generalOptions);
@@ -145,13 +302,29 @@ public class Main {
 
       initEnvironment(options, mainArgs, jcommander);
 
-      final Path configPath = fs.getPath(mainArgs.getConfigPath());
+      Path configPath = fs.getPath(mainArgs.getConfigPath());
+      if (server != null) {
+        if (environment.containsKey("PWD")) {
+          // Relative to the directory where the client was executed
+          configPath = generalOptions.getCwd().resolve(configPath);
+        }
+        copybara = copybara.withConfigCache(server.configCache,
+            optionsKey(jcommander, args, mainArgs.unnamed, environment));
+      }
       ConfigFile configFile = loadConfig(configPath, generalOptions.getConfigRoot());
       switch (mainArgs.getSubcommand()) {
         case VALIDATE:
           return copybara.validate(options, configFile, mainArgs.getWorkflowName())
               ? ExitCode.SUCCESS : ExitCode.CONFIGURATION_ERROR;
         case MIGRATE:
+          if (mainArgs.isMultipleWorkflows()) {
+            return migrateAll(console, copybara.runAll(
+                options,
+                configFile,
+                mainArgs.getWorkflowName(),
+                mainArgs.getBaseWorkdir(generalOptions, fs),
+                mainArgs.getJobs()));
+          }
           copybara.run(
               options,
               configFile,
@@ -180,6 +353,10 @@ public class Main {
     } catch (IOException e) {
       handleUnexpectedError(console, e.getMessage(), e);
       return ExitCode.ENVIRONMENT_ERROR;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      handleUnexpectedError(console, "Execution was interrupted.", e);
+      return ExitCode.INTERRUPTED;
     } catch (RuntimeException e) {
       // This usually indicates a serious programming error that will require Copybara team
       // intervention. Print stack trace without concern for presentation.
@@ -189,6 +366,99 @@ public class Main {
     }
   }
 
+  /**
+   * Returns a key that identifies the options that are created for {@code args} and {@code
+   * environment}, ignoring the positional arguments (config path, workflow name and source ref).
+   *
+   * <p>The parsed configs keep the environment of the request that parsed them, for example for
+   * the credentials, so all the variables are part of the key.
+   */
+  @VisibleForTesting
+  static String optionsKey(JCommander jcommander, String[] args, List<String> unnamedArgs,
+      Map<String, String> environment) {
+    return Joiner.on('\0').join(flagArgs(jcommander, args, unnamedArgs)) + "\0\0"
+        + Joiner.on('\0').withKeyValueSeparator("=").join(new TreeMap<>(environment));
+  }
+
+  /**
+   * Returns the {@code args} that are flags or flag values, using the arity of the parameters of
+   * {@code jcommander}. Returns all the {@code args} if the positional arguments found don't match
+   * the {@code unnamedArgs} that {@code jcommander} parsed (For example for {@code @file} args).
+   */
+  private static List<String> flagArgs(JCommander jcommander, String[] args,
+      List<String> unnamedArgs) {
+    Map<String, Integer> arities = new HashMap<>();
+    for (ParameterDescription parameter : jcommander.getParameters()) {
+      int arity = parameter.getParameter().arity();
+      if (arity == -1) {
+        Class<?> type = parameter.getParameterized().getType();
+        arity = type == boolean.class || type == Boolean.class ? 0 : 1;
+      }
+      for (String name : parameter.getParameter().names()) {
+        arities.put(name, arity);
+      }
+    }
+    List<String> flags = new ArrayList<>();
+    List<String> positional = new ArrayList<>();
+    for (int i = 0; i < args.length; i++) {
+      Integer arity = arities.get(args[i]);
+      if (arity != null) {
+        // The flag and its values, like '--foo bar'
+        int end = Math.min(args.length, i + 1 + arity);
+        flags.addAll(Arrays.asList(args).subList(i, end));
+        i = end - 1;
+      } else if (args[i].startsWith("-")) {
+        // A flag with its value, like '--foo=bar'
+        flags.add(args[i]);
+      } else {
+        positional.add(args[i]);
+      }
+    }
+    return positional.equals(unnamedArgs) ? flags : Arrays.asList(args);
+  }
+
+  /**
+   * Reports the result of each workflow of a multi-workflow migration and returns the exit code of
+   * the first one that failed, or {@link ExitCode#SUCCESS} if all of them succeeded.
+   */
+  private ExitCode migrateAll(Console console, Map<String, Optional<Exception>> results) {
+    ExitCode exitCode = ExitCode.SUCCESS;
+    for (Entry<String, Optional<Exception>> result : results.entrySet()) {
+      ExitCode workflowExitCode = ExitCode.SUCCESS;
+      if (result.getValue().isPresent()) {
+        Exception e = result.getValue().get();
+        workflowExitCode = exitCodeFor(e);
+        if (workflowExitCode == ExitCode.INTERNAL_ERROR
+            || workflowExitCode == ExitCode.ENVIRONMENT_ERROR) {
+          handleUnexpectedError(console,
+              String.format("Workflow '%s' failed: %s", result.getKey(), e.getMessage()), e);
+        } else {
+          logger.log(Level.INFO, "Workflow '" + result.getKey() + "' failed", e);
+          printCauseChain(console, e);
+        }
+        if (exitCode == ExitCode.SUCCESS) {
+          exitCode = workflowExitCode;
+        }
+      }
+      console.info(String.format("Workflow '%s': %s (%d)",
+          result.getKey(), workflowExitCode, workflowExitCode.getCode()));
+    }
+    return exitCode;
+  }
+
+  private static ExitCode exitCodeFor(Exception e) {
+    if (e instanceof RepoException) {
+      return ExitCode.REPOSITORY_ERROR;
+    } else if (e instanceof ValidationException) {
+      return ExitCode.CONFIGURATION_ERROR;
+    } else if (e instanceof IOException) {
+      return ExitCode.ENVIRONMENT_ERROR;
+    } else if (e instanceof InterruptedException) {
+      return ExitCode.INTERRUPTED;
+    }
+    return ExitCode.INTERNAL_ERROR;
+  }
+
   private ConfigFile loadConfig(Path configPath, @Nullable Path rootCfgPath)
       throws IOException, CommandLineException, ValidationException {
     String fileName = configPath.getFileName().toString();
@@ -42,6 +42,14 @@ import javax.annotation.concurrent.NotThreadSafe;
 public final class MainArguments {
   static final String COPYBARA_SKYLARK_CONFIG_FILENAME = "copy.bara.sky";
 
+  /** First argument used for starting a Copybara {@link Server}. */
+  static final String SERVER_SUBCOMMAND = "server";
+  /**
+   * Port of the {@link Server}. When used without the {@code server} subcommand, the command is
+   * executed in the server listening in that port.
+   */
+  static final String SERVER_PORT_FLAG = "--server-port";
+
   @Parameter(description =
       ""
           + "[subcommand] config_path [workflow_name [source_ref]]\n"
@@ -51,12 +59,15 @@ public final class MainArguments {
           + "Copybara. Available subcommands:\n"
           + "  - migrate: Executes the migration for the given config.\n"
           + "  - validate: Validates that the configuration is correct.\n"
-          + "  - info: Reads the last migrated reference in the origin and destination.\n")
+          + "  - info: Reads the last migrated reference in the origin and destination.\n"
+          + "  - server: Starts a long running server that executes the commands of the clients "
+          + "started with " + SERVER_PORT_FLAG + ". Takes no other argument.\n")
           + "\n"
           + "config_path: Required. Relative or absolute path to the main Copybara config file.\n"
           + "\n"
           + "workflow_name: Optional, defaults to 'default'. The name of the workflow in the "
-          + "configuration to be used by Copybara.\n"
+          + "configuration to be used by Copybara. For 'migrate', it can also be a glob like "
+          + "'import_*' that selects several workflows.\n"
           + "\n"
           + "source_ref: Optional. The reference to be resolved in the origin. Most of the times "
           + "this argument is not needed, as Copybara keeps track of the last migrated reference "
@@ -74,6 +85,22 @@ public final class MainArguments {
       + " will be performed. By default a temporary directory.")
   String baseWorkdir;
 
+  @Parameter(names = "--all", description = "Migrate all the workflows of the configuration. "
+      + "The workflows are run in parallel, each one in its own sub-directory of the work dir.")
+  boolean all;
+
+  @Parameter(names = "--jobs", description = "Maximum number of workflows that are migrated in "
+      + "parallel when using --all or a workflow_name glob.")
+  int jobs = 4;
+
+  // We don't use JCommander for parsing this flag but we do it manually since it is handled
+  // before the rest of the arguments are parsed, in the client or in the server.
+  @SuppressWarnings("unused")
+  @Parameter(names = SERVER_PORT_FLAG, description = "Port of the Copybara server. With the "
+      + "'server' subcommand, the port where the server listens. Otherwise, the command is "
+      + "executed by the server listening in that port and its output is streamed back.")
+  int serverPort;
+
   @Nullable
   private ArgumentHolder argumentHolder;
 
@@ -90,6 +117,18 @@ public final class MainArguments {
     return getArgs().workflowName;
   }
 
+  /**
+   * Returns true if the workflow name selects several workflows, either because {@code --all} was
+   * used or because it is a glob.
+   */
+  public boolean isMultipleWorkflows() {
+    return getArgs().multipleWorkflows;
+  }
+
+  public int getJobs() {
+    return jobs;
+  }
+
   @Nullable
   public String getSourceRef() {
     return getArgs().sourceRef;
@@ -158,11 +197,22 @@ public final class MainArguments {
     String configPath = unnamed.get(argumentId);
     argumentId++;
 
-    String workflowName = "default";
+    String workflowName = all ? "*" : "default";
     if (argumentId < unnamed.size()) {
+      if (all) {
+        throw new CommandLineException("--all cannot be used with a workflow name.");
+      }
       workflowName = unnamed.get(argumentId);
       argumentId++;
     }
+    boolean multipleWorkflows = all || isGlob(workflowName);
+    if (multipleWorkflows && subcommand != Subcommand.MIGRATE) {
+      throw new CommandLineException(
+          "Several workflows can only be selected for subcommand 'migrate'.");
+    }
+    if (jobs < 1) {
+      throw new CommandLineException("--jobs should be greater than zero: " + jobs);
+    }
 
     String sourceRef = null;
     if (argumentId < unnamed.size()) {
@@ -171,10 +221,19 @@ public final class MainArguments {
             String.format(
                 "Too many arguments for subcommand '%s'", subcommand.toString().toLowerCase()));
       }
+      if (multipleWorkflows) {
+        throw new CommandLineException(
+            "A source_ref cannot be used when migrating several workflows.");
+      }
       sourceRef = unnamed.get(argumentId);
       argumentId++; // Just in case we add more arguments
     }
-    argumentHolder = new ArgumentHolder(subcommand, configPath, workflowName, sourceRef);
+    argumentHolder = new ArgumentHolder(
+        subcommand, configPath, workflowName, multipleWorkflows, sourceRef);
+  }
+
+  private static boolean isGlob(String workflowName) {
+    return workflowName.contains("*") || workflowName.contains("?");
   }
 
   private static class ArgumentHolder {
@@ -182,13 +241,15 @@ public final class MainArguments {
     private final Subcommand subcommand;
     private final String configPath;
     @Nullable private final String workflowName;
+    private final boolean multipleWorkflows;
     @Nullable private final String sourceRef;
 
     private ArgumentHolder(Subcommand subcommand, String configPath,
-        @Nullable  String workflowName, @Nullable String sourceRef) {
+        @Nullable  String workflowName, boolean multipleWorkflows, @Nullable String sourceRef) {
       this.subcommand = subcommand;
       this.configPath = configPath;
       this.workflowName = workflowName;
+      this.multipleWorkflows = multipleWorkflows;
       this.sourceRef = sourceRef;
     }
   }
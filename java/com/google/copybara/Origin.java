@@ -17,6 +17,7 @@
 package com.google.copybara;
 
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
 import com.google.copybara.authoring.Authoring;
 import com.google.copybara.util.Glob;
 import com.google.devtools.build.lib.skylarkinterface.SkylarkModule;
@@ -59,6 +60,24 @@ public interface Origin<R extends Reference> extends ConfigItemDescription {
      */
     void checkout(R ref, Path workdir) throws RepoException, ValidationException;
 
+    /**
+     * Checks out into {@code workdir} only the files that are different between {@code fromRef}
+     * and {@code ref}, and returns the paths of all the files that changed, relative to the root of
+     * the repository. Files deleted in {@code ref} are included in the result but are not created
+     * in {@code workdir}.
+     *
+     * <p>Returns null if the reader cannot compute the set of changed files or the result wouldn't
+     * be equivalent to a {@link #checkout}. In that case the caller is expected to do a full
+     * checkout.
+     *
+     * @throws RepoException if any error happens during the checkout or workdir preparation.
+     */
+    @Nullable
+    default ImmutableSet<String> checkoutChangedFiles(R fromRef, R ref, Path workdir)
+        throws RepoException, ValidationException {
+      return null;
+    }
+
     /**
      * Returns the changes that happen in the interval (fromRef, toRef].
      *
@@ -0,0 +1,70 @@
+/*
+ * Copyright (C) 2016 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.copybara;
+
+import com.google.common.base.Preconditions;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Supplier;
+import javax.annotation.Nullable;
+
+/**
+ * State shared by the migrations of one Copybara run, including the ones that run in parallel, and
+ * discarded when the run finishes.
+ *
+ * <p>The objects of a config cannot keep this kind of state because in server mode a config is
+ * reused by several runs. Instead they get it from the scope of the current thread, that is
+ * inherited by the threads that the run starts.
+ */
+public final class RunScope implements AutoCloseable {
+
+  private static final InheritableThreadLocal<RunScope> CURRENT = new InheritableThreadLocal<>();
+
+  private final ConcurrentMap<Class<?>, Object> values = new ConcurrentHashMap<>();
+  @Nullable private final RunScope previous;
+
+  private RunScope(@Nullable RunScope previous) {
+    this.previous = previous;
+  }
+
+  /** Starts a new scope for the current thread, that lasts until it is closed. */
+  public static RunScope enter() {
+    RunScope scope = new RunScope(CURRENT.get());
+    CURRENT.set(scope);
+    return scope;
+  }
+
+  /** Returns the scope of the current thread, or null if it doesn't run a migration. */
+  @Nullable
+  public static RunScope current() {
+    return CURRENT.get();
+  }
+
+  /**
+   * Returns the value of type {@code type} of this scope, creating it with {@code supplier} the
+   * first time.
+   */
+  public <T> T get(Class<T> type, Supplier<T> supplier) {
+    return type.cast(values.computeIfAbsent(type, k -> Preconditions.checkNotNull(supplier.get())));
+  }
+
+  @Override
+  public void close() {
+    Preconditions.checkState(CURRENT.get() == this, "Closing a scope that is not the current one");
+    CURRENT.set(previous);
+  }
+}
@@ -0,0 +1,344 @@
+/*
+ * Copyright (C) 2016 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.copybara;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.BaseEncoding;
+import com.google.copybara.util.ExitCode;
+import com.google.copybara.util.console.AnsiColor;
+import com.google.copybara.util.console.Console;
+import com.google.copybara.util.console.LogConsole;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.EnumSet;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.Nullable;
+
+/**
+ * A long running Copybara process that executes the requests of {@link Client}s.
+ *
+ * <p>The server listens on a loopback port, so that the requests can reuse the Skylark modules
+ * registered, the parsed configs (See {@link ConfigCache}) and the repository caches of the
+ * process. The console output of each request is streamed back to the client. Requests are
+ * executed one at a time.
+ *
+ * <p>Protocol: the client sends the token of the server, its environment and its arguments, and
+ * the server answers with a sequence of {@link #OUTPUT} frames followed by an {@link #EXIT} frame
+ * with the exit code. Strings are sent as their length followed by their UTF-8 bytes.
+ *
+ * <p>Requests are executed with the environment and flags of the client, so only clients of the
+ * same user are accepted: the server writes a random token to a file that only the user can read
+ * (See {@link #tokenFile}) and the clients need to send it.
+ */
+final class Server implements Closeable {
+
+  private static final Logger logger = Logger.getLogger(Server.class.getName());
+
+  static final byte OUTPUT = 0;
+  static final byte EXIT = 1;
+
+  private static final int TOKEN_BYTES = 32;
+  /** Upper bound for the strings received, so that a corrupted length doesn't exhaust memory. */
+  private static final int MAX_STRING_BYTES = 64 << 20;
+  /** Time to wait for the request of a client that connected. */
+  private static final int REQUEST_TIMEOUT_MILLIS = 10_000;
+
+  private final int port;
+  private final Path tokenDir;
+  private final Console console;
+
+  /**
+   * The console passed to every request. Parsed configs keep a reference to the console, so the
+   * same instance is used for all the requests and only its output changes.
+   */
+  private final RequestConsole requestConsole = new RequestConsole();
+
+  @Nullable private ServerSocket serverSocket;
+  @Nullable private Path tokenFile;
+  @Nullable private byte[] token;
+
+  /**
+   * @param port port where the server listens, or zero for any free port
+   * @param tokenDir directory where the file with the token of the server is written
+   */
+  Server(int port, Path tokenDir, Console console) {
+    this.port = port;
+    this.tokenDir = Preconditions.checkNotNull(tokenDir);
+    this.console = Preconditions.checkNotNull(console);
+  }
+
+  /**
+   * Starts listening and writes the token for the clients. Returns the port where the server
+   * listens.
+   */
+  int start() throws IOException {
+    Preconditions.checkState(serverSocket == null, "Server already started");
+    serverSocket = new ServerSocket(port, /*backlog=*/50, InetAddress.getLoopbackAddress());
+    tokenFile = tokenFile(tokenDir, serverSocket.getLocalPort());
+    token = writeToken(tokenFile);
+    console.info("Copybara server listening on port " + serverSocket.getLocalPort());
+    return serverSocket.getLocalPort();
+  }
+
+  /**
+   * Serves requests, executing them with {@code executor}, until the server is closed.
+   */
+  void serve(RequestExecutor executor) throws IOException {
+    Preconditions.checkState(serverSocket != null, "Server not started");
+    while (true) {
+      Socket socket;
+      try {
+        socket = serverSocket.accept();
+      } catch (SocketException e) {
+        if (serverSocket.isClosed()) {
+          return;
+        }
+        throw e;
+      }
+      try {
+        handle(socket, token, executor);
+      } catch (IOException e) {
+        logger.log(Level.WARNING, "Error handling request", e);
+      } finally {
+        socket.close();
+      }
+    }
+  }
+
+  /** Stops listening and deletes the token file. */
+  @Override
+  public void close() throws IOException {
+    if (serverSocket == null) {
+      return;
+    }
+    try {
+      serverSocket.close();
+    } finally {
+      Files.deleteIfExists(tokenFile);
+    }
+  }
+
+  /**
+   * Returns the file in {@code tokenDir} with the token that the clients of the server listening
+   * in {@code port} need to send.
+   */
+  static Path tokenFile(Path tokenDir, int port) {
+    return tokenDir.resolve("server-" + port + ".token");
+  }
+
+  /** Writes a new random token to {@code tokenFile}, readable only by the owner. */
+  private static byte[] writeToken(Path tokenFile) throws IOException {
+    byte[] random = new byte[TOKEN_BYTES];
+    new SecureRandom().nextBytes(random);
+    byte[] token = BaseEncoding.base16().lowerCase().encode(random)
+        .getBytes(StandardCharsets.UTF_8);
+
+    Path dir = tokenFile.getParent();
+    Files.createDirectories(dir);
+    Files.setPosixFilePermissions(dir, EnumSet.of(PosixFilePermission.OWNER_READ,
+        PosixFilePermission.OWNER_WRITE, PosixFilePermission.OWNER_EXECUTE));
+    // The permissions are set when the file is created, so it is never readable by others
+    Path tmp = Files.createTempFile(dir, "server", ".tmp",
+        PosixFilePermissions.asFileAttribute(
+            EnumSet.of(PosixFilePermission.OWNER_READ, PosixFilePermission.OWNER_WRITE)));
+    Files.write(tmp, token);
+    Files.move(tmp, tokenFile, StandardCopyOption.REPLACE_EXISTING,
+        StandardCopyOption.ATOMIC_MOVE);
+    return token;
+  }
+
+  private void handle(Socket socket, byte[] token, RequestExecutor executor) throws IOException {
+    DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+    // Don't let a client that doesn't send its request block the server
+    socket.setSoTimeout(REQUEST_TIMEOUT_MILLIS);
+    if (!MessageDigest.isEqual(token, readBytes(in, TOKEN_BYTES * 2))) {
+      logger.warning("Rejected a connection with an invalid token");
+      return;
+    }
+    ImmutableMap.Builder<String, String> environment = ImmutableMap.builder();
+    for (int i = in.readInt(); i > 0; i--) {
+      environment.put(readString(in), readString(in));
+    }
+    ImmutableList.Builder<String> args = ImmutableList.builder();
+    for (int i = in.readInt(); i > 0; i--) {
+      args.add(readString(in));
+    }
+    socket.setSoTimeout(0);
+    String[] argsArray = args.build().toArray(new String[0]);
+    logger.info("Request: " + String.join(" ", argsArray));
+
+    PrintStream output = new PrintStream(new FrameOutputStream(out), /*autoFlush=*/true, "UTF-8");
+    ExitCode exitCode;
+    requestConsole.setOutput(LogConsole.writeOnlyConsole(output));
+    try {
+      exitCode = executor.execute(argsArray, environment.build(), requestConsole);
+    } finally {
+      requestConsole.setOutput(null);
+    }
+    output.flush();
+    out.writeByte(EXIT);
+    out.writeInt(exitCode.getCode());
+    out.flush();
+  }
+
+  /** Writes {@code bytes} preceded by their length. */
+  static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  /** Writes the UTF-8 bytes of {@code value} preceded by their length. */
+  static void writeString(DataOutputStream out, String value) throws IOException {
+    writeBytes(out, value.getBytes(StandardCharsets.UTF_8));
+  }
+
+  private static byte[] readBytes(DataInputStream in, int maxLength) throws IOException {
+    int length = in.readInt();
+    if (length < 0 || length > maxLength) {
+      throw new IOException("Invalid length: " + length);
+    }
+    byte[] bytes = new byte[length];
+    in.readFully(bytes);
+    return bytes;
+  }
+
+  private static String readString(DataInputStream in) throws IOException {
+    return new String(readBytes(in, MAX_STRING_BYTES), StandardCharsets.UTF_8);
+  }
+
+  /** Executes one request of a client. */
+  interface RequestExecutor {
+
+    ExitCode execute(String[] args, ImmutableMap<String, String> environment, Console console);
+  }
+
+  /** Writes everything written to it as {@link #OUTPUT} frames. */
+  private static final class FrameOutputStream extends OutputStream {
+
+    private final DataOutputStream out;
+
+    private FrameOutputStream(DataOutputStream out) {
+      this.out = out;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      out.writeByte(OUTPUT);
+      out.writeInt(len);
+      out.write(b, off, len);
+    }
+
+    @Override
+    public void flush() throws IOException {
+      out.flush();
+    }
+  }
+
+  /**
+   * A {@link Console} that writes to the log and to the console of the request being executed, if
+   * any.
+   */
+  private static final class RequestConsole implements Console {
+
+    @Nullable
+    private volatile Console output;
+
+    private void setOutput(@Nullable Console output) {
+      this.output = output;
+    }
+
+    @Override
+    public void startupMessage() {
+      // Already shown by the server
+    }
+
+    @Override
+    public void error(String message) {
+      logger.severe(message);
+      Console current = output;
+      if (current != null) {
+        current.error(message);
+      }
+    }
+
+    @Override
+    public void warn(String message) {
+      logger.warning(message);
+      Console current = output;
+      if (current != null) {
+        current.warn(message);
+      }
+    }
+
+    @Override
+    public void info(String message) {
+      logger.info(message);
+      Console current = output;
+      if (current != null) {
+        current.info(message);
+      }
+    }
+
+    @Override
+    public void progress(String progress) {
+      logger.info(progress);
+      Console current = output;
+      if (current != null) {
+        current.progress(progress);
+      }
+    }
+
+    @Override
+    public boolean promptConfirmation(String message) throws IOException {
+      // Clients cannot answer prompts
+      warn(message + " Cannot ask for confirmation in server mode, assuming 'no'.");
+      return false;
+    }
+
+    @Override
+    public String colorize(AnsiColor ansiColor, String message) {
+      return message;
+    }
+  }
+}
@@ -21,6 +21,7 @@ import com.google.common.base.Preconditions;
 import com.google.common.base.Splitter;
 import com.google.copybara.authoring.Author;
 import com.google.copybara.util.Glob;
+import com.google.copybara.util.Metrics;
 import com.google.copybara.util.console.Console;
 import com.google.devtools.build.lib.skylarkinterface.Param;
 import com.google.devtools.build.lib.skylarkinterface.SkylarkCallable;
@@ -60,14 +61,24 @@ public final class TransformWork {
   private final Changes changes;
   private final Console console;
   private final MigrationInfo migrationInfo;
+  private final boolean incremental;
+  private final Metrics metrics;
 
   public TransformWork(Path checkoutDir, Metadata metadata, Changes changes, Console console,
       MigrationInfo migrationInfo) {
+    this(checkoutDir, metadata, changes, console, migrationInfo, /*incremental=*/ false,
+        Metrics.NONE);
+  }
+
+  private TransformWork(Path checkoutDir, Metadata metadata, Changes changes, Console console,
+      MigrationInfo migrationInfo, boolean incremental, Metrics metrics) {
     this.checkoutDir = Preconditions.checkNotNull(checkoutDir);
     this.metadata = Preconditions.checkNotNull(metadata);
     this.changes = changes;
     this.console = console;
     this.migrationInfo = migrationInfo;
+    this.incremental = incremental;
+    this.metrics = Preconditions.checkNotNull(metrics);
   }
 
   /**
@@ -254,12 +265,45 @@ public final class TransformWork {
     return migrationInfo;
   }
 
+  /**
+   * Returns true if the checkout dir only contains some of the files being migrated, for example
+   * the files that changed since the previously migrated change or the ones that are not in the
+   * transformation cache. Only {@link Transformation#isFileLocal() file-local} transformations are
+   * run in this mode, and they shouldn't treat not matching any file as an error.
+   */
+  public boolean isIncremental() {
+    return incremental;
+  }
+
+  /**
+   * Metrics where transformations record the time and resources they use.
+   */
+  public Metrics getMetrics() {
+    return metrics;
+  }
+
   /**
    * Create a clone of the transform work but use a different console.
    */
   public TransformWork withConsole(Console newConsole) {
     return new TransformWork(checkoutDir, metadata, changes,
-        Preconditions.checkNotNull(newConsole), migrationInfo);
+        Preconditions.checkNotNull(newConsole), migrationInfo, incremental, metrics);
+  }
+
+  /**
+   * Create a clone of the transform work that is marked as {@link #isIncremental() incremental}.
+   */
+  public TransformWork asIncremental() {
+    return new TransformWork(checkoutDir, metadata, changes, console, migrationInfo,
+        /*incremental=*/ true, metrics);
+  }
+
+  /**
+   * Create a clone of the transform work that records metrics in {@code metrics}.
+   */
+  public TransformWork withMetrics(Metrics metrics) {
+    return new TransformWork(checkoutDir, metadata, changes, console, migrationInfo,
+        incremental, metrics);
   }
 
   /**
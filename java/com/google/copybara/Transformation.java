@@ -19,6 +19,7 @@ package com.google.copybara;
 import com.google.devtools.build.lib.skylarkinterface.SkylarkModule;
 import com.google.devtools.build.lib.skylarkinterface.SkylarkModuleCategory;
 import java.io.IOException;
+import javax.annotation.Nullable;
 
 /**
  * Interface implemented by all source code transformations.
@@ -49,4 +50,28 @@ public interface Transformation {
    * {@link #toString()} method but something more user friendly.
    */
   String describe();
+
+  /**
+   * Returns true if the result of transforming a file only depends on the content and path of
+   * that file, and the transformation never creates, moves or deletes files.
+   *
+   * <p>File-local transformations can be applied to just the files that changed since the
+   * previous migrated change, instead of to the whole checkout.
+   */
+  default boolean isFileLocal() {
+    return false;
+  }
+
+  /**
+   * Returns a string that identifies how this transformation changes the files, or null if it
+   * cannot be computed. Two transformations with the same fingerprint must produce the same output
+   * for the same file, and the fingerprint must be stable across runs. Transformations that never
+   * modify files return the empty string.
+   *
+   * <p>Together with {@link #isFileLocal()}, this allows caching the transformed version of a file.
+   */
+  @Nullable
+  default String fingerprint() {
+    return null;
+  }
 }
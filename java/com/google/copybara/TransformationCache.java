@@ -0,0 +1,236 @@
+/*
+ * Copyright (C) 2016 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.copybara;
+
+import com.google.common.base.Preconditions;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.copybara.util.FileUtil;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A persistent cache of the output of file-local transformations for individual files.
+ *
+ * <p>Entries are keyed by the fingerprint of the transformation, the path of the file and the
+ * SHA-1 of its content before the transformation, and contain the content of the file after the
+ * transformation. Entries that were not used in {@code maxAge}, or the least recently used ones if
+ * the cache grows over {@code maxSizeBytes}, are deleted the first time the cache is used in a
+ * run.
+ */
+final class TransformationCache {
+
+  private static final Logger logger = Logger.getLogger(TransformationCache.class.getName());
+
+  /** Bump if the format of the keys or the entries changes. */
+  private static final String FORMAT_VERSION = "1";
+
+  private final Path cacheDir;
+  private final long maxSizeBytes;
+  private final Duration maxAge;
+  private boolean evicted = false;
+
+  TransformationCache(Path cacheDir, long maxSizeBytes, Duration maxAge) {
+    this.cacheDir = Preconditions.checkNotNull(cacheDir);
+    this.maxSizeBytes = maxSizeBytes;
+    this.maxAge = Preconditions.checkNotNull(maxAge);
+  }
+
+  /**
+   * Replaces the files in {@code checkoutDir} that have a cached transformed version with that
+   * version, and moves them to {@code cachedDir} so that they are not transformed again.
+   *
+   * @return a lookup that can be used to store the files that were not found once they are
+   *     transformed, and to move the cached files back to {@code checkoutDir}.
+   */
+  Lookup lookup(String fingerprint, Path checkoutDir, Path cachedDir) throws IOException {
+    evictOnce();
+    Map<String, String> misses = new HashMap<>();
+    List<String> hits = new ArrayList<>();
+    Files.walkFileTree(checkoutDir, new SimpleFileVisitor<Path>() {
+      @Override
+      public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+        if (!attrs.isRegularFile()) {
+          // Symlinks are always transformed
+          return FileVisitResult.CONTINUE;
+        }
+        String path = checkoutDir.relativize(file).toString();
+        String key = key(fingerprint, path, file);
+        Path entry = entryPath(key);
+        if (!Files.isRegularFile(entry)) {
+          misses.put(path, key);
+          return FileVisitResult.CONTINUE;
+        }
+        Path cached = cachedDir.resolve(path);
+        Files.createDirectories(cached.getParent());
+        Files.move(file, cached);
+        // Overwrite the content keeping the original file attributes (e.g. executable bit)
+        FileUtil.writeFile(cached, Files.readAllBytes(entry));
+        touch(entry);
+        hits.add(path);
+        return FileVisitResult.CONTINUE;
+      }
+    });
+    logger.log(Level.INFO, String.format(
+        "Transformation cache: %d hits, %d misses", hits.size(), misses.size()));
+    return new Lookup(checkoutDir, cachedDir, misses, hits);
+  }
+
+  /**
+   * The files of a checkout dir split between the ones found in the cache and the ones that need
+   * to be transformed.
+   */
+  final class Lookup {
+
+    private final Path checkoutDir;
+    private final Path cachedDir;
+    private final Map<String, String> misses;
+    private final List<String> hits;
+
+    private Lookup(Path checkoutDir, Path cachedDir, Map<String, String> misses,
+        List<String> hits) {
+      this.checkoutDir = checkoutDir;
+      this.cachedDir = cachedDir;
+      this.misses = misses;
+      this.hits = hits;
+    }
+
+    /** True if at least one file was found in the cache and moved out of the checkout dir. */
+    boolean hasHits() {
+      return !hits.isEmpty();
+    }
+
+    /**
+     * Stores the transformed version of the files that were not found in the cache and moves back
+     * the cached files to the checkout dir.
+     */
+    void storeAndRestore() throws IOException {
+      for (Entry<String, String> miss : misses.entrySet()) {
+        Path file = checkoutDir.resolve(miss.getKey());
+        if (Files.isRegularFile(file, LinkOption.NOFOLLOW_LINKS)) {
+          store(miss.getValue(), file);
+        }
+      }
+      for (String hit : hits) {
+        Files.move(cachedDir.resolve(hit), checkoutDir.resolve(hit));
+      }
+    }
+  }
+
+  private String key(String fingerprint, String path, Path file) throws IOException {
+    Hasher hasher = Hashing.sha256().newHasher()
+        .putString(FORMAT_VERSION, StandardCharsets.UTF_8).putByte((byte) 0)
+        .putString(fingerprint, StandardCharsets.UTF_8).putByte((byte) 0)
+        .putString(path, StandardCharsets.UTF_8).putByte((byte) 0);
+    // Same as the git blob id of the content
+    byte[] content = Files.readAllBytes(file);
+    hasher.putBytes(Hashing.sha1().newHasher()
+        .putString("blob " + content.length, StandardCharsets.UTF_8).putByte((byte) 0)
+        .putBytes(content)
+        .hash().asBytes());
+    return hasher.hash().toString();
+  }
+
+  private Path entryPath(String key) {
+    return cacheDir.resolve(key.substring(0, 2)).resolve(key.substring(2));
+  }
+
+  private void store(String key, Path file) throws IOException {
+    Path entry = entryPath(key);
+    Files.createDirectories(entry.getParent());
+    // Write to a temporary file first so that concurrent runs never read partial entries.
+    Path tmp = Files.createTempFile(entry.getParent(), "tmp", ".entry");
+    try {
+      Files.copy(file, tmp, StandardCopyOption.REPLACE_EXISTING);
+      Files.move(tmp, entry, StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      Files.deleteIfExists(tmp);
+    }
+  }
+
+  private static void touch(Path entry) throws IOException {
+    Files.setLastModifiedTime(entry, FileTime.from(Instant.now()));
+  }
+
+  /**
+   * Deletes the entries not used in {@code maxAge} and then the least recently used ones until
+   * the cache is smaller than {@code maxSizeBytes}.
+   */
+  private void evictOnce() throws IOException {
+    if (evicted) {
+      return;
+    }
+    evicted = true;
+    if (!Files.isDirectory(cacheDir)) {
+      return;
+    }
+    List<Path> entries = new ArrayList<>();
+    Map<Path, BasicFileAttributes> attributes = new HashMap<>();
+    Files.walkFileTree(cacheDir, new SimpleFileVisitor<Path>() {
+      @Override
+      public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+        entries.add(file);
+        attributes.put(file, attrs);
+        return FileVisitResult.CONTINUE;
+      }
+    });
+    entries.sort(Comparator.comparing((Path e) -> attributes.get(e).lastModifiedTime()));
+
+    FileTime oldest = FileTime.from(Instant.now().minus(maxAge));
+    long totalSize = 0;
+    for (Path entry : entries) {
+      totalSize += attributes.get(entry).size();
+    }
+    int deleted = 0;
+    for (Path entry : entries) {
+      BasicFileAttributes attrs = attributes.get(entry);
+      if (attrs.lastModifiedTime().compareTo(oldest) >= 0 && totalSize <= maxSizeBytes) {
+        break;
+      }
+      try {
+        Files.delete(entry);
+      } catch (NoSuchFileException e) {
+        // Deleted by a concurrent run
+      }
+      totalSize -= attrs.size();
+      deleted++;
+    }
+    if (deleted > 0) {
+      logger.log(Level.INFO, String.format("Transformation cache: evicted %d entries", deleted));
+    }
+  }
+}
@@ -20,8 +20,11 @@ import static com.google.copybara.util.FileUtil.CopySymlinkStrategy.FAIL_OUTSIDE
 
 import com.google.common.base.MoreObjects;
 import com.google.common.base.Preconditions;
+import com.google.common.base.Strings;
 import com.google.common.base.Verify;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.ImmutableSetMultimap;
 import com.google.copybara.Destination.Writer;
 import com.google.copybara.Destination.WriterResult;
@@ -30,12 +33,19 @@ import com.google.copybara.authoring.Authoring;
 import com.google.copybara.util.DiffUtil;
 import com.google.copybara.util.FileUtil;
 import com.google.copybara.util.Glob;
+import com.google.copybara.util.Metrics;
 import com.google.copybara.util.console.Console;
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
+import java.nio.file.LinkOption;
 import java.nio.file.Path;
 import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.annotation.Nullable;
@@ -50,6 +60,9 @@ public final class Workflow<O extends Reference, D extends Reference> implements
 
   private final Logger logger = Logger.getLogger(this.getClass().getName());
 
+  /** Number of non-reversible files to include in the diff shown to the user. */
+  private static final int MAX_NON_REVERSIBLE_FILES_REPORTED = 20;
+
   private final String name;
   private final Origin<O> origin;
   private final Destination<D> destination;
@@ -162,19 +175,62 @@ public final class Workflow<O extends Reference, D extends Reference> implements
   @Override
   public void run(Path workdir, @Nullable String sourceRef)
       throws RepoException, IOException, ValidationException {
+    Metrics metrics = workflowOptions.metricsDir == null ? Metrics.NONE : Metrics.create();
+    try (Metrics.Phase ignored = metrics.start("migration")) {
+      run(workdir, sourceRef, metrics);
+    } finally {
+      writeMetrics(metrics);
+    }
+  }
+
+  private void run(Path workdir, @Nullable String sourceRef, Metrics metrics)
+      throws RepoException, IOException, ValidationException {
     console.progress("Cleaning working directory");
     FileUtil.deleteAllFilesRecursively(workdir);
 
     console.progress("Getting last revision: "
         + "Resolving " + ((sourceRef == null) ? "origin reference" : sourceRef));
-    O resolvedRef = origin.resolve(sourceRef);
+    O resolvedRef;
+    try (Metrics.Phase ignored = metrics.start("resolve")) {
+      resolvedRef = origin.resolve(sourceRef);
+    }
     logger.log(Level.INFO,
         String.format(
             "Running Copybara for workflow '%s' and ref '%s': %s",
             name, resolvedRef.asString(),
             this.toString()));
     logger.log(Level.INFO, String.format("Using working directory : %s", workdir));
-    mode.run(new RunHelper<>(workdir, resolvedRef));
+    RunHelper<O> runHelper = new RunHelper<>(workdir, resolvedRef, metrics);
+    try {
+      mode.run(runHelper);
+    } catch (Throwable e) {
+      // Changes written before the failure must end up in the destination, and the writer needs
+      // to release what it holds (For example the lock of a work tree), whatever the failure.
+      try {
+        runHelper.flush();
+      } catch (RepoException | ValidationException | RuntimeException flushException) {
+        e.addSuppressed(flushException);
+      }
+      throw e;
+    }
+    runHelper.flush();
+  }
+
+  private void writeMetrics(Metrics metrics) {
+    if (workflowOptions.metricsDir == null) {
+      return;
+    }
+    Path file = Paths.get(workflowOptions.metricsDir).resolve(
+        name + (workflowOptions.metricsFormat == Metrics.Format.JSON ? ".json" : ".prom"));
+    try {
+      metrics.write(file, workflowOptions.metricsFormat,
+          ImmutableMap.of("workflow", name, "mode", mode.toString()));
+      logger.log(Level.INFO, "Metrics written to " + file);
+    } catch (IOException e) {
+      // The report is best effort and should not make the migration fail
+      logger.log(Level.WARNING, "Cannot write metrics to " + file, e);
+      console.warn("Cannot write metrics to " + file + ": " + e.getMessage());
+    }
   }
 
   @Override
@@ -205,23 +261,43 @@ public final class Workflow<O extends Reference, D extends Reference> implements
     private final Origin.Reader<O> originReader;
     @Nullable private final Destination.Reader<D> destinationReader;
     private final Destination.Writer writer;
+    /**
+     * Last reference transformed in each workdir, used for updating the workdir incrementally.
+     * Only populated if {@link #isIncrementalCheckoutEnabled()}.
+     */
+    private final Map<Path, O> lastTransformedRef = new ConcurrentHashMap<>();
+    @Nullable private final TransformationCache transformationCache;
+    private final Metrics metrics;
 
     /**
      * @param workdir working directory to use for the transformations
      * @param resolvedRef reference to migrate
+     * @param metrics where to record the time and resources used by each phase
      */
-    RunHelper(Path workdir, M resolvedRef) throws ValidationException, RepoException {
+    RunHelper(Path workdir, M resolvedRef, Metrics metrics)
+        throws ValidationException, RepoException {
       this.workdir = Preconditions.checkNotNull(workdir);
       this.resolvedRef = Preconditions.checkNotNull(resolvedRef);
+      this.metrics = Preconditions.checkNotNull(metrics);
       this.originReader = origin.newReader(originFiles, authoring);
-      this.writer = destination.newWriter(destinationFiles);
+      this.writer = destination.newWriter(destinationFiles, origin);
       this.destinationReader = destination.newReader(destinationFiles);
+      this.transformationCache = workflowOptions.transformationCacheDir == null
+          ? null
+          : new TransformationCache(Paths.get(workflowOptions.transformationCacheDir),
+              workflowOptions.transformationCacheMaxSizeMb * 1024 * 1024,
+              Duration.ofDays(workflowOptions.transformationCacheMaxAgeDays));
     }
 
     M getResolvedRef() {
       return resolvedRef;
     }
 
+    /** Base working directory for the migration. */
+    Path getWorkdir() {
+      return workdir;
+    }
+
     /**
      * Authoring configuration.
      */
@@ -281,69 +357,259 @@ public final class Workflow<O extends Reference, D extends Reference> implements
     WriterResult migrate(O ref, Console processConsole,
         Metadata metadata, Changes changes, @Nullable String destinationBaseline)
         throws IOException, RepoException, ValidationException {
-      processConsole.progress("Cleaning working directory");
-      FileUtil.deleteAllFilesRecursively(workdir);
+      return write(
+          transform(workdir, ref, processConsole, metadata, changes, destinationBaseline),
+          processConsole);
+    }
+
+    /**
+     * Checks out {@code ref} from the origin into {@code workdir}, deletes excluded files and
+     * transforms the code, but doesn't write anything to the destination.
+     *
+     * <p>This is the first half of {@link #migrate}. It only uses the origin reader and the
+     * transformations, so it can run for the next change while {@link #write} is still
+     * writing the previous one, as long as a different {@code workdir} is used.
+     *
+     * @param workdir working directory for this change. Any content in it is deleted.
+     * @return the result to be passed to {@link #write}
+     */
+    TransformResult transform(Path workdir, O ref, Console processConsole, Metadata metadata,
+        Changes changes, @Nullable String destinationBaseline)
+        throws IOException, RepoException, ValidationException {
       Path checkoutDir = workdir.resolve("checkout");
-      Files.createDirectories(checkoutDir);
+      // Forget the previous ref first so that a failure leaves the workdir to be fully recreated.
+      O previousRef = lastTransformedRef.remove(workdir);
+      TransformWork transformWork = null;
+      if (previousRef != null && destinationBaseline == null && isIncrementalCheckoutEnabled()) {
+        transformWork = transformChangedFiles(workdir, checkoutDir, previousRef, ref,
+            processConsole, metadata, changes);
+      }
+      if (transformWork == null) {
+        transformWork = transformAllFiles(workdir, checkoutDir, ref, processConsole, metadata,
+            changes);
+      }
+      if (isIncrementalCheckoutEnabled()) {
+        lastTransformedRef.put(workdir, ref);
+      }
 
-      processConsole.progress("Checking out the change");
-      originReader.checkout(ref, checkoutDir);
+      // TODO(malcon): Pass metadata object instead
+      TransformResult transformResult = new TransformResult(checkoutDir, ref,
+          transformWork.getAuthor(),
+          transformWork.getMessage());
+      if (destinationBaseline != null) {
+        transformResult = transformResult.withBaseline(destinationBaseline);
+      }
 
-      // Remove excluded origin files.
-      PathMatcher originFiles = Workflow.this.originFiles.relativeTo(checkoutDir);
-      processConsole.progress("Removing excluded origin files");
+      return transformResult.withAskForConfirmation(askForConfirmation);
+    }
 
-      int deleted = FileUtil.deleteFilesRecursively(
-          checkoutDir, FileUtil.notPathMatcher(originFiles));
-      if (deleted != 0) {
-        processConsole.info(
-            String.format("Removed %d files from workdir that do not match origin_files", deleted));
+    private TransformWork transformAllFiles(Path workdir, Path checkoutDir, O ref,
+        Console processConsole, Metadata metadata, Changes changes)
+        throws IOException, RepoException, ValidationException {
+      try (Metrics.Phase ignored = metrics.start("checkout")) {
+        processConsole.progress("Cleaning working directory");
+        FileUtil.deleteAllFilesRecursively(workdir);
+        Files.createDirectories(checkoutDir);
+
+        processConsole.progress("Checking out the change");
+        originReader.checkout(ref, checkoutDir);
+
+        // Remove excluded origin files.
+        PathMatcher originFiles = Workflow.this.originFiles.relativeTo(checkoutDir);
+        processConsole.progress("Removing excluded origin files");
+
+        int deleted = FileUtil.deleteFilesRecursively(
+            checkoutDir, FileUtil.notPathMatcher(originFiles));
+        if (deleted != 0) {
+          processConsole.info(String.format(
+              "Removed %d files from workdir that do not match origin_files", deleted));
+        }
       }
 
-      Path originCopy = null;
-      if (reverseTransformForCheck != null) {
-        console.progress("Making a copy or the workdir for reverse checking");
-        originCopy = Files.createDirectories(workdir.resolve("origin"));
-        FileUtil.copyFilesRecursively(checkoutDir, originCopy, FAIL_OUTSIDE_SYMLINKS);
+      Path originCopy = copyForReverseCheck(workdir, checkoutDir);
+
+      TransformWork transformWork = runTransformation(workdir,
+          new TransformWork(checkoutDir, metadata, changes, console,
+              new MigrationInfo(origin.getLabelName(), getDestinationReader())));
+
+      checkReversible(workdir, checkoutDir, originCopy, metadata, changes,
+          /*incremental=*/ false);
+      return transformWork;
+    }
+
+    /**
+     * Updates {@code checkoutDir}, that contains the transformed files of {@code previousRef}, so
+     * that it contains the transformed files of {@code ref}. Only the files that changed between
+     * the two references are checked out and transformed.
+     *
+     * <p>Returns null if the origin cannot compute the changed files. In that case the workdir
+     * needs to be fully recreated.
+     */
+    @Nullable
+    private TransformWork transformChangedFiles(Path workdir, Path checkoutDir, O previousRef,
+        O ref, Console processConsole, Metadata metadata, Changes changes)
+        throws IOException, RepoException, ValidationException {
+      Path deltaDir = workdir.resolve("delta");
+      cleanDirectory(deltaDir);
+
+      processConsole.progress("Checking out the files changed since " + previousRef.asString());
+      ImmutableSet<String> changedFiles;
+      try (Metrics.Phase phase = metrics.start("checkout_changed_files")) {
+        changedFiles = originReader.checkoutChangedFiles(previousRef, ref, deltaDir);
+        if (changedFiles == null) {
+          logger.log(Level.INFO, "Origin cannot check out only the changed files since "
+              + previousRef.asString() + ". Checking out the full change");
+          return null;
+        }
+        phase.addFiles(changedFiles.size());
+        FileUtil.deleteFilesRecursively(
+            deltaDir, FileUtil.notPathMatcher(originFiles.relativeTo(deltaDir)));
       }
 
-      TransformWork transformWork = new TransformWork(checkoutDir, metadata, changes, console,
-          new MigrationInfo(origin.getLabelName(), getDestinationReader()));
-      transformation.transform(transformWork);
+      Path originCopy = copyForReverseCheck(workdir, deltaDir);
 
-      if (reverseTransformForCheck != null) {
-        console.progress("Checking that the transformations can be reverted");
-        Path reverse = Files.createDirectories(workdir.resolve("reverse"));
-        FileUtil.copyFilesRecursively(checkoutDir, reverse, FAIL_OUTSIDE_SYMLINKS);
-        reverseTransformForCheck.transform(
+      TransformWork transformWork = runTransformation(workdir,
+          new TransformWork(deltaDir, metadata, changes, console,
+              new MigrationInfo(origin.getLabelName(), getDestinationReader())).asIncremental());
 
-            new TransformWork(reverse, metadata, changes, console,
-                new MigrationInfo(/*originLabel=*/ null, (ChangeVisitable) null))
-        );
-        String diff = new String(DiffUtil.diff(originCopy, reverse, verbose),
-            StandardCharsets.UTF_8);
-        if (!diff.trim().isEmpty()) {
-          console.error("Non reversible transformations:\n"
-              + DiffUtil.colorize(console, diff));
-          throw new ValidationException(String.format("Workflow '%s' is not reversible", name));
+      checkReversible(workdir, deltaDir, originCopy, metadata, changes, /*incremental=*/ true);
+
+      processConsole.progress(
+          String.format("Updating %d changed files in the workdir", changedFiles.size()));
+      // Delete first all the old versions, so that a file can replace a directory and vice versa.
+      for (String changedFile : changedFiles) {
+        Path file = checkoutDir.resolve(changedFile);
+        if (!Files.isDirectory(file, LinkOption.NOFOLLOW_LINKS)) {
+          Files.deleteIfExists(file);
         }
+        deleteEmptyParents(checkoutDir, file);
       }
+      for (String changedFile : changedFiles) {
+        Path source = deltaDir.resolve(changedFile);
+        if (Files.exists(source, LinkOption.NOFOLLOW_LINKS)) {
+          Path target = checkoutDir.resolve(changedFile);
+          Files.createDirectories(target.getParent());
+          Files.move(source, target);
+        }
+      }
+      return transformWork;
+    }
 
-      // TODO(malcon): Pass metadata object instead
-      TransformResult transformResult = new TransformResult(checkoutDir, ref,
-          transformWork.getAuthor(),
-          transformWork.getMessage());
-      if (destinationBaseline != null) {
-        transformResult = transformResult.withBaseline(destinationBaseline);
+    /**
+     * Runs the transformation over {@code work}. If the transformation cache is enabled, files that
+     * were already transformed are taken from the cache instead.
+     *
+     * @return the work that was passed to the transformation, that might be a copy of
+     *     {@code work}
+     */
+    private TransformWork runTransformation(Path workdir, TransformWork work)
+        throws IOException, ValidationException {
+      try (Metrics.Phase ignored = metrics.start("transform")) {
+        return runTransformationWithCache(workdir, work.withMetrics(metrics));
+      }
+    }
+
+    private TransformWork runTransformationWithCache(Path workdir, TransformWork work)
+        throws IOException, ValidationException {
+      String fingerprint = transformationCache != null && transformation.isFileLocal()
+          ? transformation.fingerprint()
+          : null;
+      if (Strings.isNullOrEmpty(fingerprint)) {
+        transformation.transform(work);
+        return work;
+      }
+      Path cachedDir = workdir.resolve("cached");
+      cleanDirectory(cachedDir);
+      TransformationCache.Lookup lookup =
+          transformationCache.lookup(fingerprint, work.getCheckoutDir(), cachedDir);
+      if (lookup.hasHits() && !work.isIncremental()) {
+        work = work.asIncremental();
+      }
+      transformation.transform(work);
+      lookup.storeAndRestore();
+      return work;
+    }
+
+    private boolean isIncrementalCheckoutEnabled() {
+      return workflowOptions.iterativeIncremental
+          && transformation.isFileLocal()
+          && (reverseTransformForCheck == null || reverseTransformForCheck.isFileLocal());
+    }
+
+    /**
+     * Copies {@code checkoutDir} so that it can be compared after the reverse transformation is
+     * applied. Returns null if the workflow doesn't check reversibility.
+     */
+    @Nullable
+    private Path copyForReverseCheck(Path workdir, Path checkoutDir) throws IOException {
+      if (reverseTransformForCheck == null) {
+        return null;
+      }
+      console.progress("Making a copy or the workdir for reverse checking");
+      try (Metrics.Phase ignored = metrics.start("reversible_check")) {
+        Path originCopy = workdir.resolve("origin");
+        cleanDirectory(originCopy);
+        FileUtil.snapshotFilesRecursively(checkoutDir, originCopy, FAIL_OUTSIDE_SYMLINKS);
+        return originCopy;
+      }
+    }
+
+    private void checkReversible(Path workdir, Path checkoutDir, @Nullable Path originCopy,
+        Metadata metadata, Changes changes, boolean incremental)
+        throws IOException, ValidationException {
+      if (reverseTransformForCheck == null) {
+        return;
       }
+      console.progress("Checking that the transformations can be reverted");
+      try (Metrics.Phase ignored = metrics.start("reversible_check")) {
+        reverseAndCompare(workdir, checkoutDir, originCopy, metadata, changes, incremental);
+      }
+    }
 
-      transformResult = transformResult.withAskForConfirmation(askForConfirmation);
+    private void reverseAndCompare(Path workdir, Path checkoutDir, Path originCopy,
+        Metadata metadata, Changes changes, boolean incremental)
+        throws IOException, ValidationException {
+      Path reverse = workdir.resolve("reverse");
+      cleanDirectory(reverse);
+      FileUtil.snapshotFilesRecursively(checkoutDir, reverse, FAIL_OUTSIDE_SYMLINKS);
+      TransformWork reverseWork = new TransformWork(reverse, metadata, changes, console,
+          new MigrationInfo(/*originLabel=*/ null, (ChangeVisitable) null));
+      reverseTransformForCheck.transform(incremental ? reverseWork.asIncremental() : reverseWork);
+      ImmutableList<String> nonReversible =
+          DiffUtil.differentFiles(originCopy, reverse, MAX_NON_REVERSIBLE_FILES_REPORTED);
+      if (!nonReversible.isEmpty()) {
+        String diff = new String(DiffUtil.diffFiles(originCopy, reverse, nonReversible, verbose),
+            StandardCharsets.UTF_8);
+        console.error("Non reversible transformations:\n"
+            + DiffUtil.colorize(console, diff));
+        throw new ValidationException(String.format("Workflow '%s' is not reversible", name));
+      }
+    }
 
-      WriterResult result = writer.write(transformResult, processConsole);
+    /**
+     * Writes a result computed by {@link #transform} to the destination. Results must be written
+     * in the same order as the changes are meant to appear in the destination.
+     */
+    WriterResult write(TransformResult transformResult, Console processConsole)
+        throws IOException, RepoException, ValidationException {
+      WriterResult result;
+      try (Metrics.Phase ignored = metrics.start("write")) {
+        result = writer.write(transformResult, processConsole);
+      }
       Verify.verifyNotNull(result, "Destination returned a null result.");
       return result;
     }
 
+    /**
+     * Writes to the destination the changes that the writer kept locally. See
+     * {@link Writer#flush(Console)}.
+     */
+    void flush() throws RepoException, ValidationException {
+      try (Metrics.Phase ignored = metrics.start("flush")) {
+        writer.flush(console);
+      }
+    }
+
 
     ImmutableList<Change<O>> changesSinceLastImport() throws RepoException, ValidationException {
       return originReader.changes(getLastRev(), resolvedRef);
@@ -388,4 +654,28 @@ public final class Workflow<O extends Reference, D extends Reference> implements
       return (previousRef == null) ? null : origin.resolve(previousRef);
     }
   }
+
+  private static void cleanDirectory(Path dir) throws IOException {
+    if (Files.exists(dir)) {
+      FileUtil.deleteAllFilesRecursively(dir);
+    }
+    Files.createDirectories(dir);
+  }
+
+  /**
+   * Deletes the empty directories between {@code file} and {@code root}, both excluded.
+   */
+  private static void deleteEmptyParents(Path root, Path file) throws IOException {
+    for (Path dir = file.getParent(); dir != null && !dir.equals(root); dir = dir.getParent()) {
+      if (!Files.isDirectory(dir, LinkOption.NOFOLLOW_LINKS)) {
+        continue;
+      }
+      try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir)) {
+        if (entries.iterator().hasNext()) {
+          return;
+        }
+      }
+      Files.delete(dir);
+    }
+  }
 }
@@ -18,21 +18,34 @@ package com.google.copybara;
 
 import static com.google.copybara.WorkflowOptions.CHANGE_REQUEST_PARENT_FLAG;
 
+import com.google.common.base.Preconditions;
 import com.google.common.base.Strings;
+import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Iterables;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.copybara.Destination.WriterResult;
 import com.google.copybara.doc.annotations.DocField;
+import com.google.copybara.util.console.Console;
 import com.google.copybara.util.console.ProgressPrefixConsole;
 import com.google.devtools.build.lib.skylarkinterface.SkylarkModule;
 import com.google.devtools.build.lib.syntax.SkylarkList;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Deque;
-import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import javax.annotation.Nullable;
 
 /**
  * Workflow type to run between origin an destination
@@ -111,43 +124,52 @@ public enum WorkflowMode {
         throw new EmptyChangeException(
             "No new changes to import for resolved ref: " + runHelper.getResolvedRef().asString());
       }
-      int changeNumber = 1;
-
       int limit = runHelper.workflowOptions().iterativeLimitChanges;
-      Iterator<Change<O>> changesIterator = Iterables.limit(changes, limit).iterator();
       if (limit < changes.size()) {
         runHelper.getConsole().info(String.format("Importing first %d change(s) out of %d",
             limit, changes.size()));
       }
+      List<PendingChange<O>> pending = new ArrayList<>();
       Deque<Change<O>> migrated = new ArrayDeque<>();
-      while (changesIterator.hasNext()) {
-        Change<O> change = changesIterator.next();
+      int changeNumber = 1;
+      for (Change<O> change : Iterables.limit(changes, limit)) {
         String prefix = String.format(
             "Change %d of %d (%s): ",
             changeNumber, Math.min(changes.size(), limit), change.getReference().asString());
-        WriterResult result;
-        try {
-          result = runHelper.migrate(
-              change.getReference(),
-              new ProgressPrefixConsole(prefix, runHelper.getConsole()),
-              new Metadata(change.getMessage(), change.getAuthor()),
-              new ComputedChanges(ImmutableList.of(change), migrated));
-        } catch (EmptyChangeException e) {
-          runHelper.getConsole().warn(e.getMessage());
-          result = WriterResult.OK;
-        }
+        pending.add(new PendingChange<>(change, prefix,
+            new ComputedChanges(ImmutableList.of(change), migrated)));
         migrated.addFirst(change);
+        changeNumber++;
+      }
+
+      TransformPipeline<O, D> pipeline = new TransformPipeline<>(runHelper, pending,
+          runHelper.workflowOptions().iterativePipelineDepth);
+      try {
+        for (int i = 0; i < pending.size(); i++) {
+          PendingChange<O> current = pending.get(i);
+          Console processConsole = new ProgressPrefixConsole(
+              current.prefix, runHelper.getConsole());
+          WriterResult result;
+          try {
+            result = runHelper.write(pipeline.get(i), processConsole);
+          } catch (EmptyChangeException e) {
+            runHelper.getConsole().warn(e.getMessage());
+            result = WriterResult.OK;
+          }
 
-        if (result == WriterResult.PROMPT_TO_CONTINUE && changesIterator.hasNext()) {
-          // Use the regular console to log prompt and final message, it will be easier to spot
-          if (!runHelper.getConsole()
-              .promptConfirmation("Continue importing next change?")) {
-            String message = String.format("Iterative workflow aborted by user after: %s", prefix);
-            runHelper.getConsole().warn(message);
-            throw new ChangeRejectedException(message);
+          if (result == WriterResult.PROMPT_TO_CONTINUE && i < pending.size() - 1) {
+            // Use the regular console to log prompt and final message, it will be easier to spot
+            if (!runHelper.getConsole()
+                .promptConfirmation("Continue importing next change?")) {
+              String message = String.format(
+                  "Iterative workflow aborted by user after: %s", current.prefix);
+              runHelper.getConsole().warn(message);
+              throw new ChangeRejectedException(message);
+            }
           }
         }
-        changeNumber++;
+      } finally {
+        pipeline.shutdown();
       }
     }
   },
@@ -230,6 +252,116 @@ public enum WorkflowMode {
     }
   }
 
+  /**
+   * A change of an ITERATIVE migration that is pending to be transformed and written.
+   */
+  private static final class PendingChange<O extends Reference> {
+
+    private final Change<O> change;
+    private final String prefix;
+    private final Changes changes;
+
+    private PendingChange(Change<O> change, String prefix, Changes changes) {
+      this.change = change;
+      this.prefix = prefix;
+      this.changes = changes;
+    }
+  }
+
+  /**
+   * Checks out and transforms the changes of an ITERATIVE migration.
+   *
+   * <p>If {@code depth} is 0, each change is transformed in the workflow working directory when
+   * it is requested. Otherwise, up to {@code depth} changes are checked out and transformed in a
+   * background thread while the current one is being written to the destination. Each one of
+   * the {@code depth + 1} changes in flight uses its own working directory. A working directory is
+   * only reused after the change that used it has been written.
+   */
+  private static final class TransformPipeline<O extends Reference, D extends Reference> {
+
+    private final Workflow<O, D>.RunHelper<O> runHelper;
+    private final List<PendingChange<O>> pending;
+    private final int depth;
+    @Nullable
+    private final ExecutorService executor;
+    private final List<Future<TransformResult>> submitted = new ArrayList<>();
+
+    private TransformPipeline(Workflow<O, D>.RunHelper<O> runHelper,
+        List<PendingChange<O>> pending, int depth) {
+      Preconditions.checkArgument(depth >= 0, "Invalid pipeline depth: %s", depth);
+      this.runHelper = runHelper;
+      this.pending = pending;
+      this.depth = depth;
+      this.executor = depth == 0 || pending.size() < 2
+          ? null
+          : Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+              .setNameFormat("copybara-iterative-transform-%d")
+              .setDaemon(true)
+              .build());
+    }
+
+    /**
+     * Returns the transformed result for the change at {@code index}. Must be called in order and
+     * only after the previous result has been written.
+     */
+    TransformResult get(int index) throws IOException, RepoException, ValidationException {
+      if (executor == null) {
+        return transform(runHelper.getWorkdir(), pending.get(index));
+      }
+      int last = Math.min(index + depth, pending.size() - 1);
+      while (submitted.size() <= last) {
+        int next = submitted.size();
+        Path slot = runHelper.getWorkdir()
+            .resolve("pipeline").resolve("slot_" + next % (depth + 1));
+        PendingChange<O> change = pending.get(next);
+        submitted.add(executor.submit(() -> {
+          Files.createDirectories(slot);
+          return transform(slot, change);
+        }));
+      }
+      try {
+        return submitted.get(index).get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new RepoException("Interrupted while transforming "
+            + pending.get(index).change.getReference().asString(), e);
+      } catch (ExecutionException e) {
+        Throwable cause = e.getCause();
+        Throwables.propagateIfInstanceOf(cause, IOException.class);
+        Throwables.propagateIfInstanceOf(cause, RepoException.class);
+        Throwables.propagateIfPossible(cause, ValidationException.class);
+        throw new RuntimeException(cause);
+      }
+    }
+
+    private TransformResult transform(Path workdir, PendingChange<O> pendingChange)
+        throws IOException, RepoException, ValidationException {
+      Change<O> change = pendingChange.change;
+      return runHelper.transform(workdir, change.getReference(),
+          new ProgressPrefixConsole(pendingChange.prefix, runHelper.getConsole()),
+          new Metadata(change.getMessage(), change.getAuthor()),
+          pendingChange.changes, /*destinationBaseline=*/ null);
+    }
+
+    /**
+     * Stops transforming changes that are not going to be written and waits for the background
+     * thread to finish, so that the working directory is not modified after the migration.
+     */
+    void shutdown() {
+      if (executor == null) {
+        return;
+      }
+      executor.shutdownNow();
+      try {
+        if (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+          logger.log(Level.WARNING, "Background transformation didn't finish in time");
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
   @SkylarkModule(name = "ComputedChanges", doc = "Compyted changes implementation",
       documented = false)
   private static class ComputedChanges extends Changes {
@@ -19,6 +19,7 @@ package com.google.copybara;
 import com.beust.jcommander.Parameter;
 import com.beust.jcommander.Parameters;
 import com.google.common.annotations.VisibleForTesting;
+import com.google.copybara.util.Metrics;
 import com.google.copybara.util.console.Console;
 import java.util.Objects;
 
@@ -44,6 +45,47 @@ public class WorkflowOptions implements Option {
       description = "Import just a number of changes instead of all the pending ones")
   int iterativeLimitChanges = Integer.MAX_VALUE;
 
+  @Parameter(names = "--iterative-pipeline-depth",
+      description = "Number of changes that ITERATIVE mode checks out and transforms ahead of the"
+          + " change being written to the destination. 0 (the default) migrates one change at a"
+          + " time. Changes are always written to the destination in order.")
+  int iterativePipelineDepth = 0;
+
+  @Parameter(names = "--iterative-incremental",
+      description = "In ITERATIVE mode, only check out and transform the files that changed since"
+          + " the previous change, reusing the rest of the previous workdir. Only used when all"
+          + " the transformations are file-local (for example core.replace). Otherwise Copybara"
+          + " does a full checkout for every change.")
+  boolean iterativeIncremental = false;
+
+  @Parameter(names = "--transformation-cache-dir",
+      description = "Directory where to cache the transformed version of each file, for"
+          + " example $HOME/.copybara/transformation_cache. Files that were already transformed"
+          + " in a previous run are not transformed again. Only used if all the transformations"
+          + " are file-local (for example core.replace). Disabled by default.")
+  String transformationCacheDir = null;
+
+  @Parameter(names = "--transformation-cache-max-size-mb",
+      description = "Maximum size of the transformation cache. Least recently used files are"
+          + " deleted first.")
+  long transformationCacheMaxSizeMb = 1024;
+
+  @Parameter(names = "--transformation-cache-max-age-days",
+      description = "Files in the transformation cache not used in this number of days are"
+          + " deleted.")
+  int transformationCacheMaxAgeDays = 30;
+
+  @Parameter(names = "--metrics-dir",
+      description = "Directory where to write, at the end of each migration, a report with the"
+          + " wall time, thread CPU time, process bytes read and written and files processed by"
+          + " each phase and transformation. The report is written to <dir>/<workflow_name>.json"
+          + " or .prom depending on --metrics-format.")
+  String metricsDir = null;
+
+  @Parameter(names = "--metrics-format",
+      description = "Format of the metrics report: JSON or PROMETHEUS (text format).")
+  Metrics.Format metricsFormat = Metrics.Format.JSON;
+
   @Parameter(names = "--ignore-noop",
       description = "Only warn about operations/transforms that didn't have any effect."
           + " For example: A transform that didn't modify any file, non-existent origin"
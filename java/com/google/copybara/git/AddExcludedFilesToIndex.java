@@ -17,7 +17,6 @@
 package com.google.copybara.git;
 
 import com.google.common.base.Splitter;
-import com.google.common.collect.ImmutableList;
 import com.google.copybara.RepoException;
 import com.google.copybara.util.Glob;
 import com.google.copybara.util.console.Console;
@@ -29,16 +28,19 @@ import java.nio.file.PathMatcher;
 import java.nio.file.SimpleFileVisitor;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * A walker which adds all files not matching a glob to the index of a Git repo using {@code git
- * add}.
+ * update-index}.
  */
 final class AddExcludedFilesToIndex {
   private final GitRepository repo;
   private final PathMatcher destinationFiles;
-  private ArrayList<String> addBackSubmodules;
+  // Submodule path -> SHA-1 of the submodule commit
+  private Map<String, String> addBackSubmodules;
 
   AddExcludedFilesToIndex(GitRepository repo, Glob destinationFilesGlob) {
     this.repo = repo;
@@ -50,7 +52,7 @@ final class AddExcludedFilesToIndex {
    * for deletion.
    */
   void findSubmodules(Console console) throws RepoException {
-    addBackSubmodules = new ArrayList<>();
+    addBackSubmodules = new LinkedHashMap<>();
 
     String submoduleStatus = repo.simpleCommand("submodule", "status").getStdout();
     for (String line : Splitter.on('\n').omitEmptyStrings().split(submoduleStatus)) {
@@ -60,48 +62,32 @@ final class AddExcludedFilesToIndex {
         continue;
       }
       if (!destinationFiles.matches(repo.getWorkTree().resolve(submoduleName))) {
-        addBackSubmodules.add(submoduleName);
+        addBackSubmodules.put(submoduleName, line.substring(1, 41));
       }
     }
   }
 
   /**
-   * Adds all the excluded files and submodules.
+   * Adds all the excluded files and submodules. All of them are added with a single git process,
+   * that reads the paths from stdin.
    */
   void add() throws RepoException, IOException {
-    ExcludesFinder visitor = new ExcludesFinder(repo.getGitDir(), destinationFiles);
+    ExcludesFinder visitor =
+        new ExcludesFinder(repo.getWorkTree(), repo.getGitDir(), destinationFiles);
     Files.walkFileTree(repo.getWorkTree(), visitor);
 
-    int size = 0;
-    List<String> current = new ArrayList<>();
-    for (String path : visitor.excluded) {
-      current.add(path);
-      size += path.length();
-      // Split the executions in chunks of 6K. 8K triggers arg max in some systems, so
-      // this is a reasonable number to get some batching benefit.
-      if (size > 6 * 1024) {
-        repo.add().force().files(current).run();
-        current = new ArrayList<>();
-        size = 0;
-      }
-    }
-    if (!current.isEmpty()) {
-      repo.add().force().files(current).run();
-    }
-
-    for (String addBackSubmodule : addBackSubmodules) {
-      repo.simpleCommand("reset", "--", "--quiet", addBackSubmodule);
-      repo.add().force().files(ImmutableList.of(addBackSubmodule)).run();
-    }
+    repo.updateIndex(visitor.excluded, addBackSubmodules);
   }
 
   private static final class ExcludesFinder extends SimpleFileVisitor<Path> {
 
+    private final Path workTree;
     private final Path gitDir;
     private final PathMatcher destinationFiles;
     private final List<String> excluded = new ArrayList<>();
 
-    private ExcludesFinder(Path gitDir, PathMatcher destinationFiles) {
+    private ExcludesFinder(Path workTree, Path gitDir, PathMatcher destinationFiles) {
+      this.workTree = workTree;
       this.gitDir = gitDir;
       this.destinationFiles = destinationFiles;
     }
@@ -118,7 +104,7 @@ final class AddExcludedFilesToIndex {
     @Override
     public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
       if (!destinationFiles.matches(file)) {
-        excluded.add(file.toString());
+        excluded.add(workTree.relativize(file).toString());
       }
       return FileVisitResult.CONTINUE;
     }
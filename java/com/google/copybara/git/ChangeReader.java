@@ -18,11 +18,14 @@ package com.google.copybara.git;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 
+import com.google.common.base.CharMatcher;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Splitter;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.copybara.Change;
+import com.google.copybara.ChangeVisitable.ChangesVisitor;
+import com.google.copybara.ChangeVisitable.VisitResult;
 import com.google.copybara.LabelFinder;
 import com.google.copybara.RepoException;
 import com.google.copybara.ValidationException;
@@ -33,6 +36,7 @@ import com.google.copybara.authoring.InvalidAuthorException;
 import com.google.copybara.util.Glob;
 import com.google.copybara.util.console.Console;
 import java.time.ZonedDateTime;
+import java.time.format.DateTimeParseException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Iterator;
@@ -46,6 +50,13 @@ import javax.annotation.Nullable;
  */
 class ChangeReader {
 
+  /**
+   * Format of each commit in the log: The SHA-1 followed by the parents, the author, the date and
+   * the raw message. With {@code -z} every field is terminated by a NUL, so that they can be read
+   * one by one from the output.
+   */
+  private static final String LOG_FORMAT = "%H %P%x00%aN <%aE>%x00%ad%x00%B";
+
   @Nullable
   private final Authoring authoring;
   private final GitRepository repository;
@@ -65,8 +76,22 @@ class ChangeReader {
   }
 
   ImmutableList<GitChange> run(String refExpression) throws RepoException {
+    ImmutableList.Builder<GitChange> builder = ImmutableList.builder();
+    visit(refExpression, change -> {
+      builder.add(change);
+      return true;
+    });
+    // Return older commit first.
+    return builder.build().reverse();
+  }
+
+  /**
+   * Visits the changes of {@code refExpression}, newer first, as they are read from the log. The
+   * log is not read further after {@code visitor} returns false.
+   */
+  void visit(String refExpression, GitChangeVisitor visitor) throws RepoException {
     List<String> params = new ArrayList<>(
-        Arrays.asList("log", "--no-color", "--date=iso-strict"));
+        Arrays.asList("log", "--no-color", "--date=iso-strict", "-z", "--format=" + LOG_FORMAT));
 
     if (limit != -1) {
       params.add("-" + limit);
@@ -81,85 +106,106 @@ class ChangeReader {
       params.addAll(roots);
     }
 
-    return parseChanges(
-        repository.simpleCommand(params.toArray(new String[params.size()])).getStdout());
+    // No changes if the output is empty. We cannot know until we run git log since fromRef can
+    // be null (HEAD)
+    try (StreamingGitCommand log =
+        repository.streamCommand(params.toArray(new String[params.size()]))) {
+      String header;
+      while ((header = log.readUntil('\0')) != null) {
+        if (!visitor.visit(parseChange(header, log))) {
+          return;
+        }
+      }
+    }
   }
 
-  private ImmutableList<GitChange> parseChanges(String log) throws RepoException {
-    // No changes. We cannot know until we run git log since fromRef can be null (HEAD)
-    if (log.isEmpty()) {
-      return ImmutableList.of();
-    }
+  /**
+   * Visits the changes of the first-parent history of {@code refExpression}, newer first, until
+   * {@code visitor} returns {@link VisitResult#TERMINATE}. The history is read from a single git
+   * process that is killed as soon as the visitation terminates.
+   *
+   * @return false if there are no changes for {@code refExpression}
+   */
+  boolean visitChanges(String refExpression, ChangesVisitor visitor) throws RepoException {
+    boolean[] found = {false};
+    visit(refExpression, change -> {
+      found[0] = true;
+      return visitor.visit(change.getChange()) != VisitResult.TERMINATE;
+    });
+    return found[0];
+  }
 
-    Iterator<String> rawLines = Splitter.on('\n').split(log).iterator();
-    ImmutableList.Builder<GitChange> builder = ImmutableList.builder();
+  private GitChange parseChange(String header, StreamingGitCommand log) throws RepoException {
+    Iterator<String> commitReferences = Splitter.on(' ').omitEmptyStrings().split(header)
+        .iterator();
+    if (!commitReferences.hasNext()) {
+      throw new RepoException("Unexpected format for git log output: " + header);
+    }
+    GitReference ref = repository.createReferenceFromCompleteSha1(commitReferences.next());
+    ImmutableList.Builder<GitReference> parents = ImmutableList.builder();
+    while (commitReferences.hasNext()) {
+      parents.add(repository.createReferenceFromCompleteSha1(commitReferences.next()));
+    }
+    String authorStr = nextField(log, header);
+    String dateStr = nextField(log, header);
+    String body = nextField(log, header);
 
-    while (rawLines.hasNext()) {
-      String rawCommitLine = rawLines.next();
-      Iterator<String> commitReferences = Splitter.on(" ")
-          .split(removePrefix(log, rawCommitLine, "commit")).iterator();
+    Author author;
+    try {
+      author = AuthorParser.parse(authorStr.trim());
+    } catch (InvalidAuthorException e) {
+      throw new RepoException("Invalid author found in Git history.", e);
+    }
+    if (authoring != null && !authoring.useAuthor(author.getEmail())) {
+      author = authoring.getDefaultAuthor();
+    }
+    ZonedDateTime dateTime;
+    try {
+      dateTime = ZonedDateTime.parse(dateStr.trim());
+    } catch (DateTimeParseException e) {
+      throw new RepoException("Invalid date for commit " + ref.asString() + ": " + dateStr, e);
+    }
 
-      GitReference ref = repository.createReferenceFromCompleteSha1(commitReferences.next());
-      ImmutableList.Builder<GitReference> parents = ImmutableList.builder();
-      while (commitReferences.hasNext()) {
-        parents.add(repository.createReferenceFromCompleteSha1(commitReferences.next()));
-      }
-      String line = rawLines.next();
-      Author author = null;
-      ZonedDateTime dateTime = null;
-      while (!line.isEmpty()) {
-        if (line.startsWith("Author: ")) {
-          String authorStr = line.substring("Author: ".length()).trim();
-          Author parsedUser;
-          try {
-            parsedUser = AuthorParser.parse(authorStr);
-          } catch (InvalidAuthorException e) {
-            throw new RepoException("Invalid author found in Git history.", e);
-          }
-          if (authoring == null || authoring.useAuthor(parsedUser.getEmail())) {
-            author = parsedUser;
-          } else {
-            author = authoring.getDefaultAuthor();
-          }
-        } else if (line.startsWith("Date: ")) {
-          dateTime = ZonedDateTime.parse(line.substring("Date: ".length()).trim());
-        }
-        line = rawLines.next();
-      }
-      Preconditions.checkState(author != null || dateTime != null,
-          "Could not find author and/or date for commitReferences %s in log\n:%s", rawCommitLine,
-          log);
-      StringBuilder message = new StringBuilder();
-      // Maintain labels in order just in case we print them back in the destination.
-      Map<String, String> labels = new LinkedHashMap<>();
-      while (rawLines.hasNext()) {
-        String s = rawLines.next();
-        if (!s.startsWith(GitOrigin.GIT_LOG_COMMENT_PREFIX)) {
-          break;
-        }
-        LabelFinder labelFinder = new LabelFinder(
-            s.substring(GitOrigin.GIT_LOG_COMMENT_PREFIX.length()));
-        if (labelFinder.isLabel()) {
-          String previous = labels.put(labelFinder.getName(), labelFinder.getValue());
-          if (previous != null && verbose) {
-            console.warn(String.format("Possible duplicate label '%s' happening multiple times"
-                    + " in commit. Keeping only the last value: '%s'\n  Discarded value: '%s'",
-                labelFinder.getName(), labelFinder.getValue(), previous));
-          }
+    // Like the default log format, ignore the trailing empty lines
+    String message = CharMatcher.is('\n').trimTrailingFrom(body);
+    if (!message.isEmpty()) {
+      message += "\n";
+    }
+    // Maintain labels in order just in case we print them back in the destination.
+    Map<String, String> labels = new LinkedHashMap<>();
+    for (String line : Splitter.on('\n').split(message)) {
+      LabelFinder labelFinder = new LabelFinder(line);
+      if (labelFinder.isLabel()) {
+        String previous = labels.put(labelFinder.getName(), labelFinder.getValue());
+        if (previous != null && verbose) {
+          console.warn(String.format("Possible duplicate label '%s' happening multiple times"
+                  + " in commit. Keeping only the last value: '%s'\n  Discarded value: '%s'",
+              labelFinder.getName(), labelFinder.getValue(), previous));
         }
-        message.append(s, GitOrigin.GIT_LOG_COMMENT_PREFIX.length(), s.length()).append("\n");
       }
-      Change<GitReference> change = new Change<>(
-          ref, author, message.toString(), dateTime, ImmutableMap.copyOf(labels));
-      builder.add(new GitChange(change, parents.build()));
     }
-    // Return older commit first.
-    return builder.build().reverse();
+    Change<GitReference> change = new Change<>(
+        ref, author, message, dateTime, ImmutableMap.copyOf(labels));
+    return new GitChange(change, parents.build());
   }
 
-  private String removePrefix(String log, String line, String prefix) {
-    Preconditions.checkState(line.startsWith(prefix), "Cannot find '%s' in:\n%s", prefix, log);
-    return line.substring(prefix.length()).trim();
+  private static String nextField(StreamingGitCommand log, String header) throws RepoException {
+    String field = log.readUntil('\0');
+    if (field == null) {
+      throw new RepoException("Unexpected end of git log output for commit " + header);
+    }
+    return field;
+  }
+
+  /**
+   * Receives the changes read by {@link #visit}.
+   */
+  interface GitChangeVisitor {
+
+    /**
+     * Visits a change. Returns true if the next change should be read.
+     */
+    boolean visit(GitChange change) throws RepoException;
   }
 
   /**
@@ -26,6 +26,7 @@ import com.google.common.hash.Hashing;
 import com.google.copybara.Destination;
 import com.google.copybara.GeneralOptions;
 import com.google.copybara.Options;
+import com.google.copybara.Origin;
 import com.google.copybara.RepoException;
 import com.google.copybara.TransformResult;
 import com.google.copybara.git.GitDestination.ProcessPushOutput;
@@ -64,37 +65,34 @@ public final class GerritDestination implements Destination<GitReference> {
      * values of the git variables {@code GIT_AUTHOR_IDENT} and {@code GIT_COMMITTER_IDENT}.
      */
     @Override
-    public String message(TransformResult transformResult, GitRepository repo)
+    public String message(TransformResult transformResult, GitRepository repo, String tree)
         throws RepoException {
       return String.format("%s\n%s: %s\nChange-Id: %s\n",
           transformResult.getSummary(),
           transformResult.getOriginRef().getLabelName(),
           transformResult.getOriginRef().asString(),
-          changeId(repo)
+          changeId(repo, tree)
       );
     }
 
-    private String maybeParentHash(GitRepository repo) {
-      try {
-        return repo.simpleCommand("rev-parse", "HEAD^0").getStdout();
-      } catch (RepoException e) {
-        return "";
-      }
-    }
-
-    private String changeId(GitRepository repo) throws RepoException {
+    /**
+     * Computes the same hash as Gerrit's commit-msg hook: The SHA-1 of the output of {@code git
+     * write-tree}, {@code git rev-parse HEAD^0} (if there is a HEAD) and {@code git var} for the
+     * author and committer identities.
+     */
+    private String changeId(GitRepository repo, String tree) throws RepoException {
       if (!Strings.isNullOrEmpty(gerritOptions.gerritChangeId)) {
         return gerritOptions.gerritChangeId;
       }
+      String parent = repo.headCommit();
 
       return "I" + Hashing.sha1().newHasher()
-          .putString(repo.simpleCommand("write-tree").getStdout(), Charsets.UTF_8)
-          .putString(maybeParentHash(repo), Charsets.UTF_8)
+          .putString(tree + "\n", Charsets.UTF_8)
+          .putString(parent == null ? "" : parent + "\n", Charsets.UTF_8)
           .putString(repo.simpleCommand("var", "GIT_AUTHOR_IDENT").getStdout(), Charsets.UTF_8)
           .putString(repo.simpleCommand("var", "GIT_COMMITTER_IDENT").getStdout(), Charsets.UTF_8)
           .hash();
     }
-
   }
 
   private final GitDestination gitDestination;
@@ -118,6 +116,11 @@ public final class GerritDestination implements Destination<GitReference> {
     return gitDestination.newWriter(destinationFiles);
   }
 
+  @Override
+  public Writer newWriter(Glob destinationFiles, Origin<?> origin) {
+    return gitDestination.newWriter(destinationFiles, origin);
+  }
+
   @Override
   public String getLabelNameWhenOrigin() {
     return GitRepository.GIT_ORIGIN_REV_ID;
@@ -141,7 +144,8 @@ public final class GerritDestination implements Destination<GitReference> {
             new CommitGenerator(gerritOptions),
             new GerritProcessPushOutput(
                 generalOptions.console(), Strings.isNullOrEmpty(gerritOptions.gerritChangeId)),
-            environment, options.get(GeneralOptions.class).console()));
+            environment, options.get(GeneralOptions.class).console(),
+            options.get(GitOptions.class).repoStorage));
   }
 
   static class GerritProcessPushOutput extends ProcessPushOutput {
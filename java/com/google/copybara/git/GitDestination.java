@@ -25,18 +25,28 @@ import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.ImmutableSetMultimap;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
+import com.google.common.hash.Hashing;
 import com.google.copybara.CannotResolveReferenceException;
 import com.google.copybara.ChangeRejectedException;
 import com.google.copybara.Destination;
 import com.google.copybara.GeneralOptions;
+import com.google.copybara.Origin;
 import com.google.copybara.RepoException;
 import com.google.copybara.TransformResult;
 import com.google.copybara.ValidationException;
-import com.google.copybara.git.ChangeReader.GitChange;
 import com.google.copybara.util.DiffUtil;
 import com.google.copybara.util.Glob;
 import com.google.copybara.util.console.Console;
 import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.logging.Level;
@@ -50,17 +60,21 @@ public final class GitDestination implements Destination<GitReference> {
 
   private static final ImmutableSet<String> SINGLE_ROOT_WITHOUT_FOLDER = ImmutableSet.of("");
 
+  /** Local ref of the repository cache where the destination branch is fetched. */
+  private static final String DESTINATION_REF_PREFIX = "refs/copybara/destination/";
+
   interface CommitGenerator {
     /**
      * Generates a commit message based on the uncommitted index stored in the given repository.
+     * {@code tree} is the SHA-1 of the tree of that index, already written to the repository.
      */
-    String message(TransformResult transformResult, GitRepository repo)
+    String message(TransformResult transformResult, GitRepository repo, String tree)
         throws RepoException;
   }
 
   static final class DefaultCommitGenerator implements CommitGenerator {
     @Override
-    public String message(TransformResult transformResult, GitRepository repo) {
+    public String message(TransformResult transformResult, GitRepository repo, String tree) {
       return String.format("%s\n\n%s: %s\n",
           transformResult.getSummary(),
           transformResult.getOriginRef().getLabelName(),
@@ -81,11 +95,12 @@ public final class GitDestination implements Destination<GitReference> {
   private final ProcessPushOutput processPushOutput;
   private final Map<String, String> environment;
   private final Console console;
+  private final String repoStorage;
 
   GitDestination(String repoUrl, String fetch, String push,
       GitDestinationOptions destinationOptions, boolean verbose, boolean force,
       CommitGenerator commitGenerator, ProcessPushOutput processPushOutput,
-      Map<String, String> environment, Console console) {
+      Map<String, String> environment, Console console, String repoStorage) {
     this.repoUrl = Preconditions.checkNotNull(repoUrl);
     this.fetch = Preconditions.checkNotNull(fetch);
     this.push = Preconditions.checkNotNull(push);
@@ -96,6 +111,7 @@ public final class GitDestination implements Destination<GitReference> {
     this.processPushOutput = Preconditions.checkNotNull(processPushOutput);
     this.environment = environment;
     this.console = console;
+    this.repoStorage = Preconditions.checkNotNull(repoStorage);
   }
 
   /**
@@ -121,16 +137,42 @@ public final class GitDestination implements Destination<GitReference> {
 
   @Override
   public Writer newWriter(Glob destinationFiles) {
-    return new WriterImpl(destinationFiles);
+    return new WriterImpl(destinationFiles, new BaselineFetch(/*originRepo=*/ null));
+  }
+
+  /**
+   * Like {@link #newWriter(Glob)}, but if {@code origin} is a {@link GitOrigin} the objects of its
+   * repository cache can be used by the destination repositories (See
+   * {@link GitDestinationOptions#originAlternates}).
+   */
+  @Override
+  public Writer newWriter(Glob destinationFiles, Origin<?> origin) {
+    GitRepository originRepo =
+        origin instanceof GitOrigin ? ((GitOrigin) origin).getRepository() : null;
+    return new WriterImpl(destinationFiles, new BaselineFetch(originRepo));
   }
 
   private class WriterImpl implements Writer {
 
     @Nullable private GitRepository scratchClone;
     private final Glob destinationFiles;
+    private final BaselineFetch baselineFetch;
+    /** Origin refs of the changes committed in the scratch clone but not pushed yet. */
+    private final List<String> unpushedOriginRefs = new ArrayList<>();
+    @Nullable private String lastPushedOriginRef;
+    /**
+     * Whether the files in the work tree of the scratch clone are the ones in its index. Only
+     * true if the changes are committed with {@link UpdateChangedFilesInIndex}.
+     */
+    private boolean workTreeMatchesIndex;
+    /** Lock of the persistent work tree used by the scratch clone, if any. */
+    @Nullable private FileChannel workTreeLock;
+    /** Temporary work tree of the repository cache used by the scratch clone, if any. */
+    @Nullable private Path temporaryWorkTree;
 
-    WriterImpl(Glob destinationFiles) {
+    WriterImpl(Glob destinationFiles, BaselineFetch baselineFetch) {
       this.destinationFiles = Preconditions.checkNotNull(destinationFiles);
+      this.baselineFetch = Preconditions.checkNotNull(baselineFetch);
     }
 
     @Nullable
@@ -139,42 +181,42 @@ public final class GitDestination implements Destination<GitReference> {
       if (force) {
         return null;
       }
+      GitReference head = baselineFetch.get();
+      if (head == null) {
+        return null;
+      }
       ImmutableSet<String> roots = destinationFiles.roots();
-      GitRepository gitRepository = cloneBaseline();
-      String commit = gitRepository.revParse("FETCH_HEAD");
       String labelPrefix = labelName + ": ";
-      // Look at commits in reverse chronological order, starting from FETCH_HEAD.
-      while (!commit.isEmpty()) {
-        // Get commit message body.
-        String body = gitRepository.simpleCommand(
-            createPreviousRefLogCommand(roots, commit, "--format=%b")).getStdout();
-        for (String line : body.split("\n")) {
-          if (line.startsWith(labelPrefix)) {
-            return line.substring(labelPrefix.length());
-          }
-        }
-
-        // Get parent hash.
-        commit = gitRepository.simpleCommand(
-            createPreviousRefLogCommand(roots, commit, "--format=%P")).getStdout().trim();
-        if (commit.indexOf(' ') != -1) {
-          throw new RepoException(
-              "Found commit with multiple parents (merge commit) when looking for "
-              + labelName + ". Please invoke Copybara with the --last-rev flag.");
-        }
-      }
-
-      return null;
-    }
-
-    private String[] createPreviousRefLogCommand(ImmutableSet<String> roots, String commit,
-        String format) {
-      List<String> args = Lists.newArrayList("log", "--no-color", format, commit, "-1");
+      // Look at commits in reverse chronological order, starting from the fetched head. Each
+      // commit is "<hash>\0<parents>\0<body>\0" followed by a newline.
+      List<String> args = Lists.newArrayList("log", "--no-color", "--first-parent",
+          "--format=%H%x00%P%x00%b%x00", head.asString());
       if (!roots.isEmpty() && !roots.equals(SINGLE_ROOT_WITHOUT_FOLDER)) {
         args.add("--");
         args.addAll(roots);
       }
-      return args.toArray(new String[args.size()]);
+      try (StreamingGitCommand log =
+          cacheRepo().streamCommand(args.toArray(new String[args.size()]))) {
+        String commit;
+        while ((commit = log.readUntil('\0')) != null && !commit.trim().isEmpty()) {
+          String parents = log.readUntil('\0');
+          String body = log.readUntil('\0');
+          if (parents == null || body == null) {
+            throw new RepoException("Unexpected end of git log output for " + commit.trim());
+          }
+          for (String line : body.split("\n")) {
+            if (line.startsWith(labelPrefix)) {
+              return line.substring(labelPrefix.length());
+            }
+          }
+          if (parents.trim().indexOf(' ') != -1) {
+            throw new RepoException(
+                "Found commit with multiple parents (merge commit) when looking for "
+                + labelName + ". Please invoke Copybara with the --last-rev flag.");
+          }
+        }
+      }
+      return null;
     }
 
     @Override
@@ -186,7 +228,9 @@ public final class GitDestination implements Destination<GitReference> {
       if (scratchClone == null) {
         console.progress("Git Destination: Fetching " + repoUrl);
 
-        scratchClone = cloneBaseline();
+        GitReference head = baselineFetch.get();
+        scratchClone = createScratchClone(head);
+        workTreeMatchesIndex = true;
         if (force && baseline != null) {
           //TODO Here
           throw new RepoException(
@@ -196,8 +240,10 @@ public final class GitDestination implements Destination<GitReference> {
 
         console.progress("Git Destination: Checking out " + fetch);
         // If baseline is not null we sync first to the baseline and apply the changes on top of
-        // that. Then we will rebase the new change to FETCH_HEAD.
-        String reference = baseline != null ? baseline : "FETCH_HEAD";
+        // that. Then we will rebase the new change to the fetched head.
+        String reference = baseline != null
+            ? baseline
+            : head != null ? head.asString() : "FETCH_HEAD";
         try {
           scratchClone.simpleCommand("checkout", "-q", reference);
         } catch (RepoException e) {
@@ -214,40 +260,52 @@ public final class GitDestination implements Destination<GitReference> {
 
 
         if (!Strings.isNullOrEmpty(destinationOptions.committerName)) {
-          scratchClone.simpleCommand("config", "user.name", destinationOptions.committerName);
+          scratchClone.simpleCommand("config", "--worktree", "user.name",
+              destinationOptions.committerName);
         }
         if (!Strings.isNullOrEmpty(destinationOptions.committerEmail)) {
-          scratchClone.simpleCommand("config", "user.email", destinationOptions.committerEmail);
+          scratchClone.simpleCommand("config", "--worktree", "user.email",
+              destinationOptions.committerEmail);
         }
         verifyUserInfoConfigured(scratchClone);
       }
 
-      // Get the submodules before we stage them for deletion with
-      // alternate.simpleCommand(add --all)
-      AddExcludedFilesToIndex excludedAdder =
-          new AddExcludedFilesToIndex(scratchClone, destinationFiles);
-      excludedAdder.findSubmodules(console);
-
-
-      console.progress("Git Destination: Cloning destination");
-      GitRepository alternate = scratchClone.withWorkTree(transformResult.getPath());
-      console.progress("Git Destination: Adding all files");
-      alternate.add().force().all().run();
-
-      console.progress("Git Destination: Excluding files");
-
-      excludedAdder.add();
+      GitRepository alternate;
+      if (destinationOptions.incrementalIndex && baseline == null && workTreeMatchesIndex) {
+        console.progress("Git Destination: Updating changed files");
+        int changed = new UpdateChangedFilesInIndex(scratchClone, destinationFiles)
+            .update(transformResult.getPath());
+        logger.log(Level.INFO, "Updated " + changed + " files in the index");
+        alternate = scratchClone;
+      } else {
+        workTreeMatchesIndex = false;
+        // Get the submodules before we stage them for deletion with
+        // alternate.simpleCommand(add --all)
+        AddExcludedFilesToIndex excludedAdder =
+            new AddExcludedFilesToIndex(scratchClone, destinationFiles);
+        excludedAdder.findSubmodules(console);
+
+        console.progress("Git Destination: Cloning destination");
+        alternate = scratchClone.withWorkTree(transformResult.getPath());
+        console.progress("Git Destination: Adding all files");
+        alternate.add().force().all().run();
+
+        console.progress("Git Destination: Excluding files");
+
+        excludedAdder.add();
+      }
 
       console.progress("Git Destination: Creating a local commit");
-      alternate.commit(transformResult.getAuthor().toString(), transformResult.getTimestamp(),
-          commitGenerator.message(transformResult, alternate));
+      String tree = alternate.writeTreeToCommit();
+      alternate.commitIndex(transformResult.getAuthor().toString(), transformResult.getTimestamp(),
+          commitGenerator.message(transformResult, scratchClone, tree));
 
       if (baseline != null) {
         // Our current implementation (That we should change) leaves unstaged files in the
         // work-tree. This is fine for commit/push but not for rebase, since rebase could fail
         // and needs to create a conflict resolution work-tree.
         alternate.simpleCommand("reset", "--hard");
-        alternate.rebase("FETCH_HEAD");
+        alternate.rebase(baselineFetch.get().asString());
       }
 
       if (transformResult.isAskForConfirmation()) {
@@ -261,25 +319,223 @@ public final class GitDestination implements Destination<GitReference> {
               "User aborted execution: did not confirm diff changes.");
         }
       }
-      console.progress(String.format("Git Destination: Pushing to %s %s", repoUrl, push));
-      // Git push writes to Stderr
-      processPushOutput.process(
-          alternate.simpleCommand("push", repoUrl, "HEAD:" + GitDestination.this.push).getStderr());
+      unpushedOriginRefs.add(transformResult.getOriginRef().asString());
+      // Rebased or confirmed changes are always pushed right away
+      if (isBatchingPushes() && baseline == null && !transformResult.isAskForConfirmation()
+          && (destinationOptions.pushBatchSize == 0
+              || unpushedOriginRefs.size() < destinationOptions.pushBatchSize)) {
+        console.progress(String.format("Git Destination: %d commit(s) pending to push",
+            unpushedOriginRefs.size()));
+        return WriterResult.OK;
+      }
+      push(console);
       return WriterResult.OK;
     }
+
+    @Override
+    public void flush(Console console) throws RepoException {
+      try {
+        if (!unpushedOriginRefs.isEmpty()) {
+          push(console);
+        }
+      } finally {
+        releaseWorkTree();
+      }
+    }
+
+    /**
+     * Creates the scratch clone for {@code head}. With the incremental index, the work tree is kept
+     * between migrations of the same destination so that git only needs to look at the files that
+     * changed. If another migration is using it, a temporary work tree is used instead.
+     */
+    private GitRepository createScratchClone(@Nullable GitReference head)
+        throws RepoException {
+      if (head == null || !destinationOptions.incrementalIndex) {
+        return newTemporaryScratchClone(head);
+      }
+      Path workTrees = Paths.get(repoStorage).resolve("destination_worktrees");
+      String name = Hashing.sha1()
+          .hashString(repoUrl + "\n" + fetch + "\n" + push, StandardCharsets.UTF_8).toString();
+      try {
+        Files.createDirectories(workTrees);
+        FileChannel channel = FileChannel.open(workTrees.resolve(name + ".lock"),
+            StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        FileLock lock;
+        try {
+          lock = channel.tryLock();
+        } catch (OverlappingFileLockException e) {
+          lock = null;
+        }
+        if (lock == null) {
+          channel.close();
+          logger.log(Level.INFO, "Destination work tree in use. Using a temporary one.");
+          return newTemporaryScratchClone(head);
+        }
+        workTreeLock = channel;
+      } catch (IOException e) {
+        throw new RepoException("Cannot lock the destination work tree: " + e.getMessage(), e);
+      }
+      return cacheRepo().reuseWorktree(workTrees.resolve(name), head);
+    }
+
+    /**
+     * Like {@link GitDestination#newScratchClone(GitReference, GitRepository)}, but the work tree
+     * is removed by {@link #releaseWorkTree()}.
+     */
+    private GitRepository newTemporaryScratchClone(@Nullable GitReference head)
+        throws RepoException {
+      GitRepository clone = newScratchClone(head, baselineFetch.originRepo);
+      if (head != null) {
+        temporaryWorkTree = clone.getWorkTree();
+      }
+      return clone;
+    }
+
+    private void releaseWorkTree() throws RepoException {
+      if (temporaryWorkTree != null) {
+        Path workTree = temporaryWorkTree;
+        temporaryWorkTree = null;
+        try {
+          cacheRepo().removeWorktree(workTree);
+        } catch (RepoException e) {
+          // Not fatal: git forgets the work trees whose directory was deleted
+          logger.log(Level.WARNING, "Cannot remove the destination work tree " + workTree, e);
+        }
+      }
+      if (workTreeLock == null) {
+        return;
+      }
+      try {
+        // Closing the channel releases the lock
+        workTreeLock.close();
+      } catch (IOException e) {
+        throw new RepoException("Cannot unlock the destination work tree: " + e.getMessage(), e);
+      } finally {
+        workTreeLock = null;
+      }
+    }
+
+    private boolean isBatchingPushes() {
+      return destinationOptions.pushBatchSize != 1;
+    }
+
+    private void push(Console console) throws RepoException {
+      console.progress(String.format("Git Destination: Pushing to %s %s", repoUrl, push));
+      String output;
+      try {
+        // Git push writes to Stderr
+        output = scratchClone.simpleCommand("push", repoUrl, "HEAD:" + push).getStderr();
+      } catch (RepoException e) {
+        if (!isBatchingPushes()) {
+          throw e;
+        }
+        throw new RepoException(String.format(
+            "Failed to push %d change(s) to %s %s. Last change pushed: %s. Changes not pushed: %s",
+            unpushedOriginRefs.size(), repoUrl, push,
+            lastPushedOriginRef == null ? "none" : lastPushedOriginRef, unpushedOriginRefs), e);
+      }
+      processPushOutput.process(output);
+      lastPushedOriginRef = Iterables.getLast(unpushedOriginRefs);
+      unpushedOriginRefs.clear();
+    }
+  }
+
+  /**
+   * The fetch of the destination branch into the repository cache for a writer. It is done when
+   * first needed and at most once.
+   */
+  private class BaselineFetch {
+
+    /** Repository of the origin of the migration, if it is a git origin. */
+    @Nullable private final GitRepository originRepo;
+    private boolean fetched;
+    @Nullable private GitReference head;
+
+    /**
+     * Returns the head of the destination branch, in the repository cache, or null if it doesn't
+     * exist and {@code --force} is used.
+     */
+    BaselineFetch(@Nullable GitRepository originRepo) {
+      this.originRepo = originRepo;
+    }
+
+    @Nullable
+    synchronized GitReference get() throws RepoException {
+      if (!fetched) {
+        head = fetchBaseline(originRepo);
+        fetched = true;
+      }
+      return head;
+    }
   }
 
-  private GitRepository cloneBaseline() throws RepoException {
-    GitRepository scratchClone = GitRepository.initScratchRepo(verbose, environment);
+  private GitRepository cacheRepo() {
+    return GitRepository.bareRepoInCache(repoUrl, environment, verbose, repoStorage);
+  }
+
+  /**
+   * Fetches the destination branch into the repository cache. The branch is fetched to a local
+   * ref, so that the objects from previous migrations are reused and the fetch is incremental.
+   */
+  @Nullable
+  private GitReference fetchBaseline(@Nullable GitRepository originRepo) throws RepoException {
+    GitRepository cacheRepo = cacheRepo();
+    cacheRepo.initGitDir();
+    addOriginAlternates(cacheRepo, originRepo);
     try {
-      scratchClone.fetchSingleRef(repoUrl, fetch);
+      if (GitRepository.isSha1Reference(fetch)) {
+        return cacheRepo.fetchSingleRef(repoUrl, fetch);
+      }
+      String localRef = DESTINATION_REF_PREFIX + fetch;
+      cacheRepo.fetch(repoUrl, /*prune=*/false, /*force=*/true,
+          ImmutableList.of(fetch + ":" + localRef));
+      return cacheRepo.resolveReference(localRef);
     } catch (CannotResolveReferenceException e) {
       if (!force) {
         throw new RepoException("'" + fetch + "' doesn't exist in '" + repoUrl
             + "'. Use " + GeneralOptions.FORCE + " flag if you want to push anyway");
       }
+      return null;
+    }
+  }
+
+  /**
+   * Creates the repository where the changes are committed before pushing them: a new work tree
+   * of the repository cache at {@code head} or, if the destination branch doesn't exist yet, a
+   * new scratch repository.
+   */
+  private GitRepository newScratchClone(@Nullable GitReference head,
+      @Nullable GitRepository originRepo) throws RepoException {
+    if (head == null) {
+      GitRepository scratchRepo = GitRepository.initScratchRepo(verbose, environment);
+      addOriginAlternates(scratchRepo, originRepo);
+      return scratchRepo;
+    }
+    Path workTree;
+    try {
+      workTree = Files.createTempDirectory("copybara-destination");
+    } catch (IOException e) {
+      throw new RepoException("Could not make temporary directory for destination work tree", e);
     }
-    return scratchClone;
+    return cacheRepo().addWorktree(workTree, head);
+  }
+
+  /**
+   * Makes the objects of the repository cache of the git origin available in {@code repo}, so that
+   * the files that come from the origin unmodified don't need to be stored again.
+   */
+  private void addOriginAlternates(GitRepository repo, @Nullable GitRepository originRepo)
+      throws RepoException {
+    if (!destinationOptions.originAlternates || originRepo == null) {
+      return;
+    }
+    Path objects = originRepo.getGitDir().resolve("objects");
+    if (originRepo.getGitDir().equals(cacheRepo().getGitDir()) || !Files.isDirectory(objects)) {
+      return;
+    }
+    // A commit in the destination could use an object that is unreachable in the origin
+    originRepo.disablePruning();
+    repo.addAlternates(ImmutableList.of(objects));
   }
 
   @VisibleForTesting
@@ -327,30 +583,29 @@ public final class GitDestination implements Destination<GitReference> {
     @Override
     public void visitChanges(GitReference start, ChangesVisitor visitor)
         throws RepoException, CannotResolveReferenceException {
-      GitRepository repository = cloneBaseline();
-      String revString = start == null ? "FETCH_HEAD" : start.asString();
+      // Fetched every time, so that changes pushed in the meantime (For example by a writer of the
+      // same migration) are visible. The fetch into the repository cache is incremental.
+      GitReference head = fetchBaseline(/*originRepo=*/ null);
+      String revString = start != null
+          ? start.asString()
+          : head != null ? head.asString() : "FETCH_HEAD";
+      if (head == null) {
+        if (start == null) {
+          console.error("Unable to find HEAD - is the destination repository bare?");
+        }
+        throw new CannotResolveReferenceException("Cannot find reference " + revString);
+      }
       ChangeReader changeReader =
-          ChangeReader.Builder.forDestination(repository, console)
+          ChangeReader.Builder.forDestination(cacheRepo(), console)
               .setVerbose(verbose)
-              .setLimit(1)
               .build();
 
-      ImmutableList<GitChange> result = changeReader.run(revString);
-      if (result.isEmpty()) {
+      if (!changeReader.visitChanges(revString, visitor)) {
         if (start == null) {
           console.error("Unable to find HEAD - is the destination repository bare?");
         }
         throw new CannotResolveReferenceException("Cannot find reference " + revString);
       }
-      GitChange current = Iterables.getOnlyElement(result);
-      while (current != null) {
-        if (visitor.visit(current.getChange()) == VisitResult.TERMINATE
-            || current.getParents().isEmpty()) {
-          break;
-        }
-        current =
-            Iterables.getOnlyElement(changeReader.run(current.getParents().get(0).asString()));
-      }
     }
   }
 
@@ -50,4 +50,25 @@ public final class GitDestinationOptions implements Option {
   @Parameter(names = "--git-destination-push",
       description = "If set, overrides the git destination push reference.")
   String push = null;
+
+  @Parameter(names = "--git-destination-push-batch-size",
+      description = "Number of commits to create locally before pushing them to the git"
+          + " destination with a single push. 0 pushes once, after all the changes have been"
+          + " committed. Useful for ITERATIVE migrations of many changes. Not used when the"
+          + " migration asks for confirmation or rebases the change.")
+  int pushBatchSize = 1;
+
+  @Parameter(names = "--git-destination-incremental-index",
+      description = "If set, the git destination copies to its work tree and updates in the index"
+          + " only the files that changed since the previous commit, instead of adding all the"
+          + " files of the change. The work tree is kept in the repository storage between"
+          + " migrations. Not used when the migration rebases the change.")
+  boolean incrementalIndex = false;
+
+  @Parameter(names = "--git-destination-origin-alternates",
+      description = "If set, the git destination repository uses the objects of the repository"
+          + " cache of the git origin of the workflow (git alternates), so that the files that"
+          + " exist in the origin are not stored again. Unreachable objects are never pruned"
+          + " from that origin cache, since the destination might depend on them.")
+  boolean originAlternates = false;
 }
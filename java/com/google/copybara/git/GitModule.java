@@ -231,7 +231,8 @@ public class GitModule implements OptionsAwareModule {
           new DefaultCommitGenerator(),
           new ProcessPushOutput(),
           self.options.get(GeneralOptions.class).getEnvironment(),
-          self.options.get(GeneralOptions.class).console());
+          self.options.get(GeneralOptions.class).console(),
+          self.options.get(GitOptions.class).repoStorage);
     }
   };
 
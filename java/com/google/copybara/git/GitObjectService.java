@@ -0,0 +1,468 @@
+/*
+ * Copyright (C) 2016 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.copybara.git;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.base.MoreObjects;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.ByteStreams;
+import com.google.copybara.RepoException;
+import com.google.copybara.git.GitRepository.GitObjectType;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.Nullable;
+
+/**
+ * Answers object lookups of a repository using long-lived {@code git cat-file --batch-check} and
+ * {@code git cat-file --batch} processes, so that each lookup doesn't fork a new git process.
+ *
+ * <p>Objects can be named with any expression that {@code git cat-file} understands, like a
+ * SHA-1 or {@code <commit>:<path>}. References names (like {@code HEAD} or branches) should not
+ * be used, since the processes might not see updates of the references done after they started.
+ * New objects are visible, since git reloads the packs when it cannot find an object.
+ *
+ * <p>Instances are shared by all the {@link GitRepository}s with the same git directory. A
+ * limited number of them have their processes running at the same time. The least recently used
+ * ones are stopped when the limit is reached, and all of them are stopped when the JVM exits.
+ *
+ * <p>This class is thread-safe.
+ */
+final class GitObjectService {
+
+  private static final Logger logger = Logger.getLogger(GitObjectService.class.getName());
+
+  private static final int MAX_RUNNING = 16;
+
+  private static final Map<Path, GitObjectService> RUNNING =
+      new LinkedHashMap<Path, GitObjectService>(16, 0.75f, /*accessOrder=*/ true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Path, GitObjectService> eldest) {
+          if (size() <= MAX_RUNNING) {
+            return false;
+          }
+          eldest.getValue().evict();
+          return true;
+        }
+      };
+
+  static {
+    Runtime.getRuntime().addShutdownHook(new Thread(GitObjectService::stopAll,
+        "git-object-service-shutdown"));
+  }
+
+  private final Path gitDir;
+  private final Map<String, String> environment;
+
+  @Nullable private BatchProcess batchCheck;
+  @Nullable private BatchProcess batch;
+
+  /**
+   * True if the instance is not in {@link #RUNNING} anymore. Lookups still work in that case, but
+   * the processes are stopped after each of them so that they don't leak.
+   */
+  private boolean evicted;
+
+  private GitObjectService(Path gitDir, Map<String, String> environment) {
+    this.gitDir = gitDir;
+    this.environment = environment;
+  }
+
+  /**
+   * Returns the service for the repository in {@code gitDir}. {@code environment} is used for
+   * executing git if the processes are not running yet.
+   */
+  static GitObjectService forGitDir(Path gitDir, Map<String, String> environment) {
+    Path key = gitDir.toAbsolutePath().normalize();
+    synchronized (RUNNING) {
+      return RUNNING.computeIfAbsent(key, k -> new GitObjectService(k, environment));
+    }
+  }
+
+  /**
+   * Returns the type and size of {@code object}, or null if it doesn't exist.
+   *
+   * @throws RepoException if {@code object} is a short SHA-1 that matches several objects
+   */
+  @Nullable
+  synchronized ObjectInfo info(String object) throws RepoException {
+    checkObjectName(object);
+    try {
+      if (batchCheck == null) {
+        batchCheck = new BatchProcess("--batch-check");
+      }
+      return batchCheck.request(object);
+    } catch (IOException e) {
+      stop();
+      throw new RepoException(String.format(
+          "Error reading '%s' with 'git cat-file --batch-check': %s", object, e.getMessage()), e);
+    } finally {
+      stopIfEvicted();
+    }
+  }
+
+  /**
+   * Returns the content of {@code object}, or null if it doesn't exist.
+   *
+   * @throws RepoException if {@code object} is a short SHA-1 that matches several objects
+   */
+  @Nullable
+  synchronized GitObject read(String object) throws RepoException {
+    checkObjectName(object);
+    try {
+      if (batch == null) {
+        batch = new BatchProcess("--batch");
+      }
+      ObjectInfo info = batch.request(object);
+      return info == null ? null : new GitObject(info, batch.readContent(info));
+    } catch (IOException e) {
+      stop();
+      throw new RepoException(String.format(
+          "Error reading '%s' with 'git cat-file --batch': %s", object, e.getMessage()), e);
+    } finally {
+      stopIfEvicted();
+    }
+  }
+
+  private static void checkObjectName(String object) throws RepoException {
+    if (object.isEmpty() || object.contains("\n")) {
+      throw new RepoException("Invalid object name: '" + object + "'");
+    }
+  }
+
+  private void stopIfEvicted() {
+    if (evicted) {
+      stop();
+    }
+  }
+
+  private synchronized void evict() {
+    evicted = true;
+    stop();
+  }
+
+  private synchronized void stop() {
+    if (batchCheck != null) {
+      batchCheck.stop();
+      batchCheck = null;
+    }
+    if (batch != null) {
+      batch.stop();
+      batch = null;
+    }
+  }
+
+  /**
+   * Stops the processes of the services of the repository in {@code gitDir} and of its work trees,
+   * which share its objects. They are started again on the next lookup. Needed when the object
+   * directories of the repository change (For example new alternates), since git only reads them
+   * when the process starts.
+   */
+  static void restart(Path gitDir) {
+    Path key = gitDir.toAbsolutePath().normalize();
+    Path worktrees = key.resolve("worktrees");
+    List<GitObjectService> services = new ArrayList<>();
+    synchronized (RUNNING) {
+      for (Map.Entry<Path, GitObjectService> entry : RUNNING.entrySet()) {
+        if (entry.getKey().equals(key) || entry.getKey().startsWith(worktrees)) {
+          services.add(entry.getValue());
+        }
+      }
+    }
+    for (GitObjectService service : services) {
+      service.stop();
+    }
+  }
+
+  private static void stopAll() {
+    List<GitObjectService> services;
+    synchronized (RUNNING) {
+      services = new ArrayList<>(RUNNING.values());
+      RUNNING.clear();
+    }
+    for (GitObjectService service : services) {
+      service.evict();
+    }
+  }
+
+  /** The type and size of an object, as reported by {@code git cat-file}. */
+  static final class ObjectInfo {
+
+    private final String sha1;
+    private final GitObjectType type;
+    private final long size;
+
+    private ObjectInfo(String sha1, GitObjectType type, long size) {
+      this.sha1 = Preconditions.checkNotNull(sha1);
+      this.type = Preconditions.checkNotNull(type);
+      this.size = size;
+    }
+
+    String getSha1() {
+      return sha1;
+    }
+
+    GitObjectType getType() {
+      return type;
+    }
+
+    long getSize() {
+      return size;
+    }
+
+    @Override
+    public String toString() {
+      return MoreObjects.toStringHelper(this)
+          .add("sha1", sha1)
+          .add("type", type)
+          .add("size", size)
+          .toString();
+    }
+  }
+
+  /** An object and its content. */
+  static final class GitObject {
+
+    private final ObjectInfo info;
+    private final byte[] content;
+
+    private GitObject(ObjectInfo info, byte[] content) {
+      this.info = info;
+      this.content = content;
+    }
+
+    ObjectInfo getInfo() {
+      return info;
+    }
+
+    byte[] getContent() {
+      return content;
+    }
+
+    /**
+     * Parses the content of a tree object. Entries are returned in the order of the tree.
+     */
+    ImmutableList<TreeEntry> parseTree() throws RepoException {
+      if (info.getType() != GitObjectType.TREE) {
+        throw new RepoException(info.getSha1() + " is not a tree but a " + info.getType());
+      }
+      // Entries look like "<mode> <name>\0<20 bytes SHA-1>"
+      ImmutableList.Builder<TreeEntry> result = ImmutableList.builder();
+      int pos = 0;
+      while (pos < content.length) {
+        int space = indexOf(content, (byte) ' ', pos);
+        int nul = indexOf(content, (byte) 0, space + 1);
+        if (space < 0 || nul < 0 || nul + 21 > content.length) {
+          throw new RepoException("Invalid tree object " + info.getSha1());
+        }
+        String mode = new String(content, pos, space - pos, UTF_8);
+        String name = new String(content, space + 1, nul - space - 1, UTF_8);
+        StringBuilder sha1 = new StringBuilder(40);
+        for (int i = nul + 1; i < nul + 21; i++) {
+          sha1.append(String.format("%02x", content[i] & 0xff));
+        }
+        // Git omits the leading zero of the tree mode
+        result.add(new TreeEntry(mode.length() == 5 ? "0" + mode : mode, name, sha1.toString()));
+        pos = nul + 21;
+      }
+      return result.build();
+    }
+
+    private static int indexOf(byte[] content, byte value, int from) {
+      for (int i = from; i < content.length; i++) {
+        if (content[i] == value) {
+          return i;
+        }
+      }
+      return -1;
+    }
+  }
+
+  /** An entry of a tree object. */
+  static final class TreeEntry {
+
+    private final String mode;
+    private final String name;
+    private final String sha1;
+
+    private TreeEntry(String mode, String name, String sha1) {
+      this.mode = mode;
+      this.name = name;
+      this.sha1 = sha1;
+    }
+
+    /** The six digits mode, for example {@code 100644} or {@code 040000}. */
+    String getMode() {
+      return mode;
+    }
+
+    String getName() {
+      return name;
+    }
+
+    String getSha1() {
+      return sha1;
+    }
+
+    GitObjectType getType() {
+      switch (mode) {
+        case "040000":
+          return GitObjectType.TREE;
+        case GitRepository.GITLINK_MODE:
+          return GitObjectType.COMMIT;
+        default:
+          return GitObjectType.BLOB;
+      }
+    }
+  }
+
+  /** A running {@code git cat-file} process in one of the batch modes. */
+  private final class BatchProcess {
+
+    private final String mode;
+    private final Process process;
+    private final OutputStream stdin;
+    private final InputStream stdout;
+    private final Path stderrFile;
+
+    private BatchProcess(String mode) throws IOException {
+      this.mode = mode;
+      // Stderr goes to a file, like in StreamingGitCommand, instead of the terminal of the user.
+      // It is logged when the process stops.
+      stderrFile = Files.createTempFile("git-cat-file-stderr", ".txt");
+      ProcessBuilder builder = new ProcessBuilder(GitRepository.resolveGitBinary(environment),
+          "--git-dir=" + gitDir, "cat-file", mode)
+          .directory(gitDir.toFile())
+          .redirectError(stderrFile.toFile());
+      builder.environment().clear();
+      builder.environment().putAll(environment);
+      try {
+        process = builder.start();
+      } catch (IOException e) {
+        deleteStderr();
+        throw e;
+      }
+      stdin = process.getOutputStream();
+      stdout = new BufferedInputStream(process.getInputStream());
+      logger.log(Level.INFO, String.format("Started 'git cat-file %s' for %s", mode, gitDir));
+    }
+
+    /**
+     * Sends a request for {@code object} and reads the header of the response. Returns null if
+     * the object doesn't exist.
+     *
+     * @throws RepoException if {@code object} is a short SHA-1 that matches several objects. The
+     *     process can still be used.
+     */
+    @Nullable
+    private ObjectInfo request(String object) throws IOException, RepoException {
+      stdin.write((object + "\n").getBytes(UTF_8));
+      stdin.flush();
+      String header = readLine();
+      if (header.equals(object + " missing")) {
+        return null;
+      }
+      if (header.equals(object + " ambiguous")) {
+        throw new RepoException(String.format(
+            "Cannot resolve '%s': the short SHA-1 is ambiguous", object));
+      }
+      List<String> parts = Splitter.on(' ').splitToList(header);
+      if (parts.size() != 3) {
+        throw new IOException("Unexpected output: " + header);
+      }
+      try {
+        return new ObjectInfo(parts.get(0), GitObjectType.valueOf(parts.get(1).toUpperCase()),
+            Long.parseLong(parts.get(2)));
+      } catch (IllegalArgumentException e) {
+        throw new IOException("Unexpected output: " + header, e);
+      }
+    }
+
+    /** Reads the content that follows the header of {@code info}. */
+    private byte[] readContent(ObjectInfo info) throws IOException {
+      if (info.getSize() > Integer.MAX_VALUE) {
+        throw new IOException("Object too big: " + info.getSize());
+      }
+      byte[] content = new byte[(int) info.getSize()];
+      ByteStreams.readFully(stdout, content);
+      // The content is followed by a newline
+      if (stdout.read() != '\n') {
+        throw new IOException("Missing newline after the content");
+      }
+      return content;
+    }
+
+    private String readLine() throws IOException {
+      ByteArrayOutputStream line = new ByteArrayOutputStream(80);
+      int c;
+      while ((c = stdout.read()) != '\n') {
+        if (c < 0) {
+          throw new EOFException("'git cat-file " + mode + "' exited unexpectedly: "
+              + readStderr());
+        }
+        line.write(c);
+      }
+      return new String(line.toByteArray(), UTF_8);
+    }
+
+    private void stop() {
+      try {
+        // cat-file exits when its input is closed
+        stdin.close();
+      } catch (IOException e) {
+        logger.log(Level.WARNING, "Error stopping 'git cat-file " + mode + "'", e);
+      }
+      process.destroy();
+      try {
+        String stderr = readStderr();
+        if (!stderr.isEmpty()) {
+          logger.log(Level.WARNING, String.format("'git cat-file %s' for %s reported errors:\n%s",
+              mode, gitDir, stderr));
+        }
+      } catch (IOException e) {
+        logger.log(Level.WARNING, "Cannot read the errors of 'git cat-file " + mode + "'", e);
+      }
+      deleteStderr();
+    }
+
+    private String readStderr() throws IOException {
+      return new String(Files.readAllBytes(stderrFile), UTF_8).trim();
+    }
+
+    private void deleteStderr() {
+      try {
+        Files.deleteIfExists(stderrFile);
+      } catch (IOException e) {
+        logger.log(Level.WARNING, "Cannot delete " + stderrFile, e);
+      }
+    }
+  }
+}
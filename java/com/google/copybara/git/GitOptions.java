@@ -26,7 +26,6 @@ import com.google.copybara.Option;
 @Parameters(separators = "=")
 public final class GitOptions implements Option {
 
-  // Not used by git.destination but it will be at some point to make fetches more efficient.
   @Parameter(names = "--git-repo-storage",
       description = "Location of the storage path for git repositories")
   String repoStorage;
@@ -38,6 +37,17 @@ public final class GitOptions implements Option {
           + " after the checkout.", hidden = true)
   String originCheckoutHook = null;
 
+  @Parameter(names = "--git-origin-partial-clone-filter",
+      description = "Filter of the objects that are not fetched into the git.origin repository"
+          + " cache (For example 'blob:none'). The missing objects are fetched on demand when"
+          + " needed, like the files checked out. The server needs to support partial clone.")
+  String originPartialCloneFilter = null;
+
+  @Parameter(names = "--git-origin-fetch-depth",
+      description = "If positive, the first fetch of a git.origin repository into the cache only"
+          + " downloads this number of commits. Older commits are fetched when needed.")
+  int originFetchDepth = 0;
+
   public GitOptions(String homeDir) {
     this.repoStorage = homeDir + "/.copybara/repos";
   }
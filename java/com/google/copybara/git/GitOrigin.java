@@ -21,11 +21,16 @@ import static com.google.common.base.Preconditions.checkNotNull;
 import com.google.common.base.MoreObjects;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Strings;
+import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.ImmutableSetMultimap;
 import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.copybara.CannotResolveReferenceException;
 import com.google.copybara.Change;
+import com.google.copybara.ChangeVisitable.VisitResult;
 import com.google.copybara.GeneralOptions;
 import com.google.copybara.Options;
 import com.google.copybara.Origin;
@@ -33,6 +38,7 @@ import com.google.copybara.RepoException;
 import com.google.copybara.authoring.Authoring;
 import com.google.copybara.git.ChangeReader.GitChange;
 import com.google.copybara.git.GitRepository.Submodule;
+import com.google.copybara.git.GitRepository.TreeChange;
 import com.google.copybara.git.GitRepository.TreeElement;
 import com.google.copybara.util.BadExitStatusWithOutputException;
 import com.google.copybara.util.CommandOutputWithStatus;
@@ -45,7 +51,18 @@ import com.google.devtools.build.lib.shell.CommandException;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import javax.annotation.Nullable;
 
 /**
@@ -61,7 +78,6 @@ public final class GitOrigin implements Origin<GitReference> {
     /** Download all the submodules recursively */
     RECURSIVE
   }
-  static final String GIT_LOG_COMMENT_PREFIX = "    ";
   private final GitRepository repository;
 
   /**
@@ -101,6 +117,21 @@ public final class GitOrigin implements Origin<GitReference> {
     return repository;
   }
 
+  /**
+   * Above this number of changed files a full checkout is cheaper than passing every path to
+   * {@code git checkout}.
+   */
+  private static final int MAX_INCREMENTAL_CHECKOUT_FILES = 500;
+
+  /**
+   * Number of times that a shallow history is deepened, doubling the depth each time, before
+   * fetching the complete history.
+   */
+  private static final int MAX_DEEPEN_ATTEMPTS = 5;
+
+  /** Maximum number of submodules of a checkout, at any level, checked out in parallel. */
+  private static final int MAX_SUBMODULE_THREADS = 8;
+
   private class ReaderImpl implements Reader<GitReference> {
 
     final Glob originFiles;
@@ -124,14 +155,61 @@ public final class GitOrigin implements Origin<GitReference> {
     @Override
     public void checkout(GitReference ref, Path workdir)
         throws RepoException, CannotResolveReferenceException {
-      checkoutRepo(repository, repoUrl, workdir, submoduleStrategy, ref);
+      ImmutableSet<String> roots = originFiles.roots();
+      // Only the files under the roots of origin_files are checked out, since the rest are
+      // deleted from the workdir anyway. Submodules are read from the .gitmodules file of the
+      // workdir and the checkout hook can read any file, so they need the full tree.
+      if (submoduleStrategy == SubmoduleStrategy.NO && !roots.contains("")
+          && Strings.isNullOrEmpty(gitOptions.originCheckoutHook)) {
+        repository.withWorkTree(workdir).checkoutPaths(ref, roots);
+        return;
+      }
+      SubmoduleCheckout submodules = new SubmoduleCheckout();
+      try {
+        checkoutRepo(repository, repoUrl, workdir, submoduleStrategy, ref, submodules);
+        submodules.await();
+      } finally {
+        submodules.shutdown();
+      }
       if (!Strings.isNullOrEmpty(gitOptions.originCheckoutHook)) {
         runCheckoutOrigin(workdir);
       }
     }
 
+    @Nullable
+    @Override
+    public ImmutableSet<String> checkoutChangedFiles(GitReference fromRef, GitReference ref,
+        Path workdir) throws RepoException {
+      // Submodules and checkout hooks can change files that are not part of the delta.
+      if (submoduleStrategy != SubmoduleStrategy.NO
+          || !Strings.isNullOrEmpty(gitOptions.originCheckoutHook)) {
+        return null;
+      }
+      ImmutableSet.Builder<String> changed = ImmutableSet.builder();
+      List<String> toCheckout = new ArrayList<>();
+      for (TreeChange change : repository.diffTree(fromRef, ref)) {
+        if (change.isSubmodule()) {
+          return null;
+        }
+        changed.add(change.getPath());
+        if (!change.isDeleted()) {
+          toCheckout.add(change.getPath());
+        }
+      }
+      ImmutableSet<String> result = changed.build();
+      if (result.size() > MAX_INCREMENTAL_CHECKOUT_FILES) {
+        return null;
+      }
+      repository.withWorkTree(workdir).checkoutExistingPaths(ref, toCheckout);
+      return result;
+    }
+
+    /**
+     * Checks out {@code ref} in {@code workdir} and submits the checkouts of its submodules to
+     * {@code submodules}.
+     */
     private void checkoutRepo(GitRepository repository, String currentRemoteUrl, Path workdir,
-        SubmoduleStrategy submoduleStrategy, GitReference ref)
+        SubmoduleStrategy submoduleStrategy, GitReference ref, SubmoduleCheckout submodules)
         throws RepoException, CannotResolveReferenceException {
 
       GitRepository repo = repository.withWorkTree(workdir);
@@ -139,41 +217,65 @@ public final class GitOrigin implements Origin<GitReference> {
       if (submoduleStrategy == SubmoduleStrategy.NO) {
         return;
       }
-      for (Submodule submodule : repo.listSubmodules(currentRemoteUrl)) {
-        ImmutableList<TreeElement> elements = repo.lsTree(ref, submodule.getPath());
+      ImmutableList<Submodule> repoSubmodules = ImmutableList.copyOf(
+          repo.listSubmodules(currentRemoteUrl));
+      if (repoSubmodules.isEmpty()) {
+        return;
+      }
+      // Resolve all the submodule pointers with a single ls-tree
+      Map<String, List<TreeElement>> elementsByPath = new HashMap<>();
+      for (TreeElement element : repo.lsTree(ref,
+          Lists.transform(repoSubmodules, Submodule::getPath))) {
+        elementsByPath.computeIfAbsent(element.getPath(), k -> new ArrayList<>()).add(element);
+      }
+      Map<Submodule, TreeElement> toCheckout = new LinkedHashMap<>();
+      for (Submodule submodule : repoSubmodules) {
+        List<TreeElement> elements =
+            elementsByPath.getOrDefault(submodule.getPath(), ImmutableList.of());
         if (elements.size() != 1) {
           throw new RepoException(String
               .format("Cannot find one tree element for submodule %s."
                   + " Found the following elements: %s", submodule.getPath(), elements));
         }
-        TreeElement element = Iterables.getOnlyElement(elements);
-        Preconditions.checkArgument(element.getPath().equals(submodule.getPath()));
-
-        GitRepository subRepo = GitRepository.bareRepoInCache(
-            submodule.getUrl(), environment, verbose, gitOptions.repoStorage);
-        subRepo.initGitDir();
-        subRepo.fetchSingleRef(submodule.getUrl(), submodule.getBranch());
-        GitReference submoduleRef = subRepo.resolveReference(element.getRef());
-
-        Path subdir = workdir.resolve(submodule.getPath());
-        try {
-          Files.createDirectories(workdir.resolve(submodule.getPath()));
-        } catch (IOException e) {
-          throw new RepoException(String.format(
-              "Cannot create subdirectory %s for submodule: %s", subdir, submodule));
-        }
+        toCheckout.put(submodule, Iterables.getOnlyElement(elements));
+      }
+      for (Map.Entry<Submodule, TreeElement> entry : toCheckout.entrySet()) {
+        submodules.submit(entry.getKey().getUrl(), () -> {
+          checkoutSubmodule(workdir, entry.getKey(), entry.getValue(), submoduleStrategy,
+              submodules);
+          return null;
+        });
+      }
+    }
 
-        checkoutRepo(subRepo, submodule.getUrl(), subdir,
-            submoduleStrategy == SubmoduleStrategy.RECURSIVE
-                ? SubmoduleStrategy.RECURSIVE
-                : SubmoduleStrategy.NO, submoduleRef);
+    private void checkoutSubmodule(Path workdir, Submodule submodule, TreeElement element,
+        SubmoduleStrategy submoduleStrategy, SubmoduleCheckout submodules)
+        throws RepoException, CannotResolveReferenceException {
+      GitRepository subRepo = GitRepository.bareRepoInCache(
+          submodule.getUrl(), environment, verbose, gitOptions.repoStorage);
+      subRepo.initGitDir();
+      subRepo.fetchSingleRef(submodule.getUrl(), submodule.getBranch());
+      GitReference submoduleRef = subRepo.resolveReference(element.getRef());
+
+      Path subdir = workdir.resolve(submodule.getPath());
+      try {
+        Files.createDirectories(workdir.resolve(submodule.getPath()));
+      } catch (IOException e) {
+        throw new RepoException(String.format(
+            "Cannot create subdirectory %s for submodule: %s", subdir, submodule));
       }
+
+      checkoutRepo(subRepo, submodule.getUrl(), subdir,
+          submoduleStrategy == SubmoduleStrategy.RECURSIVE
+              ? SubmoduleStrategy.RECURSIVE
+              : SubmoduleStrategy.NO, submoduleRef, submodules);
     }
 
     @Override
     public ImmutableList<Change<GitReference>> changes(@Nullable GitReference fromRef,
         GitReference toRef) throws RepoException {
 
+      fetchHistory(fromRef, toRef);
       String refRange = fromRef == null
           ? toRef.asString()
           : fromRef.asString() + ".." + toRef.asString();
@@ -193,22 +295,152 @@ public final class GitOrigin implements Origin<GitReference> {
     @Override
     public void visitChanges(GitReference start, ChangesVisitor visitor)
         throws RepoException, CannotResolveReferenceException {
-      ChangeReader queryChanges = changeReaderBuilder()
-          .setLimit(1)
-          .build();
-
-      ImmutableList<GitChange> result = queryChanges.run(start.asString());
-      if (result.isEmpty()) {
+      ChangeReader queryChanges = changeReaderBuilder().build();
+      Set<String> visited = new HashSet<>();
+      boolean[] terminated = {false};
+      ChangesVisitor recordingVisitor = change -> {
+        if (!visited.add(change.getReference().asString())) {
+          return VisitResult.CONTINUE;
+        }
+        VisitResult result = visitor.visit(change);
+        terminated[0] = result == VisitResult.TERMINATE;
+        return result;
+      };
+      if (!queryChanges.visitChanges(start.asString(), recordingVisitor)) {
         throw new CannotResolveReferenceException("Cannot resolve reference " + start.asString());
       }
-      GitChange current = Iterables.getOnlyElement(result);
-      while (current != null) {
-        if (visitor.visit(current.getChange()) == VisitResult.TERMINATE
-            || current.getParents().isEmpty()) {
-          break;
+      // The visitor reached the shallow boundary: continue with the complete history, skipping
+      // the changes already visited.
+      if (!terminated[0] && repository.isShallow()) {
+        console.progress("Git Origin: Fetching the complete history of " + repoUrl);
+        repository.deepen(repoUrl, deepenRef(start), /*depth=*/ 0);
+        queryChanges.visitChanges(start.asString(), recordingVisitor);
+      }
+    }
+
+    /**
+     * Fetches the history between {@code fromRef} and {@code toRef}, or all the history of
+     * {@code toRef} if {@code fromRef} is null, if it is not available because the repository
+     * was fetched with a depth.
+     */
+    private void fetchHistory(@Nullable GitReference fromRef, GitReference toRef)
+        throws RepoException {
+      if (!repository.isShallow()) {
+        return;
+      }
+      if (fromRef == null) {
+        console.progress("Git Origin: Fetching the complete history of " + repoUrl);
+        repository.deepen(repoUrl, deepenRef(toRef), /*depth=*/ 0);
+        return;
+      }
+      int depth = Math.max(gitOptions.originFetchDepth, 1);
+      for (int attempt = 0; ; attempt++) {
+        if (!repository.isShallow() || repository.isAncestor(fromRef, toRef)) {
+          return;
         }
-        current =
-            Iterables.getOnlyElement(queryChanges.run(current.getParents().get(0).asString()));
+        if (attempt == MAX_DEEPEN_ATTEMPTS) {
+          console.progress("Git Origin: Fetching the complete history of " + repoUrl);
+          repository.deepen(repoUrl, deepenRef(toRef), /*depth=*/ 0);
+          return;
+        }
+        depth *= 2;
+        console.progress(
+            String.format("Git Origin: Fetching %d more commits of %s", depth, repoUrl));
+        repository.deepen(repoUrl, deepenRef(toRef), depth);
+      }
+    }
+
+    /**
+     * Returns the name of the ref to deepen the history of {@code ref}: the ref of the config,
+     * since the servers that don't allow reachable SHA-1s in wants reject the fetches of a SHA-1.
+     * Falls back to the SHA-1 of {@code ref} if the config doesn't have a ref.
+     */
+    private String deepenRef(GitReference ref) {
+      return configRef != null ? configRef : ref.asString();
+    }
+  }
+
+  /**
+   * Checks out the submodules of a checkout, at all the levels, in at most
+   * {@link #MAX_SUBMODULE_THREADS} threads. Submodules with the same url share a repository of the
+   * cache, so they are checked out one after the other.
+   *
+   * <p>The tasks don't wait for the submodules that they submit, so that they never block the
+   * threads of the executor.
+   */
+  private static class SubmoduleCheckout {
+
+    /** Tasks waiting for the running task of the same url, per url being checked out. */
+    private final Map<String, Deque<Callable<Void>>> pendingByUrl = new HashMap<>();
+    private int running;
+    @Nullable private Throwable failure;
+    @Nullable private ExecutorService executor;
+
+    synchronized void submit(String url, Callable<Void> task) {
+      Deque<Callable<Void>> pending = pendingByUrl.get(url);
+      if (pending != null) {
+        pending.add(task);
+        return;
+      }
+      if (failure != null) {
+        return;
+      }
+      if (executor == null) {
+        executor = Executors.newFixedThreadPool(MAX_SUBMODULE_THREADS,
+            new ThreadFactoryBuilder()
+                .setNameFormat("copybara-submodule-%d")
+                .setDaemon(true)
+                .build());
+      }
+      pendingByUrl.put(url, new ArrayDeque<>());
+      running++;
+      executor.execute(() -> run(url, task));
+    }
+
+    private void run(String url, Callable<Void> task) {
+      Callable<Void> next = task;
+      while (next != null) {
+        try {
+          next.call();
+        } catch (Throwable e) {
+          synchronized (this) {
+            if (failure == null) {
+              failure = e;
+            }
+          }
+        }
+        synchronized (this) {
+          next = failure == null ? pendingByUrl.get(url).poll() : null;
+          if (next == null) {
+            pendingByUrl.remove(url);
+            running--;
+            notifyAll();
+          }
+        }
+      }
+    }
+
+    /** Waits until all the submodules are checked out and throws the first failure, if any. */
+    synchronized void await() throws RepoException, CannotResolveReferenceException {
+      try {
+        while (running > 0) {
+          wait();
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new RepoException("Interrupted while checking out submodules", e);
+      }
+      if (failure != null) {
+        Throwables.propagateIfInstanceOf(failure, RepoException.class);
+        Throwables.propagateIfInstanceOf(failure, CannotResolveReferenceException.class);
+        Throwables.propagateIfPossible(failure);
+        throw new RuntimeException(failure);
+      }
+    }
+
+    synchronized void shutdown() {
+      if (executor != null) {
+        executor.shutdownNow();
       }
     }
   }
@@ -287,7 +519,8 @@ public final class GitOrigin implements Origin<GitReference> {
 
     return new GitOrigin(
         options.get(GeneralOptions.class).console(),
-        GitRepository.bareRepoInCache(url, environment, verbose, gitConfig.repoStorage),
+        GitRepository.bareRepoInCache(url, environment, verbose, gitConfig.repoStorage)
+            .withFetchLimits(gitConfig.originPartialCloneFilter, gitConfig.originFetchDepth),
         url, ref, type, options.get(GitOptions.class), verbose, environment, submoduleStrategy);
   }
 
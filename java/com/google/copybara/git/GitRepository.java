@@ -19,6 +19,7 @@ package com.google.copybara.git;
 import static com.google.copybara.util.CommandUtil.executeCommand;
 
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.CharMatcher;
 import com.google.common.base.MoreObjects;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Splitter;
@@ -34,7 +35,10 @@ import com.google.common.net.PercentEscaper;
 import com.google.copybara.CannotResolveReferenceException;
 import com.google.copybara.EmptyChangeException;
 import com.google.copybara.RepoException;
+import com.google.copybara.RunScope;
 import com.google.copybara.ValidationException;
+import com.google.copybara.git.GitObjectService.GitObject;
+import com.google.copybara.git.GitObjectService.TreeEntry;
 import com.google.copybara.util.BadExitStatusWithOutputException;
 import com.google.copybara.util.CommandOutput;
 import com.google.copybara.util.CommandOutputWithStatus;
@@ -45,18 +49,30 @@ import com.google.devtools.build.lib.shell.CommandException;
 import com.google.devtools.build.lib.syntax.EvalException;
 import com.google.re2j.Matcher;
 import com.google.re2j.Pattern;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.FileSystems;
 import java.nio.file.Files;
+import java.nio.file.LinkOption;
 import java.nio.file.Path;
 import java.time.Instant;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.function.Function;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 import javax.annotation.CheckReturnValue;
 import javax.annotation.Nullable;
 
@@ -72,6 +88,9 @@ public class GitRepository {
   private static final Pattern LS_TREE_ELEMENT = Pattern.compile(
       "([0-9]{6}) (commit|tag|tree|blob) ([a-f0-9]{40})\t(.*)");
 
+  /** Mode used by git for submodule entries in a tree. */
+  static final String GITLINK_MODE = "160000";
+
   private static final Pattern SHA1_PATTERN = Pattern.compile("[a-f0-9]{7,40}");
 
   private static final Pattern FAILED_REBASE = Pattern.compile("Failed to merge in the changes");
@@ -93,6 +112,10 @@ public class GitRepository {
    * Label to be used for marking the original revision id (Git SHA-1) for migrated commits.
    */
   static final String GIT_ORIGIN_REV_ID = "GitOrigin-RevId";
+  /** Prefix of the {@code .git} file of a linked work tree, followed by its git directory. */
+  private static final String GITDIR_PREFIX = "gitdir: ";
+  private static final byte[] NO_INPUT = new byte[]{};
+  private static final String EMPTY_TREE_SHA1 = "4b825dc642cb6eb9a060e54bf8d69288fbee4904";
   private static final PercentEscaper PERCENT_ESCAPER = new PercentEscaper(
       "-_", /*plusForSpace=*/ true);
 
@@ -112,16 +135,60 @@ public class GitRepository {
   private final boolean verbose;
   private final Map<String, String> environment;
 
+  /**
+   * Lock shared by all the instances that use the same repository of the cache, so that migrations
+   * running in parallel don't modify it concurrently. Commands that only read the repository (See
+   * {@link #READ_ONLY_COMMANDS}) don't take it. Null if this repository is not in the cache.
+   */
+  @Nullable private final Object cacheLock;
+
+  /**
+   * Filter of the objects not downloaded by fetches (See {@code git fetch --filter}), or null if
+   * all the objects are fetched.
+   */
+  @Nullable private final String partialCloneFilter;
+
+  /** Number of commits downloaded by the first fetch, or zero for the complete history. */
+  private final int fetchDepth;
+
+  /**
+   * Git commands that only read objects and references. They run without {@link #cacheLock}, like
+   * {@link #streamCommand}, since git allows reading a repository while it is modified. Any other
+   * command (For example fetch, config or gc) takes it.
+   */
+  private static final ImmutableSet<String> READ_ONLY_COMMANDS = ImmutableSet.of(
+      "cat-file", "diff-tree", "for-each-ref", "log", "ls-tree", "merge-base", "rev-list",
+      "rev-parse", "show", "show-ref", "var");
+
+  /** One lock per repository of the cache. */
+  private static final ConcurrentMap<Path, Object> CACHE_LOCKS = new ConcurrentHashMap<>();
+
+  /** Url and filter of the promisor remote already configured, per git directory. */
+  private static final ConcurrentMap<Path, String> PROMISOR_CONFIGS = new ConcurrentHashMap<>();
+
+  /** Git directories where pruning of unreachable objects is already disabled. */
+  private static final Set<Path> PRUNING_DISABLED = ConcurrentHashMap.newKeySet();
+
   private static final Map<Character, StatusCode> CHAR_TO_STATUS_CODE =
       Arrays.stream(StatusCode.values())
           .collect(Collectors.toMap(StatusCode::getCode, Function.identity()));
 
   GitRepository(
       Path gitDir, @Nullable Path workTree, boolean verbose, Map<String, String> environment) {
+    this(gitDir, workTree, verbose, environment, /*cacheLock=*/ null,
+        /*partialCloneFilter=*/ null, /*fetchDepth=*/ 0);
+  }
+
+  private GitRepository(Path gitDir, @Nullable Path workTree, boolean verbose,
+      Map<String, String> environment, @Nullable Object cacheLock,
+      @Nullable String partialCloneFilter, int fetchDepth) {
     this.gitDir = Preconditions.checkNotNull(gitDir);
     this.workTree = workTree;
     this.verbose = verbose;
     this.environment = Preconditions.checkNotNull(environment);
+    this.cacheLock = cacheLock;
+    this.partialCloneFilter = partialCloneFilter;
+    this.fetchDepth = fetchDepth;
   }
 
   public static GitRepository bareRepo(Path gitDir, Map<String, String> environment,
@@ -131,12 +198,17 @@ public class GitRepository {
 
   /**
    * Create a bare repo in the cache of repos so that it can be reused between migrations.
+   *
+   * <p>Git commands that modify the repository are serialized between the instances returned for
+   * the same url, since several migrations can use the same cached repository in parallel.
    */
   static GitRepository bareRepoInCache(String url, Map<String, String> environment,
       boolean verbose, String repoStorage) {
     Path gitRepoStorage = FileSystems.getDefault().getPath(repoStorage);
     Path gitDir = gitRepoStorage.resolve(PERCENT_ESCAPER.escape(url));
-    return bareRepo(gitDir, environment, verbose);
+    return new GitRepository(gitDir, /*workTree=*/null, verbose, environment,
+        CACHE_LOCKS.computeIfAbsent(gitDir.toAbsolutePath().normalize(), k -> new Object()),
+        /*partialCloneFilter=*/ null, /*fetchDepth=*/ 0);
   }
 
   /**
@@ -191,6 +263,8 @@ public class GitRepository {
    * <p>Note that this method doesn't support fetching refspecs that contain local ref path
    * locations. IOW
    * "refs/foo" is allowed but not "refs/foo:remote/origin/foo". Wildcards are also not allowed.
+   *
+   * <p>In a {@link RunScope} each reference is fetched only once, until something is pushed.
    */
   public GitReference fetchSingleRef(String url, String ref)
       throws RepoException, CannotResolveReferenceException {
@@ -198,6 +272,20 @@ public class GitRepository {
       throw new CannotResolveReferenceException("Fetching refspecs that"
           + " contain local ref path locations or wildcards is not supported. Invalid ref: " + ref);
     }
+    // FETCH_HEAD is shared by all the instances of a repository in the cache, so no other fetch
+    // can run between the fetch and its resolution.
+    synchronized (lock()) {
+      return fetchSingleRefLocked(url, ref);
+    }
+  }
+
+  private GitReference fetchSingleRefLocked(String url, String ref)
+      throws RepoException, CannotResolveReferenceException {
+    // A complete SHA-1 always points to the same commit, so if we already have it there is
+    // nothing to fetch.
+    if (GitReference.COMPLETE_SHA1_PATTERN.matcher(ref).matches() && checkSha1Exists(ref)) {
+      return new GitReference(this, ref);
+    }
     // This is not strictly necessary for some Git repos that allow fetching from any sha1 ref, like
     // servers configured with 'git config uploadpack.allowReachableSHA1InWant true'. Unfortunately,
     // Github doesn't support it. So what we do is fetch the default refspec (see the comment
@@ -205,15 +293,52 @@ public class GitRepository {
     // If we fail to find the SHA-1 with that fetch we fetch the SHA-1 directly and hope the server
     // allows to download it.
     if (isSha1Reference(ref)) {
-      fetch(url, /*prune=*/false, /*force=*/true, ImmutableList.of());
+      // An empty ref stands for the default refspec
+      String defaultRefspecKey = fetchedRefKey(url, "");
+      if (!fetchedRefs().containsKey(defaultRefspecKey)) {
+        fetch(url, /*prune=*/false, /*force=*/true, ImmutableList.of());
+        fetchedRefs().put(defaultRefspecKey, "");
+      }
       try {
         return resolveReference(ref);
-      } catch (RepoException ignore) {
-        // Ignore, the fetch below will attempt using the SHA-1.
+      } catch (RepoException | CannotResolveReferenceException ignore) {
+        // Ignore, the fetch below will attempt using the SHA-1. For example the SHA-1 is older
+        // than the history fetched by a shallow repository.
       }
     }
+    // Other migrations of the run (Or other steps of this one) might have fetched the reference
+    // already. Reuse the commit they got instead of going to the remote again.
+    String key = fetchedRefKey(url, ref);
+    String sha1 = fetchedRefs().get(key);
+    if (sha1 != null) {
+      return new GitReference(this, sha1);
+    }
     fetch(url, /*prune=*/false, /*force=*/true, ImmutableList.of(ref));
-    return resolveReference("FETCH_HEAD");
+    GitReference fetched = resolveReference("FETCH_HEAD");
+    fetchedRefs().put(key, fetched.asString());
+    return fetched;
+  }
+
+  /**
+   * Returns the references fetched by {@link #fetchSingleRef} in the current {@link RunScope},
+   * keyed by {@link #fetchedRefKey}, with the commit that they resolved to. Outside a run nothing
+   * is remembered.
+   */
+  private static ConcurrentMap<String, String> fetchedRefs() {
+    RunScope scope = RunScope.current();
+    return scope == null
+        ? new ConcurrentHashMap<>()
+        : scope.get(FetchedRefs.class, FetchedRefs::new).refs;
+  }
+
+  private String fetchedRefKey(String url, String ref) {
+    return gitDir.toAbsolutePath().normalize() + " " + url + " " + ref;
+  }
+
+  /** Run scoped references fetched by the repositories. See {@link #fetchedRefs()}. */
+  private static final class FetchedRefs {
+
+    private final ConcurrentMap<String, String> refs = new ConcurrentHashMap<>();
   }
 
   /**
@@ -232,6 +357,12 @@ public class GitRepository {
 
     List<String> args = Lists.newArrayList("fetch", validateUrl(url));
     args.add("--verbose");
+    addFetchLimits(url, args);
+    // Once the history is shallow the fetches are incremental from the shallow boundary. Using
+    // --depth again would cut the history that was already fetched.
+    if (fetchDepth > 0 && !isShallow() && !Files.exists(gitDir.resolve("FETCH_HEAD"))) {
+      args.add("--depth=" + fetchDepth);
+    }
     if (prune) {
       args.add("-p");
     }
@@ -248,10 +379,13 @@ public class GitRepository {
       args.add(ref);
     }
 
-    ImmutableMap<String, GitReference> before = showRef();
+    // Only compare the local references that the fetch can update. Listing all of them can be
+    // expensive in repositories with many references (For example Gerrit's refs/changes/*).
+    ImmutableList<String> refPatterns = fetchedRefPatterns(refspecs);
+    ImmutableMap<String, GitReference> before = showRef(refPatterns);
     CommandOutputWithStatus output = gitAllowNonZeroExit(args);
     if (output.getTerminationStatus().success()) {
-      ImmutableMap<String, GitReference> after = showRef();
+      ImmutableMap<String, GitReference> after = showRef(refPatterns);
       return new FetchResult(before, after);
     }
     if (output.getStderr().isEmpty()
@@ -262,6 +396,151 @@ public class GitRepository {
     }
   }
 
+  /**
+   * Returns the patterns of the local references that a fetch of {@code refspecs} can update, or
+   * null if they cannot be narrowed down and all the references need to be compared.
+   */
+  @Nullable
+  private static ImmutableList<String> fetchedRefPatterns(Iterable<String> refspecs) {
+    Set<String> patterns = new LinkedHashSet<>();
+    for (String refspec : refspecs) {
+      int colon = refspec.indexOf(':');
+      // Refspecs without destination only write FETCH_HEAD
+      if (colon == -1 || colon == refspec.length() - 1) {
+        continue;
+      }
+      String destination = refspec.substring(colon + 1);
+      if (!destination.startsWith("refs/")) {
+        // Git expands the short name, so we don't know which reference is updated.
+        return null;
+      }
+      int wildcard = destination.indexOf('*');
+      patterns.add(wildcard == -1
+          ? destination
+          : destination.substring(0, destination.lastIndexOf('/', wildcard) + 1));
+    }
+    if (!patterns.isEmpty()) {
+      // Tags pointing to the fetched commits are also fetched.
+      patterns.add("refs/tags/");
+    }
+    return ImmutableList.copyOf(patterns);
+  }
+
+  /**
+   * Like {@link #showRef()} but only returns the references that match {@code patterns}, using
+   * {@code git for-each-ref} pattern semantics. If {@code patterns} is null, returns all the
+   * references.
+   */
+  private ImmutableMap<String, GitReference> showRef(@Nullable Iterable<String> patterns)
+      throws RepoException {
+    if (patterns == null) {
+      return showRef();
+    }
+    if (Iterables.isEmpty(patterns)) {
+      return ImmutableMap.of();
+    }
+    ImmutableMap.Builder<String, GitReference> result = ImmutableMap.builder();
+    List<String> args = Lists.newArrayList("for-each-ref", "--format=%(objectname) %(refname)");
+    Iterables.addAll(args, patterns);
+    for (String line : Splitter.on('\n').omitEmptyStrings().split(
+        simpleCommand(args.toArray(new String[0])).getStdout())) {
+      List<String> strings = Splitter.on(' ').splitToList(line);
+      Preconditions.checkState(strings.size() == 2
+          && SHA1_PATTERN.matcher(strings.get(0)).matches(), "Cannot parse line: '%s'", line);
+      result.put(strings.get(1), new GitReference(this, strings.get(0)));
+    }
+    return result.build();
+  }
+
+  private void addFetchLimits(String url, List<String> args) throws RepoException {
+    if (partialCloneFilter == null) {
+      return;
+    }
+    configurePromisorRemote(url);
+    args.add("--filter=" + partialCloneFilter);
+  }
+
+  /**
+   * Configures {@code url} as the promisor remote, that git uses to download on demand the
+   * objects that were not fetched. The config is only written when the repository is initialized
+   * or when the url or the filter change, not on every fetch.
+   */
+  private void configurePromisorRemote(String url) throws RepoException {
+    Path key = gitDir.toAbsolutePath().normalize();
+    String value = url + "\n" + partialCloneFilter;
+    if (value.equals(PROMISOR_CONFIGS.get(key))) {
+      return;
+    }
+    ImmutableMap<String, String> expected = ImmutableMap.of(
+        "remote.origin.url", url,
+        "remote.origin.promisor", "true",
+        "remote.origin.partialclonefilter", partialCloneFilter);
+    // Exits with 1 if none of the keys is set
+    CommandOutputWithStatus output = gitAllowNonZeroExit(
+        ImmutableList.of("config", "--get-regexp", "^remote\\.origin\\."));
+    Map<String, String> current = new HashMap<>();
+    for (String line : Splitter.on('\n').omitEmptyStrings().split(output.getStdout())) {
+      List<String> keyValue = Splitter.on(' ').limit(2).splitToList(line);
+      current.put(keyValue.get(0), keyValue.size() == 2 ? keyValue.get(1) : "");
+    }
+    for (Map.Entry<String, String> entry : expected.entrySet()) {
+      if (!entry.getValue().equals(current.get(entry.getKey()))) {
+        simpleCommand("config", entry.getKey(), entry.getValue());
+      }
+    }
+    PROMISOR_CONFIGS.put(key, value);
+  }
+
+  /**
+   * Makes {@code git gc} keep the unreachable objects of this repository, for example because other
+   * repositories use it as an alternate. Like the promisor remote, the config is only written if
+   * it is missing, and it is only read once per repository.
+   */
+  void disablePruning() throws RepoException {
+    Path key = gitDir.toAbsolutePath().normalize();
+    if (PRUNING_DISABLED.contains(key)) {
+      return;
+    }
+    // Exits with 1 if the key is not set
+    CommandOutputWithStatus output =
+        gitAllowNonZeroExit(ImmutableList.of("config", "--local", "--get", "gc.pruneExpire"));
+    if (!output.getStdout().trim().equals("never")) {
+      simpleCommand("config", "gc.pruneExpire", "never");
+    }
+    PRUNING_DISABLED.add(key);
+  }
+
+  /** Returns true if the history of this repository was truncated by a fetch with depth. */
+  boolean isShallow() {
+    return Files.exists(gitDir.resolve("shallow"));
+  }
+
+  /**
+   * Fetches {@code depth} more commits of the history of {@code ref} from {@code url}, or all its
+   * history if {@code depth} is zero.
+   *
+   * <p>{@code ref} should be a name that the remote advertises, like a branch: servers without
+   * {@code uploadpack.allowReachableSHA1InWant} reject the fetches of a SHA-1.
+   */
+  void deepen(String url, String ref, int depth) throws RepoException {
+    Preconditions.checkArgument(depth >= 0, "Invalid depth: %s", depth);
+    if (!isShallow()) {
+      return;
+    }
+    List<String> args = Lists.newArrayList("fetch", validateUrl(url));
+    addFetchLimits(url, args);
+    args.add(depth == 0 ? "--unshallow" : "--deepen=" + depth);
+    args.add(ref);
+    simpleCommand(args.toArray(new String[args.size()]));
+  }
+
+  /** Returns true if {@code ancestor} is reachable from {@code descendant}. */
+  boolean isAncestor(GitReference ancestor, GitReference descendant) throws RepoException {
+    return gitAllowNonZeroExit(ImmutableList.of(
+        "merge-base", "--is-ancestor", ancestor.asString(), descendant.asString()))
+        .getTerminationStatus().success();
+  }
+
   // TODO(team): Use JGit URIish.java
   static String validateUrl(String url) throws RepoException {
     if (!FULL_URI.matcher(url).matches()) {
@@ -301,7 +580,173 @@ public class GitRepository {
    * initialize or alter the given work tree.
    */
   public GitRepository withWorkTree(Path newWorkTree) {
-    return new GitRepository(this.gitDir, newWorkTree, this.verbose, this.environment);
+    return new GitRepository(this.gitDir, newWorkTree, this.verbose, this.environment,
+        this.cacheLock, this.partialCloneFilter, this.fetchDepth);
+  }
+
+  /**
+   * Returns an instance equivalent to this one but whose fetches don't download the objects
+   * matching {@code partialCloneFilter}, if not null, and whose first fetch only downloads
+   * {@code fetchDepth} commits, if positive. The missing objects are downloaded on demand and the
+   * missing history with {@link #deepen}.
+   */
+  GitRepository withFetchLimits(@Nullable String partialCloneFilter, int fetchDepth) {
+    Preconditions.checkArgument(fetchDepth >= 0, "Invalid fetch depth: %s", fetchDepth);
+    return new GitRepository(this.gitDir, this.workTree, this.verbose, this.environment,
+        this.cacheLock, partialCloneFilter, fetchDepth);
+  }
+
+  /**
+   * Adds a new linked work tree of this repository in {@code path}, detached at {@code ref} and
+   * without checking out any file, and returns a repository for it.
+   *
+   * <p>The new work tree has its own HEAD, index and configuration (See
+   * {@code git config --worktree}) but shares the objects and references with this repository, so
+   * the commits created in it are immediately available here.
+   */
+  GitRepository addWorktree(Path path, GitReference ref) throws RepoException {
+    // Forget the work trees whose directory was deleted
+    simpleCommand("worktree", "prune");
+    simpleCommand("config", "extensions.worktreeConfig", "true");
+    simpleCommand("worktree", "add", "--detach", "--no-checkout", path.toString(), ref.asString());
+    Path dotGit = path.resolve(".git");
+    String content;
+    try {
+      content = new String(Files.readAllBytes(dotGit), StandardCharsets.UTF_8).trim();
+    } catch (IOException e) {
+      throw new RepoException("Cannot read " + dotGit + ": " + e.getMessage(), e);
+    }
+    if (!content.startsWith(GITDIR_PREFIX)) {
+      throw new RepoException("Unexpected content in " + dotGit + ": " + content);
+    }
+    return new GitRepository(path.resolve(content.substring(GITDIR_PREFIX.length())), path,
+        verbose, environment);
+  }
+
+  /**
+   * Like {@link #addWorktree(Path, GitReference)}, but if {@code path} is already a work tree of
+   * this repository it is reused instead, so that git can use the stat information of its index
+   * for the files that don't change. Any local modification or untracked file in the reused work
+   * tree is discarded, and so is its configuration (See {@code git config --worktree}). Its HEAD
+   * is not moved to {@code ref}.
+   */
+  GitRepository reuseWorktree(Path path, GitReference ref) throws RepoException {
+    Path dotGit = path.resolve(".git");
+    try {
+      if (Files.isRegularFile(dotGit)) {
+        String content = new String(Files.readAllBytes(dotGit), StandardCharsets.UTF_8).trim();
+        Path privateGitDir = content.startsWith(GITDIR_PREFIX)
+            ? path.resolve(content.substring(GITDIR_PREFIX.length()))
+            : null;
+        if (privateGitDir != null && Files.isDirectory(privateGitDir)
+            && Files.isDirectory(gitDir.resolve("worktrees"))
+            && privateGitDir.toRealPath().startsWith(gitDir.resolve("worktrees").toRealPath())) {
+          // For example the committer of a previous migration
+          Files.deleteIfExists(privateGitDir.resolve("config.worktree"));
+          GitRepository worktree = new GitRepository(privateGitDir, path, verbose, environment);
+          worktree.simpleCommand("reset", "-q", "--hard");
+          worktree.simpleCommand("clean", "-q", "-f", "-f", "-d", "-x");
+          return worktree;
+        }
+      }
+      // 'git worktree add' needs a non-existing or empty directory
+      deleteDirectory(path);
+    } catch (IOException e) {
+      throw new RepoException("Cannot reuse work tree " + path + ": " + e.getMessage(), e);
+    }
+    return addWorktree(path, ref);
+  }
+
+  /**
+   * Removes the linked work tree in {@code path}, added with {@link #addWorktree}, discarding any
+   * local modification. Its directory is deleted and the repository forgets it, so that its HEAD
+   * and index don't keep objects from being pruned.
+   */
+  void removeWorktree(Path path) throws RepoException {
+    try {
+      simpleCommand("worktree", "remove", "--force", path.toString());
+    } finally {
+      try {
+        // In case git failed. The next 'git worktree prune' forgets it.
+        deleteDirectory(path);
+      } catch (IOException e) {
+        throw new RepoException("Cannot delete work tree " + path + ": " + e.getMessage(), e);
+      }
+    }
+  }
+
+  private static void deleteDirectory(Path path) throws IOException {
+    if (!Files.exists(path, LinkOption.NOFOLLOW_LINKS)) {
+      return;
+    }
+    try (Stream<Path> files = Files.walk(path)) {
+      for (Path file : files.sorted(Comparator.reverseOrder()).collect(Collectors.toList())) {
+        Files.delete(file);
+      }
+    }
+  }
+
+  /**
+   * Adds {@code objectDirs} as alternate object directories of this repository, so that the
+   * objects that exist in them are not stored again in this repository. See 'objects/info/
+   * alternates' in gitrepository-layout.
+   */
+  void addAlternates(Iterable<Path> objectDirs) throws RepoException {
+    Path file = gitDir.resolve("objects/info/alternates");
+    synchronized (lock()) {
+      try {
+        Set<String> alternates = new LinkedHashSet<>();
+        if (Files.exists(file)) {
+          alternates.addAll(Files.readAllLines(file, StandardCharsets.UTF_8));
+        }
+        boolean changed = false;
+        for (Path dir : objectDirs) {
+          changed |= alternates.add(dir.toAbsolutePath().normalize().toString());
+        }
+        if (!changed) {
+          return;
+        }
+        Files.createDirectories(file.getParent());
+        Files.write(file, alternates, StandardCharsets.UTF_8);
+      } catch (IOException e) {
+        throw new RepoException("Cannot write " + file + ": " + e.getMessage(), e);
+      }
+    }
+    GitObjectService.restart(gitDir);
+  }
+
+  /**
+   * Checks out in the work tree only the files of {@code ref} that are under {@code paths}. Paths
+   * that don't exist in {@code ref} are ignored. Unlike a full checkout, HEAD is not modified.
+   */
+  void checkoutPaths(GitReference ref, Iterable<String> paths) throws RepoException {
+    List<String> existing = new ArrayList<>();
+    for (String path : paths) {
+      // 'git checkout' fails for paths that don't match any file
+      if (!lsTree(ref, path).isEmpty()) {
+        existing.add(path);
+      }
+    }
+    checkoutExistingPaths(ref, existing);
+  }
+
+  /**
+   * Like {@link #checkoutPaths} but every path in {@code paths} must exist in {@code ref}.
+   */
+  void checkoutExistingPaths(GitReference ref, Collection<String> paths) throws RepoException {
+    if (paths.isEmpty()) {
+      return;
+    }
+    List<String> args = Lists.newArrayList(
+        "--literal-pathspecs", "checkout", "-q", "-f", ref.asString(), "--");
+    args.addAll(paths);
+    synchronized (lock()) {
+      // The checkout reads the .gitattributes files from the index, so it needs all the ones of
+      // ref, including the ones outside of paths, and none of other refs checked out before with
+      // the same index.
+      simpleCommand("read-tree", ref.asString());
+      simpleCommand(args.toArray(new String[args.size()]));
+    }
   }
 
   /**
@@ -381,6 +826,33 @@ public class GitRepository {
     return new AddCmd(/*force*/false, /*all*/false, /*files*/ImmutableSet.of());
   }
 
+  /**
+   * Updates in the index {@code paths}, relative to the work tree, and adds the {@code gitlinks}
+   * (Submodule path to SHA-1 of the submodule commit). Paths that don't exist in the work tree
+   * are removed from the index. Like {@code git add --force}, ignored files are also added.
+   *
+   * <p>The paths are passed through stdin, so any number of them is added by a single git process.
+   */
+  void updateIndex(Iterable<String> paths, Map<String, String> gitlinks) throws RepoException {
+    if (Iterables.isEmpty(paths) && gitlinks.isEmpty()) {
+      return;
+    }
+    List<String> params = Lists.newArrayList("update-index", "--add", "--remove", "--replace");
+    for (Map.Entry<String, String> gitlink : gitlinks.entrySet()) {
+      params.addAll(ImmutableList.of(
+          "--cacheinfo", GITLINK_MODE, gitlink.getValue(), gitlink.getKey()));
+    }
+    params.add("-z");
+    params.add("--stdin");
+    ByteArrayOutputStream input = new ByteArrayOutputStream();
+    for (String path : paths) {
+      byte[] bytes = path.getBytes(StandardCharsets.UTF_8);
+      input.write(bytes, 0, bytes.length);
+      input.write(0);
+    }
+    git(getCwd(), addGitDirAndWorkTreeParams(params), input.toByteArray());
+  }
+
   /**
    * Get a field from a configuration {@code file} relative to {@link #getWorkTree()}.
    */
@@ -422,13 +894,62 @@ public class GitRepository {
 
   void commit(String author, Instant timestamp, String message)
       throws RepoException, ValidationException {
-    CommandOutput status = simpleCommand("diff", "--staged");
-    if (status.getStdout().trim().isEmpty()) {
+    writeTreeToCommit();
+    commitIndex(author, timestamp, message);
+  }
+
+  /**
+   * Like {@link #commit(String, Instant, String)} but doesn't check if the change is empty. See
+   * {@link #writeTreeToCommit()}.
+   */
+  void commitIndex(String author, Instant timestamp, String message) throws RepoException {
+    simpleCommand("commit", "--author", author,
+        "--date", timestamp.getEpochSecond() + " +0000", "-m", message);
+  }
+
+  /**
+   * Writes the index as a tree object and returns its SHA-1.
+   *
+   * @throws EmptyChangeException if it is the tree of HEAD, since committing it would create an
+   *     empty change
+   */
+  String writeTreeToCommit() throws RepoException, ValidationException {
+    String tree = writeTree();
+    // Comparing the tree ids is cheaper than computing the staged diff
+    if (tree.equals(headTree())) {
       throw new EmptyChangeException("Migration of the revision resulted in an empty change. "
           + "Is the change already migrated?");
     }
-    simpleCommand("commit", "--author", author,
-        "--date", timestamp.getEpochSecond() + " +0000", "-m", message);
+    return tree;
+  }
+
+  /** Returns the SHA-1 of the HEAD commit, or null if there is no commit yet. */
+  @Nullable
+  String headCommit() throws RepoException {
+    // Not resolved with objects(): the cat-file process can't see refs that change after it starts
+    CommandOutputWithStatus output = gitAllowNonZeroExit(
+        ImmutableList.of("rev-parse", "--verify", "-q", "HEAD^0"));
+    return output.getTerminationStatus().success() ? output.getStdout().trim() : null;
+  }
+
+  /** Writes the index as a tree object and returns its SHA-1. */
+  String writeTree() throws RepoException {
+    return simpleCommand("write-tree").getStdout().trim();
+  }
+
+  /** Returns the SHA-1 of the tree of HEAD, or the empty tree if there is no commit yet. */
+  private String headTree() throws RepoException {
+    CommandOutputWithStatus output = gitAllowNonZeroExit(
+        ImmutableList.of("rev-parse", "--verify", "-q", "HEAD^{tree}"));
+    return output.getTerminationStatus().success()
+        ? output.getStdout().trim()
+        : EMPTY_TREE_SHA1;
+  }
+
+  /** Returns the paths of the files tracked in the index. */
+  ImmutableSet<String> lsFiles() throws RepoException {
+    return ImmutableSet.copyOf(Splitter.on('\0').omitEmptyStrings().split(
+        simpleCommand("ls-files", "-z").getStdout()));
   }
 
   public List<StatusFile> status() throws RepoException {
@@ -510,8 +1031,28 @@ public class GitRepository {
   }
 
   ImmutableList<TreeElement> lsTree(GitReference reference, String treeish) throws RepoException {
+    if (isPlainPath(treeish)) {
+      return lsTreeEntry(reference, treeish);
+    }
+    return parseLsTree(simpleCommand("ls-tree", reference.asString(), treeish).getStdout());
+  }
+
+  /**
+   * Returns the tree elements of {@code reference} for all the {@code paths}, using a single
+   * {@code ls-tree} execution.
+   */
+  ImmutableList<TreeElement> lsTree(GitReference reference, Collection<String> paths)
+      throws RepoException {
+    if (paths.isEmpty()) {
+      return ImmutableList.of();
+    }
+    List<String> args = Lists.newArrayList("ls-tree", reference.asString(), "--");
+    args.addAll(paths);
+    return parseLsTree(simpleCommand(args.toArray(new String[args.size()])).getStdout());
+  }
+
+  private ImmutableList<TreeElement> parseLsTree(String stdout) throws RepoException {
     ImmutableList.Builder<TreeElement> result = ImmutableList.builder();
-    String stdout = simpleCommand("ls-tree", reference.asString(), treeish).getStdout();
     for (String line : Splitter.on('\n').split(stdout)) {
       if (line.isEmpty()) {
         continue;
@@ -532,6 +1073,75 @@ public class GitRepository {
     return result.build();
   }
 
+  /**
+   * Returns true if {@code path} names exactly one entry of a tree, so that {@code ls-tree} would
+   * list at most that entry.
+   */
+  private static boolean isPlainPath(String path) {
+    if (path.isEmpty() || path.startsWith("/") || path.endsWith("/")
+        || CharMatcher.anyOf("*?[\\\n").matchesAnyOf(path)) {
+      return false;
+    }
+    for (String segment : Splitter.on('/').split(path)) {
+      if (segment.isEmpty() || segment.equals(".") || segment.equals("..")) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Equivalent to {@code ls-tree <reference> <path>} for a plain path, but reading the parent
+   * tree with {@link GitObjectService} instead of executing a new git process.
+   */
+  private ImmutableList<TreeElement> lsTreeEntry(GitReference reference, String path)
+      throws RepoException {
+    int slash = path.lastIndexOf('/');
+    String parent = slash < 0
+        ? reference.asString() + "^{tree}"
+        : reference.asString() + ":" + path.substring(0, slash);
+    GitObject tree = objects().read(parent);
+    if (tree == null) {
+      if (objects().info(reference.asString()) == null) {
+        throw new RepoException("Cannot find reference '" + reference.asString() + "'");
+      }
+      return ImmutableList.of();
+    }
+    if (tree.getInfo().getType() != GitObjectType.TREE) {
+      return ImmutableList.of();
+    }
+    String name = path.substring(slash + 1);
+    for (TreeEntry entry : tree.parseTree()) {
+      if (entry.getName().equals(name)) {
+        return ImmutableList.of(new TreeElement(entry.getType(), entry.getSha1(), path));
+      }
+    }
+    return ImmutableList.of();
+  }
+
+  /**
+   * Returns the files that differ between the trees of {@code from} and {@code to}. Renames are
+   * reported as a deletion and an addition.
+   */
+  ImmutableList<TreeChange> diffTree(GitReference from, GitReference to) throws RepoException {
+    ImmutableList.Builder<TreeChange> result = ImmutableList.builder();
+    String stdout = simpleCommand("diff-tree", "-r", "-z", "--no-renames",
+        from.asString(), to.asString()).getStdout();
+    // Entries look like ":<old mode> <new mode> <old sha1> <new sha1> <status>\0<path>\0"
+    Iterator<String> fields = Splitter.on('\0').omitEmptyStrings().split(stdout).iterator();
+    while (fields.hasNext()) {
+      String header = fields.next();
+      List<String> parts = Splitter.on(' ').splitToList(header);
+      if (!header.startsWith(":") || parts.size() != 5 || !fields.hasNext()) {
+        throw new RepoException("Unexpected format for diff-tree output: " + header);
+      }
+      String newMode = parts.get(1);
+      result.add(new TreeChange(fields.next(), parts.get(4).equals("D"),
+          parts.get(0).equals(GITLINK_MODE) || newMode.equals(GITLINK_MODE)));
+    }
+    return result.build();
+  }
+
   private String siblingUrl(String currentRemoteUrl, String submoduleName, String relativeUrl)
       throws RepoException {
     int idx = currentRemoteUrl.lastIndexOf('/');
@@ -567,7 +1177,7 @@ public class GitRepository {
 
   /**
    * Initializes the {@code .git} directory of this repository as a new repository with zero
-   * commits.
+   * commits. Does nothing if the directory is already a git repository.
    */
   public void initGitDir() throws RepoException {
     try {
@@ -575,7 +1185,12 @@ public class GitRepository {
     } catch (IOException e) {
       throw new RepoException("Cannot create git directory '" + gitDir + "': " + e.getMessage(), e);
     }
-
+    // Already initialized (For example a repository in the cache). No need to run 'git init' again.
+    if (Files.exists(gitDir.resolve("HEAD"))) {
+      return;
+    }
+    PROMISOR_CONFIGS.remove(gitDir.toAbsolutePath().normalize());
+    PRUNING_DISABLED.remove(gitDir.toAbsolutePath().normalize());
     git(gitDir, ImmutableList.of("init", "--bare"));
   }
 
@@ -622,29 +1237,59 @@ public class GitRepository {
    * @param params params the argv to pass to Git, excluding the initial {@code git}
    */
   private CommandOutput git(Path cwd, Iterable<String> params) throws RepoException {
+    return git(cwd, params, NO_INPUT);
+  }
+
+  /**
+   * Like {@link #git(Path, Iterable)} but writes {@code input} to the stdin of the command.
+   */
+  private CommandOutput git(Path cwd, Iterable<String> params, byte[] input)
+      throws RepoException {
     try {
-      return executeGit(cwd, params, environment, verbose);
+      return executeGitLocked(cwd, params, input);
     } catch (BadExitStatusWithOutputException e) {
       CommandOutputWithStatus output = e.getOutput();
-
-      for (Pattern error : REF_NOT_FOUND_ERRORS) {
-        Matcher matcher = error.matcher(output.getStderr());
-        if (matcher.find()) {
-          throw new RepoException(
-              "Cannot find reference '" + matcher.group(1) + "'");
-        }
-      }
-
-      throw throwUnknownGitError(output);
+      throw gitError(output.getTerminationStatus().getExitCode(), output.getStderr());
     } catch (CommandException e) {
       throw new RepoException("Error executing 'git': " + e.getMessage(), e);
     }
   }
 
+  /**
+   * Returns the exception for a git command that failed with {@code exitCode}.
+   */
+  static RepoException gitError(int exitCode, String stderr) {
+    for (Pattern error : REF_NOT_FOUND_ERRORS) {
+      Matcher matcher = error.matcher(stderr);
+      if (matcher.find()) {
+        return new RepoException(
+            "Cannot find reference '" + matcher.group(1) + "'");
+      }
+    }
+    return unknownGitError(exitCode, stderr);
+  }
+
   private RepoException throwUnknownGitError(CommandOutputWithStatus output) throws RepoException {
-    throw new RepoException(
-        "Error executing 'git'(exit code " + output.getTerminationStatus().getExitCode() + ")"
-            + ". Stderr: \n" + output.getStderr());
+    throw unknownGitError(output.getTerminationStatus().getExitCode(), output.getStderr());
+  }
+
+  private static RepoException unknownGitError(int exitCode, String stderr) {
+    return new RepoException(
+        "Error executing 'git'(exit code " + exitCode + ")" + ". Stderr: \n" + stderr);
+  }
+
+  /**
+   * Like {@link #simpleCommand}, but returns the running command so that its output can be read
+   * while it is produced. The caller must close the returned command.
+   *
+   * <p>Unlike other commands, streamed commands are not serialized with the other commands
+   * executed on a cached repository, so they should only read from the repository.
+   */
+  StreamingGitCommand streamCommand(String... argv) throws RepoException {
+    List<String> allParams = new ArrayList<>();
+    allParams.add(resolveGitBinary(environment));
+    allParams.addAll(addGitDirAndWorkTreeParams(Arrays.asList(argv)));
+    return StreamingGitCommand.start(allParams, environment, getCwd(), verbose);
   }
 
   /**
@@ -655,7 +1300,7 @@ public class GitRepository {
   private CommandOutputWithStatus gitAllowNonZeroExit(Iterable<String> params)
       throws RepoException {
     try {
-      return executeGit(getCwd(), addGitDirAndWorkTreeParams(params), environment, verbose);
+      return executeGitLocked(getCwd(), addGitDirAndWorkTreeParams(params), NO_INPUT);
     } catch (BadExitStatusWithOutputException e) {
       CommandOutputWithStatus output = e.getOutput();
       int exitCode = e.getOutput().getTerminationStatus().getExitCode();
@@ -668,13 +1313,57 @@ public class GitRepository {
     }
   }
 
+  private CommandOutputWithStatus executeGitLocked(Path cwd, Iterable<String> params,
+      byte[] input) throws CommandException {
+    String subcommand = subcommand(params);
+    if ("push".equals(subcommand)) {
+      // The references fetched before might point to other commits now
+      fetchedRefs().clear();
+    }
+    if (cacheLock == null || READ_ONLY_COMMANDS.contains(subcommand)) {
+      return executeGit(cwd, params, environment, verbose, input);
+    }
+    synchronized (cacheLock) {
+      return executeGit(cwd, params, environment, verbose, input);
+    }
+  }
+
+  /** Returns the git command in {@code params}, skipping the global options before it. */
+  @Nullable
+  private static String subcommand(Iterable<String> params) {
+    Iterator<String> iterator = params.iterator();
+    while (iterator.hasNext()) {
+      String param = iterator.next();
+      if ((param.equals("-c") || param.equals("-C")) && iterator.hasNext()) {
+        iterator.next();
+      } else if (!param.startsWith("-")) {
+        return param;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Returns the lock for operations that execute several commands that cannot be interleaved with
+   * the commands that modify the repository in other instances. Those commands take the lock too,
+   * but monitors are reentrant.
+   */
+  private Object lock() {
+    return cacheLock != null ? cacheLock : this;
+  }
+
   private static CommandOutputWithStatus executeGit(Path cwd, Iterable<String> params,
       Map<String, String> env, boolean verbose) throws CommandException {
+    return executeGit(cwd, params, env, verbose, NO_INPUT);
+  }
+
+  private static CommandOutputWithStatus executeGit(Path cwd, Iterable<String> params,
+      Map<String, String> env, boolean verbose, byte[] input) throws CommandException {
     List<String> allParams = new ArrayList<>(Iterables.size(params) + 1);
     allParams.add(resolveGitBinary(env));
     Iterables.addAll(allParams, params);
     return executeCommand(new Command(
-        Iterables.toArray(allParams, String.class), env, cwd.toFile()), verbose);
+        Iterables.toArray(allParams, String.class), env, cwd.toFile()), input, verbose);
   }
 
   /**
@@ -727,17 +1416,19 @@ public class GitRepository {
 
   /**
    * Checks if a SHA-1 object exist in the the repository
+   *
+   * @throws RepoException if {@code reference} is a short SHA-1 that matches several objects
    */
   private boolean checkSha1Exists(String reference) throws RepoException {
-    CommandOutputWithStatus output = gitAllowNonZeroExit(
-        ImmutableList.of("cat-file", "-e", reference));
-    if (output.getTerminationStatus().success()) {
-      return true;
-    }
-    if (output.getStderr().isEmpty()) {
-      return false;
-    }
-    throw throwUnknownGitError(output);
+    return objects().info(reference) != null;
+  }
+
+  /**
+   * Returns the service for reading objects of this repository without executing a git process
+   * per object.
+   */
+  private GitObjectService objects() {
+    return GitObjectService.forGitDir(gitDir, environment);
   }
 
   /**
@@ -747,7 +1438,7 @@ public class GitRepository {
     return new GitReference(this, ref);
   }
 
-  private boolean isSha1Reference(String ref) {
+  static boolean isSha1Reference(String ref) {
     return SHA1_PATTERN.matcher(ref).matches();
   }
 
@@ -841,6 +1532,45 @@ public class GitRepository {
     }
   }
 
+  /**
+   * A file that changed between two trees, as reported by {@link #diffTree}.
+   */
+  static class TreeChange {
+
+    private final String path;
+    private final boolean deleted;
+    private final boolean submodule;
+
+    private TreeChange(String path, boolean deleted, boolean submodule) {
+      this.path = Preconditions.checkNotNull(path);
+      this.deleted = deleted;
+      this.submodule = submodule;
+    }
+
+    String getPath() {
+      return path;
+    }
+
+    /** True if the file doesn't exist in the new tree. */
+    boolean isDeleted() {
+      return deleted;
+    }
+
+    /** True if the entry is a submodule in the old or in the new tree. */
+    boolean isSubmodule() {
+      return submodule;
+    }
+
+    @Override
+    public String toString() {
+      return MoreObjects.toStringHelper(this)
+          .add("path", path)
+          .add("deleted", deleted)
+          .add("submodule", submodule)
+          .toString();
+    }
+  }
+
   enum GitObjectType {
     BLOB,
     COMMIT,
@@ -0,0 +1,197 @@
+/*
+ * Copyright (C) 2016 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.copybara.git;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.base.Joiner;
+import com.google.common.base.Stopwatch;
+import com.google.copybara.RepoException;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.Nullable;
+
+/**
+ * A git command whose output is consumed while it runs, instead of being buffered in memory
+ * like {@link GitRepository#simpleCommand}.
+ *
+ * <p>Closing the command before its output is fully read kills the process. This allows to stop
+ * commands like {@code git log} as soon as the caller has found what it needs.
+ */
+final class StreamingGitCommand implements AutoCloseable {
+
+  private static final Logger logger = Logger.getLogger(StreamingGitCommand.class.getName());
+
+  private final List<String> argv;
+  private final boolean verbose;
+  private final Process process;
+  private final Path stderrFile;
+  private final TrackingInputStream stdout;
+  private final Stopwatch stopwatch = Stopwatch.createStarted();
+
+  private StreamingGitCommand(List<String> argv, boolean verbose, Process process,
+      Path stderrFile) {
+    this.argv = argv;
+    this.verbose = verbose;
+    this.process = process;
+    this.stderrFile = stderrFile;
+    this.stdout = new TrackingInputStream(new BufferedInputStream(process.getInputStream()));
+  }
+
+  /**
+   * Starts {@code argv}, where the first element is the git binary, in {@code cwd}.
+   */
+  static StreamingGitCommand start(List<String> argv, Map<String, String> environment,
+      Path cwd, boolean verbose) throws RepoException {
+    String startMsg = "Executing [" + Joiner.on(' ').join(argv) + "]";
+    logger.log(Level.INFO, startMsg);
+    if (verbose) {
+      System.err.println(startMsg);
+    }
+    Path stderrFile = null;
+    try {
+      // Stderr goes to a file so that the process never blocks on it while we read stdout
+      stderrFile = Files.createTempFile("git-stderr", ".txt");
+      ProcessBuilder builder = new ProcessBuilder(argv)
+          .directory(cwd.toFile())
+          .redirectError(stderrFile.toFile());
+      builder.environment().clear();
+      builder.environment().putAll(environment);
+      return new StreamingGitCommand(argv, verbose, builder.start(), stderrFile);
+    } catch (IOException e) {
+      deleteQuietly(stderrFile);
+      throw new RepoException("Error executing 'git': " + e.getMessage(), e);
+    }
+  }
+
+  /**
+   * The output of the command.
+   */
+  InputStream getStdout() {
+    return stdout;
+  }
+
+  /**
+   * Reads from the output until {@code delimiter} or the end of the output, and returns the
+   * bytes read as a UTF-8 string, excluding the delimiter. Returns null if the output was already
+   * at its end.
+   */
+  @Nullable
+  String readUntil(char delimiter) throws RepoException {
+    ByteArrayOutputStream field = new ByteArrayOutputStream();
+    try {
+      int c;
+      while ((c = stdout.read()) != delimiter) {
+        if (c < 0) {
+          return field.size() == 0 ? null : new String(field.toByteArray(), UTF_8);
+        }
+        field.write(c);
+      }
+    } catch (IOException e) {
+      throw new RepoException("Error reading the output of 'git': " + e.getMessage(), e);
+    }
+    return new String(field.toByteArray(), UTF_8);
+  }
+
+  /**
+   * Waits for the command to finish if all its output was read, or kills it otherwise.
+   *
+   * @throws RepoException if the output was fully read and the command failed. The message
+   *     contains the error reported by git.
+   */
+  @Override
+  public void close() throws RepoException {
+    try {
+      if (!stdout.finished) {
+        process.destroy();
+        logFinished("(Killed before finishing)");
+        return;
+      }
+      int exitCode = process.waitFor();
+      logFinished("Exit " + exitCode);
+      if (exitCode != 0) {
+        throw GitRepository.gitError(exitCode,
+            new String(Files.readAllBytes(stderrFile), UTF_8));
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      process.destroy();
+      throw new RepoException("Interrupted while waiting for 'git'", e);
+    } catch (IOException e) {
+      throw new RepoException("Error reading the errors of 'git': " + e.getMessage(), e);
+    } finally {
+      try {
+        stdout.close();
+      } catch (IOException e) {
+        logger.log(Level.WARNING, "Cannot close the output of 'git'", e);
+      }
+      deleteQuietly(stderrFile);
+    }
+  }
+
+  private void logFinished(String status) {
+    String finishMsg = "Command '" + argv.get(0) + "' finished in " + stopwatch + ". " + status;
+    logger.log(Level.INFO, finishMsg);
+    if (verbose) {
+      System.err.println(finishMsg);
+    }
+  }
+
+  private static void deleteQuietly(@Nullable Path file) {
+    if (file == null) {
+      return;
+    }
+    try {
+      Files.deleteIfExists(file);
+    } catch (IOException e) {
+      logger.log(Level.WARNING, "Cannot delete " + file, e);
+    }
+  }
+
+  /** Records if the end of the stream was reached. */
+  private static final class TrackingInputStream extends FilterInputStream {
+
+    private boolean finished;
+
+    private TrackingInputStream(InputStream in) {
+      super(in);
+    }
+
+    @Override
+    public int read() throws IOException {
+      int result = super.read();
+      finished |= result < 0;
+      return result;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      int result = super.read(b, off, len);
+      finished |= result < 0;
+      return result;
+    }
+  }
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright (C) 2016 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.copybara.git;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.io.ByteStreams;
+import com.google.copybara.RepoException;
+import com.google.copybara.util.Glob;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Stream;
+
+/**
+ * Updates the work tree and the index of a Git repo, that contain the files of the current
+ * commit, so that they contain the files of a new directory. Only the files that differ are
+ * copied and hashed by git.
+ *
+ * <p>Files not matching the destination files glob that are already tracked are kept, like
+ * {@link AddExcludedFilesToIndex} does.
+ */
+final class UpdateChangedFilesInIndex {
+
+  private final GitRepository repo;
+  private final PathMatcher destinationFiles;
+
+  UpdateChangedFilesInIndex(GitRepository repo, Glob destinationFilesGlob) {
+    this.repo = repo;
+    this.destinationFiles = destinationFilesGlob.relativeTo(repo.getWorkTree());
+  }
+
+  /**
+   * Updates the work tree and the index with the files in {@code source}.
+   *
+   * @return the number of files that were updated or removed
+   */
+  int update(Path source) throws RepoException, IOException {
+    Path workTree = repo.getWorkTree();
+    ImmutableSet<String> tracked = repo.lsFiles();
+
+    ChangedFilesFinder visitor = new ChangedFilesFinder(source, workTree, tracked);
+    Files.walkFileTree(source, visitor);
+
+    List<String> changed = new ArrayList<>();
+    for (String path : tracked) {
+      if (!visitor.sourceFiles.contains(path)
+          && destinationFiles.matches(workTree.resolve(path))) {
+        Path file = workTree.resolve(path);
+        if (Files.isDirectory(file, LinkOption.NOFOLLOW_LINKS)) {
+          // Not initialized submodule
+          if (isEmptyDirectory(file)) {
+            Files.delete(file);
+          }
+        } else {
+          Files.deleteIfExists(file);
+        }
+        changed.add(path);
+      }
+    }
+    for (String path : visitor.changed) {
+      Path target = workTree.resolve(path);
+      Files.createDirectories(target.getParent());
+      Files.copy(source.resolve(path), target, LinkOption.NOFOLLOW_LINKS,
+          StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.COPY_ATTRIBUTES);
+      changed.add(path);
+    }
+    repo.updateIndex(changed, ImmutableMap.of());
+    return changed.size();
+  }
+
+  private static boolean isEmptyDirectory(Path dir) throws IOException {
+    try (Stream<Path> files = Files.list(dir)) {
+      return !files.findAny().isPresent();
+    }
+  }
+
+  private final class ChangedFilesFinder extends SimpleFileVisitor<Path> {
+
+    private final Path source;
+    private final Path workTree;
+    private final ImmutableSet<String> tracked;
+    private final Set<String> sourceFiles = new HashSet<>();
+    private final List<String> changed = new ArrayList<>();
+
+    private ChangedFilesFinder(Path source, Path workTree, ImmutableSet<String> tracked) {
+      this.source = source;
+      this.workTree = workTree;
+      this.tracked = tracked;
+    }
+
+    @Override
+    public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+      String path = source.relativize(file).toString();
+      Path target = workTree.resolve(path);
+      if (tracked.contains(path) && !destinationFiles.matches(target)) {
+        // The destination version is kept
+        return FileVisitResult.CONTINUE;
+      }
+      sourceFiles.add(path);
+      if (!tracked.contains(path) || !sameFile(file, target)) {
+        changed.add(path);
+      }
+      return FileVisitResult.CONTINUE;
+    }
+  }
+
+  /** Returns true if git would store the same content and mode for both files. */
+  private static boolean sameFile(Path file, Path other) throws IOException {
+    if (Files.isSymbolicLink(file) || Files.isSymbolicLink(other)) {
+      return Files.isSymbolicLink(file) && Files.isSymbolicLink(other)
+          && Files.readSymbolicLink(file).equals(Files.readSymbolicLink(other));
+    }
+    return Files.isRegularFile(other, LinkOption.NOFOLLOW_LINKS)
+        && Files.isExecutable(file) == Files.isExecutable(other)
+        && Files.size(file) == Files.size(other)
+        && sameContent(file, other);
+  }
+
+  private static boolean sameContent(Path file, Path other) throws IOException {
+    byte[] buffer = new byte[8192];
+    byte[] otherBuffer = new byte[8192];
+    try (InputStream in = Files.newInputStream(file);
+        InputStream otherIn = Files.newInputStream(other)) {
+      while (true) {
+        int read = ByteStreams.read(in, buffer, 0, buffer.length);
+        int otherRead = ByteStreams.read(otherIn, otherBuffer, 0, otherBuffer.length);
+        // After a short read the rest of both buffers still has the equal previous chunk
+        if (read != otherRead || !Arrays.equals(buffer, otherBuffer)) {
+          return false;
+        }
+        if (read < buffer.length) {
+          return true;
+        }
+      }
+    }
+  }
+}
@@ -18,7 +18,9 @@ package com.google.copybara.testing;
 
 import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
 import com.google.common.jimfs.Jimfs;
 import com.google.copybara.CannotResolveReferenceException;
 import com.google.copybara.authoring.Author;
@@ -37,7 +39,10 @@ import java.nio.file.SimpleFileVisitor;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.time.Instant;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import javax.annotation.Nullable;
 
 /**
@@ -143,6 +148,43 @@ public class DummyOrigin implements Origin<DummyReference> {
       }
     }
 
+    @Override
+    public ImmutableSet<String> checkoutChangedFiles(DummyReference fromRef, DummyReference ref,
+        Path workdir) throws RepoException {
+      try {
+        Map<String, byte[]> before = readFiles(fromRef.changesBase);
+        Map<String, byte[]> after = readFiles(ref.changesBase);
+        ImmutableSet.Builder<String> changed = ImmutableSet.builder();
+        for (String path : Sets.union(before.keySet(), after.keySet())) {
+          if (after.containsKey(path) && Arrays.equals(before.get(path), after.get(path))) {
+            continue;
+          }
+          changed.add(path);
+          if (after.containsKey(path)) {
+            Path destination = workdir.resolve(path);
+            Files.createDirectories(destination.getParent());
+            Files.write(destination, after.get(path));
+          }
+        }
+        return changed.build();
+      } catch (IOException e) {
+        throw new RepoException("Error copying files", e);
+      }
+    }
+
+    private Map<String, byte[]> readFiles(Path changesBase) throws IOException {
+      Map<String, byte[]> files = new HashMap<>();
+      Files.walkFileTree(changesBase, new SimpleFileVisitor<Path>() {
+        @Override
+        public FileVisitResult visitFile(Path file, BasicFileAttributes attrs)
+            throws IOException {
+          files.put(changesBase.relativize(file).toString(), Files.readAllBytes(file));
+          return FileVisitResult.CONTINUE;
+        }
+      });
+      return files;
+    }
+
     @Override
     public ImmutableList<Change<DummyReference>> changes(
         DummyReference oldRef, @Nullable DummyReference newRef) throws RepoException {
@@ -22,6 +22,7 @@ import com.google.copybara.TransformWork;
 import com.google.copybara.Transformation;
 import com.google.copybara.ValidationException;
 import java.io.IOException;
+import javax.annotation.Nullable;
 
 /**
  * A transformation which delegates to some arbitrary transformation and reverses to some arbitrary
@@ -53,6 +54,17 @@ public final class ExplicitReversal implements Transformation {
     return forward.describe();
   }
 
+  @Override
+  public boolean isFileLocal() {
+    return forward.isFileLocal();
+  }
+
+  @Nullable
+  @Override
+  public String fingerprint() {
+    return forward.fingerprint();
+  }
+
   @Override
   public String toString() {
     return MoreObjects.toStringHelper(this)
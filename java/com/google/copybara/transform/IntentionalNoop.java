@@ -38,4 +38,15 @@ public enum IntentionalNoop implements Transformation {
   public String describe() {
     return "no-op";
   }
+
+  @Override
+  public boolean isFileLocal() {
+    return true;
+  }
+
+  @Override
+  public String fingerprint() {
+    // Doesn't modify files
+    return "";
+  }
 }
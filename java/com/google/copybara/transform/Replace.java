@@ -19,6 +19,7 @@ package com.google.copybara.transform;
 import com.google.common.base.MoreObjects;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Ordering;
 import com.google.copybara.NonReversibleValidationException;
 import com.google.copybara.TransformWork;
 import com.google.copybara.Transformation;
@@ -102,7 +103,9 @@ public final class Replace implements Transformation {
         before.replacer(after, firstOnly, multiline),
         fileMatcherBuilder.relativeTo(checkoutDir));
     Files.walkFileTree(checkoutDir, visitor);
-    if (!visitor.somethingWasChanged) {
+    visitor.replaceMatchedFiles();
+    // In incremental mode only a few files are in the checkout dir, so not matching is expected.
+    if (!visitor.somethingWasChanged && !work.isIncremental()) {
       workflowOptions.reportNoop(
           work.getConsole(),
           "Transformation '" + toString() + "' was a no-op. It didn't affect the workdir.");
@@ -116,6 +119,27 @@ public final class Replace implements Transformation {
     return "Replace " + before;
   }
 
+  @Override
+  public boolean isFileLocal() {
+    return true;
+  }
+
+  @Override
+  public String fingerprint() {
+    StringBuilder result = new StringBuilder("core.replace")
+        .append("\0before=").append(before.getTemplate())
+        .append("\0after=").append(after.getTemplate());
+    for (String group : Ordering.natural().sortedCopy(regexGroups.keySet())) {
+      result.append("\0group.").append(group).append('=').append(regexGroups.get(group).pattern());
+    }
+    return result
+        .append("\0firstOnly=").append(firstOnly)
+        .append("\0multiline=").append(multiline)
+        .append("\0repeatedGroups=").append(repeatedGroups)
+        .append("\0paths=").append(fileMatcherBuilder)
+        .toString();
+  }
+
   @Override
   public Replace reverse() throws NonReversibleValidationException {
     try {
@@ -20,6 +20,7 @@ import static java.nio.charset.StandardCharsets.UTF_8;
 
 import com.google.common.base.Preconditions;
 import com.google.copybara.transform.TemplateTokens.Replacer;
+import com.google.copybara.util.FileUtil;
 import java.io.IOException;
 import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
@@ -27,6 +28,8 @@ import java.nio.file.Path;
 import java.nio.file.PathMatcher;
 import java.nio.file.SimpleFileVisitor;
 import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -37,6 +40,8 @@ final class ReplaceVisitor extends SimpleFileVisitor<Path> {
   private final Replacer replacer;
   private final PathMatcher pathMatcher;
 
+  private final List<Path> matchedFiles = new ArrayList<>();
+
   boolean somethingWasChanged;
 
   ReplaceVisitor(Replacer replacer, PathMatcher pathMatcher) {
@@ -46,18 +51,26 @@ final class ReplaceVisitor extends SimpleFileVisitor<Path> {
 
   @Override
   public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
-    if (!Files.isRegularFile(file) || !pathMatcher.matches(file)) {
-      return FileVisitResult.CONTINUE;
+    if (Files.isRegularFile(file) && pathMatcher.matches(file)) {
+      matchedFiles.add(file);
     }
-    logger.log(Level.INFO, String.format("apply %s to %s", replacer, file));
+    return FileVisitResult.CONTINUE;
+  }
 
-    String originalFileContent = new String(Files.readAllBytes(file), UTF_8);
-    String transformed = replacer.replace(originalFileContent);
-    if (!originalFileContent.equals(transformed)) {
-      somethingWasChanged = true;
-      Files.write(file, transformed.getBytes(UTF_8));
-    }
+  /**
+   * Applies the replacement to the files found by the walk. The files are written after the walk,
+   * since {@link FileUtil#writeFile} creates temporary files in the directories being iterated.
+   */
+  void replaceMatchedFiles() throws IOException {
+    for (Path file : matchedFiles) {
+      logger.log(Level.INFO, String.format("apply %s to %s", replacer, file));
 
-    return FileVisitResult.CONTINUE;
+      String originalFileContent = new String(Files.readAllBytes(file), UTF_8);
+      String transformed = replacer.replace(originalFileContent);
+      if (!originalFileContent.equals(transformed)) {
+        somethingWasChanged = true;
+        FileUtil.writeFile(file, transformed.getBytes(UTF_8));
+      }
+    }
   }
 }
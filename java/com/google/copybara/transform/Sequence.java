@@ -23,14 +23,21 @@ import com.google.copybara.NonReversibleValidationException;
 import com.google.copybara.TransformWork;
 import com.google.copybara.Transformation;
 import com.google.copybara.ValidationException;
+import com.google.copybara.util.Metrics;
 import com.google.devtools.build.lib.syntax.BaseFunction;
 import com.google.devtools.build.lib.syntax.Environment;
 import com.google.devtools.build.lib.syntax.EvalException;
 import com.google.devtools.build.lib.syntax.SkylarkList;
 import com.google.devtools.build.lib.syntax.SkylarkType;
 import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import javax.annotation.Nullable;
 
 /**
  * A transformation that runs a sequence of delegate transformations
@@ -52,7 +59,7 @@ public class Sequence implements Transformation {
       Transformation transform = sequence.get(0);
       logger.log(Level.INFO, transform.describe());
       work.getConsole().progress(transform.describe());
-      transform.transform(work);
+      runTransformation(transform, work);
       return;
     }
 
@@ -64,10 +71,40 @@ public class Sequence implements Transformation {
       logger.log(Level.INFO, transformMsg);
 
       work.getConsole().progress(transformMsg);
+      runTransformation(transformation, work);
+    }
+  }
+
+  private static void runTransformation(Transformation transformation, TransformWork work)
+      throws IOException, ValidationException {
+    Metrics metrics = work.getMetrics();
+    // Listed before the phase starts, so that the walk is not part of its time and I/O
+    long[] filesAndBytes = metrics.isEnabled() ? filesAndBytes(work.getCheckoutDir()) : null;
+    try (Metrics.Phase phase = metrics.start("transformation/" + transformation.describe())) {
+      if (filesAndBytes != null) {
+        phase.addFiles(filesAndBytes[0]);
+        phase.addFileBytes(filesAndBytes[1]);
+      }
       transformation.transform(work);
     }
   }
 
+  /** Returns the number and the total size of the regular files in {@code dir}. */
+  private static long[] filesAndBytes(Path dir) throws IOException {
+    long[] result = new long[2];
+    Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+      @Override
+      public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+        if (attrs.isRegularFile()) {
+          result[0]++;
+          result[1] += attrs.size();
+        }
+        return FileVisitResult.CONTINUE;
+      }
+    });
+    return result;
+  }
+
   @Override
   public Transformation reverse() throws NonReversibleValidationException {
     ImmutableList.Builder<Transformation> list = ImmutableList.builder();
@@ -95,6 +132,32 @@ public class Sequence implements Transformation {
     return "sequence";
   }
 
+  @Override
+  public boolean isFileLocal() {
+    for (Transformation transformation : sequence) {
+      if (!transformation.isFileLocal()) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  @Nullable
+  @Override
+  public String fingerprint() {
+    StringBuilder result = new StringBuilder();
+    for (Transformation transformation : sequence) {
+      String fingerprint = transformation.fingerprint();
+      if (fingerprint == null) {
+        return null;
+      }
+      if (!fingerprint.isEmpty()) {
+        result.append(fingerprint).append('\n');
+      }
+    }
+    return result.toString();
+  }
+
   /**
    * Create a sequence from a list of native and Skylark transforms.
    * @param description a description of the argument being converted, such as its name
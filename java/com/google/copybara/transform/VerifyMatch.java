@@ -79,6 +79,19 @@ public final class VerifyMatch implements Transformation {
     return String.format("Verify match '%s'", pattern);
   }
 
+  @Override
+  public boolean isFileLocal() {
+    return true;
+  }
+
+  @Override
+  public String fingerprint() {
+    return "core.verify_match"
+        + "\0pattern=" + pattern.pattern()
+        + "\0verifyNoMatch=" + verifyNoMatch
+        + "\0paths=" + fileMatcherBuilder;
+  }
+
   @Override
   public Transformation reverse() {
     return new ExplicitReversal(IntentionalNoop.INSTANCE, this);
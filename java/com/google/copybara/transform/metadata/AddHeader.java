@@ -111,4 +111,15 @@ public class AddHeader implements Transformation {
   public String describe() {
     return "Adding header to the message";
   }
+
+  @Override
+  public boolean isFileLocal() {
+    return true;
+  }
+
+  @Override
+  public String fingerprint() {
+    // Doesn't modify files
+    return "";
+  }
 }
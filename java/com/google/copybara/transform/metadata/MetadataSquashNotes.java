@@ -118,4 +118,15 @@ public class MetadataSquashNotes implements Transformation {
   public String describe() {
     return "squash_notes";
   }
+
+  @Override
+  public boolean isFileLocal() {
+    return true;
+  }
+
+  @Override
+  public String fingerprint() {
+    // Doesn't modify files
+    return "";
+  }
 }
@@ -129,6 +129,17 @@ public class ReferenceMigrator implements Transformation {
     return "map_references: " + before + " to " + after;
   }
 
+  @Override
+  public boolean isFileLocal() {
+    return true;
+  }
+
+  @Override
+  public String fingerprint() {
+    // Doesn't modify files
+    return "";
+  }
+
   @Nullable
   private String findChange(final String refBeingMigrated,
       final String originLabel,
@@ -69,4 +69,15 @@ public class RestoreOriginalAuthor implements Transformation {
   public String describe() {
     return "Restoring original author";
   }
+
+  @Override
+  public boolean isFileLocal() {
+    return true;
+  }
+
+  @Override
+  public String fingerprint() {
+    // Doesn't modify files
+    return "";
+  }
 }
@@ -52,4 +52,15 @@ public class SaveOriginalAuthor implements Transformation {
   public String describe() {
     return "Saving original author";
   }
+
+  @Override
+  public boolean isFileLocal() {
+    return true;
+  }
+
+  @Override
+  public String fingerprint() {
+    // Doesn't modify files
+    return "";
+  }
 }
@@ -54,4 +54,15 @@ public class Scrubber implements Transformation {
   public String describe() {
     return "Description scrubber";
   }
+
+  @Override
+  public boolean isFileLocal() {
+    return true;
+  }
+
+  @Override
+  public String fingerprint() {
+    // Doesn't modify files
+    return "";
+  }
 }
@@ -20,12 +20,27 @@ import com.google.common.base.Preconditions;
 import com.google.common.base.Splitter;
 import com.google.common.base.Strings;
 import com.google.common.collect.ImmutableList;
+import com.google.common.io.ByteStreams;
 import com.google.copybara.util.console.AnsiColor;
 import com.google.copybara.util.console.Console;
 import com.google.devtools.build.lib.shell.Command;
 import com.google.devtools.build.lib.shell.CommandException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
 import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import javax.annotation.Nullable;
 
 /**
  * Diff utilities that are repository-agnostic.
@@ -33,6 +48,7 @@ import java.nio.file.Path;
 public class DiffUtil {
 
   private static final byte[] EMPTY_DIFF = new byte[]{};
+  private static final int BUFFER_SIZE = 64 * 1024;
 
   /**
    * Calculates the diff between two sibling directory trees.
@@ -66,6 +82,184 @@ public class DiffUtil {
     }
   }
 
+  /**
+   * Returns the relative paths of the files that are different between the directory trees
+   * {@code one} and {@code other}, in lexicographical order. Files are different if they only exist
+   * in one of the trees, or if their type, symlink target, executable bit or content differs.
+   * Directories are ignored, like git does.
+   *
+   * <p>This is cheaper than {@link #diff} when only the set of different files is needed: content
+   * is only read for files of the same size that are not hard links to each other, and both trees
+   * are walked together in sorted order, stopping after finding {@code maxDifferences} files.
+   */
+  public static ImmutableList<String> differentFiles(Path one, Path other, int maxDifferences)
+      throws IOException {
+    Preconditions.checkArgument(maxDifferences > 0, "maxDifferences must be > 0");
+    SortedFileWalker oneFiles = new SortedFileWalker(one);
+    SortedFileWalker otherFiles = new SortedFileWalker(other);
+    ImmutableList.Builder<String> result = ImmutableList.builder();
+    int found = 0;
+    String oneFile = oneFiles.next();
+    String otherFile = otherFiles.next();
+    while ((oneFile != null || otherFile != null) && found < maxDifferences) {
+      int cmp = oneFile == null ? 1 : otherFile == null ? -1 : oneFile.compareTo(otherFile);
+      if (cmp < 0) {
+        result.add(oneFile);
+        found++;
+        oneFile = oneFiles.next();
+      } else if (cmp > 0) {
+        result.add(otherFile);
+        found++;
+        otherFile = otherFiles.next();
+      } else {
+        if (!sameFile(one.resolve(oneFile), other.resolve(otherFile))) {
+          result.add(oneFile);
+          found++;
+        }
+        oneFile = oneFiles.next();
+        otherFile = otherFiles.next();
+      }
+    }
+    return result.build();
+  }
+
+  /**
+   * Like {@link #diff} but only includes {@code files}, relative paths that are usually the result
+   * of {@link #differentFiles}.
+   */
+  public static byte[] diffFiles(Path one, Path other, Iterable<String> files, boolean verbose)
+      throws IOException {
+    Preconditions.checkArgument(one.getParent().equals(other.getParent()),
+        "Paths 'one' and 'other' must be sibling directories.");
+    Path root = Files.createTempDirectory(one.getParent(), "diff");
+    try {
+      // Use the same directory names so that the paths in the diff don't change.
+      Path oneSubset = Files.createDirectory(root.resolve(one.getFileName().toString()));
+      Path otherSubset = Files.createDirectory(root.resolve(other.getFileName().toString()));
+      for (String file : files) {
+        copyIfExists(one.resolve(file), oneSubset.resolve(file));
+        copyIfExists(other.resolve(file), otherSubset.resolve(file));
+      }
+      return diff(oneSubset, otherSubset, verbose);
+    } finally {
+      deleteRecursively(root);
+    }
+  }
+
+  /**
+   * Lists the files of a directory tree lazily, in the lexicographical order of their relative
+   * paths. Each directory is read and sorted when the walk reaches it, so that comparing two trees
+   * doesn't need to list them fully before finding the first differences.
+   */
+  private static final class SortedFileWalker {
+
+    private final Path root;
+    /** The entries not visited yet of each directory in the current path, sorted. */
+    private final Deque<Iterator<Path>> pending = new ArrayDeque<>();
+
+    SortedFileWalker(Path root) throws IOException {
+      this.root = root;
+      pending.push(sortedEntries(root));
+    }
+
+    /** Returns the relative path of the next file, or null if there are no more files. */
+    @Nullable
+    String next() throws IOException {
+      while (!pending.isEmpty()) {
+        Iterator<Path> entries = pending.peek();
+        if (!entries.hasNext()) {
+          pending.pop();
+          continue;
+        }
+        Path entry = entries.next();
+        if (Files.isDirectory(entry, LinkOption.NOFOLLOW_LINKS)) {
+          pending.push(sortedEntries(entry));
+        } else {
+          return root.relativize(entry).toString();
+        }
+      }
+      return null;
+    }
+
+    /**
+     * Directories sort as their name followed by a separator, so that the files inside them are
+     * returned in the same order as if all the relative paths were sorted.
+     */
+    private static Iterator<Path> sortedEntries(Path dir) throws IOException {
+      Map<String, Path> entries = new TreeMap<>();
+      try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+        for (Path entry : stream) {
+          String name = entry.getFileName().toString();
+          entries.put(Files.isDirectory(entry, LinkOption.NOFOLLOW_LINKS) ? name + "/" : name,
+              entry);
+        }
+      }
+      return entries.values().iterator();
+    }
+  }
+
+  private static boolean sameFile(Path one, Path other) throws IOException {
+    boolean oneIsSymlink = Files.isSymbolicLink(one);
+    if (oneIsSymlink != Files.isSymbolicLink(other)) {
+      return false;
+    }
+    if (oneIsSymlink) {
+      return Files.readSymbolicLink(one).equals(Files.readSymbolicLink(other));
+    }
+    if (Files.isSameFile(one, other)) {
+      return true;
+    }
+    if (Files.size(one) != Files.size(other)
+        || Files.isExecutable(one) != Files.isExecutable(other)) {
+      return false;
+    }
+    byte[] oneBuffer = new byte[BUFFER_SIZE];
+    byte[] otherBuffer = new byte[BUFFER_SIZE];
+    try (InputStream oneStream = Files.newInputStream(one);
+        InputStream otherStream = Files.newInputStream(other)) {
+      while (true) {
+        int read = ByteStreams.read(oneStream, oneBuffer, 0, BUFFER_SIZE);
+        if (read != ByteStreams.read(otherStream, otherBuffer, 0, BUFFER_SIZE)) {
+          return false;
+        }
+        if (read == 0) {
+          return true;
+        }
+        for (int i = 0; i < read; i++) {
+          if (oneBuffer[i] != otherBuffer[i]) {
+            return false;
+          }
+        }
+      }
+    }
+  }
+
+  private static void copyIfExists(Path file, Path dest) throws IOException {
+    if (Files.exists(file, LinkOption.NOFOLLOW_LINKS)) {
+      Files.createDirectories(dest.getParent());
+      Files.copy(file, dest, LinkOption.NOFOLLOW_LINKS, StandardCopyOption.COPY_ATTRIBUTES);
+    }
+  }
+
+  private static void deleteRecursively(Path root) throws IOException {
+    Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+      @Override
+      public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+        Files.delete(file);
+        return FileVisitResult.CONTINUE;
+      }
+
+      @Override
+      public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+        if (exc != null) {
+          throw exc;
+        }
+        Files.delete(dir);
+        return FileVisitResult.CONTINUE;
+      }
+    });
+  }
+
   /**
    * Applies the diff into a directory tree.
    *
@@ -23,8 +23,10 @@ import com.google.common.base.Joiner;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Iterables;
 import java.io.IOException;
+import java.nio.file.FileSystemException;
 import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
+import java.nio.file.LinkOption;
 import java.nio.file.Path;
 import java.nio.file.PathMatcher;
 import java.nio.file.SimpleFileVisitor;
@@ -122,6 +124,57 @@ public final class FileUtil {
     }
   }
 
+  /**
+   * Like {@link #copyFilesRecursively(Path, Path, CopySymlinkStrategy)}, but regular files are
+   * hard-linked instead of copied when the file system supports it. This makes the cost of the
+   * snapshot proportional to the number of files instead of their size.
+   *
+   * <p>Files in {@code from} and {@code to} share their content until one of them is deleted,
+   * moved or replaced. Files in either directory should be modified with {@link #writeFile} and
+   * never written in place.
+   */
+  public static void snapshotFilesRecursively(Path from, Path to,
+      CopySymlinkStrategy symlinkStrategy) throws IOException {
+    checkArgument(Files.isDirectory(from), "%s (from) is not a directory");
+    checkArgument(Files.isDirectory(to), "%s (to) is not a directory");
+    Files.walkFileTree(from, new CopyVisitor(from, to, symlinkStrategy, ALL_FILES,
+        /*hardLink=*/ true));
+  }
+
+  /**
+   * Replaces the content of {@code file}. If the file is hard-linked, for example by
+   * {@link #snapshotFilesRecursively}, the link is broken first so that the other paths keep the
+   * old content.
+   *
+   * <p>A temporary file is created next to {@code file}, so this should not be called while
+   * iterating its directory.
+   */
+  public static void writeFile(Path file, byte[] content) throws IOException {
+    if (!isHardLinked(file)) {
+      Files.write(file, content);
+      return;
+    }
+    Path tmp = Files.createTempFile(file.getParent(), ".copybara", ".tmp");
+    try {
+      Files.write(tmp, content);
+      if (file.getFileSystem().supportedFileAttributeViews().contains("posix")) {
+        Files.setPosixFilePermissions(tmp, Files.getPosixFilePermissions(file));
+      }
+      Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+    } finally {
+      Files.deleteIfExists(tmp);
+    }
+  }
+
+  private static boolean isHardLinked(Path file) throws IOException {
+    try {
+      return (Integer) Files.getAttribute(file, "unix:nlink", LinkOption.NOFOLLOW_LINKS) > 1;
+    } catch (UnsupportedOperationException | IllegalArgumentException e) {
+      // We cannot know. Assume that it is.
+      return true;
+    }
+  }
+
   public static int deleteAllFilesRecursively(Path path) throws IOException {
     return deleteFilesRecursively(path, ALL_FILES);
   }
@@ -218,11 +271,19 @@ public final class FileUtil {
     private final CopySymlinkStrategy symlinkStrategy;
     private final PathMatcher pathMatcher;
 
+    private boolean hardLink;
+
     CopyVisitor(Path from, Path to, CopySymlinkStrategy symlinkStrategy, PathMatcher pathMatcher) {
+      this(from, to, symlinkStrategy, pathMatcher, /*hardLink=*/ false);
+    }
+
+    CopyVisitor(Path from, Path to, CopySymlinkStrategy symlinkStrategy, PathMatcher pathMatcher,
+        boolean hardLink) {
       this.to = to;
       this.from = from;
       this.symlinkStrategy = symlinkStrategy;
       this.pathMatcher = pathMatcher;
+      this.hardLink = hardLink;
     }
 
     @Override
@@ -264,6 +325,15 @@ public final class FileUtil {
           return FileVisitResult.CONTINUE;
         }
       }
+      if (hardLink && !symlink) {
+        try {
+          Files.createLink(destFile, file);
+          return FileVisitResult.CONTINUE;
+        } catch (UnsupportedOperationException | FileSystemException e) {
+          logger.log(Level.INFO, "Cannot create hard link for " + file + ". Copying files.", e);
+          hardLink = false;
+        }
+      }
       Files.copy(file, destFile, StandardCopyOption.COPY_ATTRIBUTES);
       // Make writable any symlink that we materialize. This is safe since we have already
       // done a copy of the file. And it is probable that we will want to modify it.
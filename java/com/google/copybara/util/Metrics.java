@@ -0,0 +1,290 @@
+/*
+ * Copyright (C) 2016 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.copybara.util;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Splitter;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * Timing and resource usage of the phases of a migration.
+ *
+ * <p>Each phase records the wall time, the CPU time of the thread that executes it, the bytes read
+ * and written while it runs and the number and size of the files that the phase reports as
+ * processed. Executions of the same phase are aggregated, and the values are only ever increased.
+ *
+ * <p>The CPU time doesn't include subprocesses (like git) or other threads, since Java 8 cannot
+ * measure them. The bytes read and written are read from {@code /proc/self/io} when available:
+ * they are the I/O of the whole Copybara process, so they include the subprocesses that finished
+ * during the phase and every other thread running at the same time. In particular, when several
+ * workflows run in parallel with {@code --jobs}, the I/O of each phase includes the I/O of the
+ * other workflows.
+ *
+ * <p>This class is thread-safe.
+ */
+public final class Metrics {
+
+  /** Instance that doesn't record anything. */
+  public static final Metrics NONE = new Metrics(/*enabled=*/ false);
+
+  private static final Path PROCESS_IO = Paths.get("/proc/self/io");
+  private static final ThreadMXBean THREAD_MX_BEAN = ManagementFactory.getThreadMXBean();
+
+  /** Format of the report. */
+  public enum Format {
+    JSON,
+    PROMETHEUS
+  }
+
+  private final boolean enabled;
+  private final Map<String, Stats> phases = new LinkedHashMap<>();
+
+  private Metrics(boolean enabled) {
+    this.enabled = enabled;
+  }
+
+  /** Creates a new instance that records metrics. */
+  public static Metrics create() {
+    return new Metrics(/*enabled=*/ true);
+  }
+
+  /** Returns true if this instance records metrics. */
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  /**
+   * Starts a phase that lasts until the returned {@link Phase} is closed, in the same thread.
+   * Nested phases are recorded independently, so the time of a phase includes its nested phases.
+   */
+  public Phase start(String name) {
+    return new Phase(Preconditions.checkNotNull(name));
+  }
+
+  /** A running phase. */
+  public final class Phase implements AutoCloseable {
+
+    private final String name;
+    private final long startNanos;
+    private final long startCpuNanos;
+    private final long[] startIo;
+    private long files;
+    private long fileBytes;
+
+    private Phase(String name) {
+      this.name = name;
+      this.startNanos = enabled ? System.nanoTime() : 0;
+      this.startCpuNanos = enabled ? threadCpuNanos() : 0;
+      this.startIo = enabled ? processIo() : null;
+    }
+
+    /** Records that the phase processed {@code count} files. */
+    public void addFiles(long count) {
+      files += count;
+    }
+
+    /** Records that the files processed by the phase have {@code bytes} bytes. */
+    public void addFileBytes(long bytes) {
+      fileBytes += bytes;
+    }
+
+    @Override
+    public void close() {
+      if (!enabled) {
+        return;
+      }
+      long wallNanos = System.nanoTime() - startNanos;
+      long cpuNanos = threadCpuNanos() - startCpuNanos;
+      long[] endIo = processIo();
+      synchronized (Metrics.this) {
+        Stats stats = phases.computeIfAbsent(name, k -> new Stats());
+        stats.count++;
+        stats.wallNanos += wallNanos;
+        stats.cpuNanos += Math.max(0, cpuNanos);
+        stats.bytesRead += endIo[0] - startIo[0];
+        stats.bytesWritten += endIo[1] - startIo[1];
+        stats.files += files;
+        stats.fileBytes += fileBytes;
+      }
+    }
+  }
+
+  private static final class Stats {
+    private long count;
+    private long wallNanos;
+    private long cpuNanos;
+    private long bytesRead;
+    private long bytesWritten;
+    private long files;
+    private long fileBytes;
+  }
+
+  /**
+   * Writes a report of all the phases recorded so far to {@code file}, adding the {@code labels}
+   * to every metric.
+   */
+  public void write(Path file, Format format, Map<String, String> labels) throws IOException {
+    String report = format == Format.JSON ? toJson(labels) : toPrometheus(labels);
+    if (file.getParent() != null) {
+      Files.createDirectories(file.getParent());
+    }
+    // Write to a temporary file first so that collectors never see a partial report
+    Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+    Files.write(tmp, report.getBytes(StandardCharsets.UTF_8));
+    Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+  }
+
+  synchronized String toJson(Map<String, String> labels) {
+    StringBuilder json = new StringBuilder("{\n");
+    for (Entry<String, String> label : labels.entrySet()) {
+      json.append("  ").append(jsonString(label.getKey())).append(": ")
+          .append(jsonString(label.getValue())).append(",\n");
+    }
+    json.append("  \"phases\": [");
+    String separator = "\n";
+    for (Entry<String, Stats> phase : phases.entrySet()) {
+      Stats stats = phase.getValue();
+      json.append(separator)
+          .append("    {\"name\": ").append(jsonString(phase.getKey()))
+          .append(", \"count\": ").append(stats.count)
+          .append(", \"wall_ms\": ").append(stats.wallNanos / 1_000_000)
+          .append(", \"thread_cpu_ms\": ").append(stats.cpuNanos / 1_000_000)
+          .append(", \"bytes_read\": ").append(stats.bytesRead)
+          .append(", \"bytes_written\": ").append(stats.bytesWritten)
+          .append(", \"files\": ").append(stats.files)
+          .append(", \"file_bytes\": ").append(stats.fileBytes)
+          .append("}");
+      separator = ",\n";
+    }
+    return json.append("\n  ]\n}\n").toString();
+  }
+
+  synchronized String toPrometheus(Map<String, String> labels) {
+    StringBuilder text = new StringBuilder();
+    appendCounter(text, labels, "copybara_phase_executions_total",
+        "Number of executions of the phase", s -> s.count);
+    appendCounter(text, labels, "copybara_phase_wall_seconds_total",
+        "Wall time spent in the phase", s -> s.wallNanos / 1e9);
+    appendCounter(text, labels, "copybara_phase_thread_cpu_seconds_total",
+        "CPU time of the thread that runs the phase, excluding other threads and subprocesses",
+        s -> s.cpuNanos / 1e9);
+    appendCounter(text, labels, "copybara_phase_read_bytes_total",
+        "Bytes read by the whole process during the phase, including the subprocesses that"
+            + " finished and other workflows running in parallel",
+        s -> s.bytesRead);
+    appendCounter(text, labels, "copybara_phase_written_bytes_total",
+        "Bytes written by the whole process during the phase, including the subprocesses that"
+            + " finished and other workflows running in parallel",
+        s -> s.bytesWritten);
+    appendCounter(text, labels, "copybara_phase_files_total",
+        "Files processed by the phase", s -> s.files);
+    appendCounter(text, labels, "copybara_phase_file_bytes_total",
+        "Size of the files processed by the phase", s -> s.fileBytes);
+    return text.toString();
+  }
+
+  private interface StatsValue {
+    Number get(Stats stats);
+  }
+
+  private void appendCounter(StringBuilder text, Map<String, String> labels, String metric,
+      String help, StatsValue value) {
+    text.append("# HELP ").append(metric).append(' ').append(help).append('\n');
+    text.append("# TYPE ").append(metric).append(" counter\n");
+    for (Entry<String, Stats> phase : phases.entrySet()) {
+      text.append(metric).append('{');
+      for (Entry<String, String> label : labels.entrySet()) {
+        text.append(label.getKey()).append("=").append(prometheusString(label.getValue()))
+            .append(',');
+      }
+      text.append("phase=").append(prometheusString(phase.getKey())).append("} ")
+          .append(value.get(phase.getValue())).append('\n');
+    }
+  }
+
+  private static long threadCpuNanos() {
+    return THREAD_MX_BEAN.isCurrentThreadCpuTimeSupported()
+        ? THREAD_MX_BEAN.getCurrentThreadCpuTime()
+        : 0;
+  }
+
+  /**
+   * Returns the bytes read and written by the process, including its threads and its reaped
+   * subprocesses, or zeros if not available.
+   */
+  private static long[] processIo() {
+    long[] result = new long[2];
+    if (!Files.isReadable(PROCESS_IO)) {
+      return result;
+    }
+    try {
+      for (String line : Files.readAllLines(PROCESS_IO, StandardCharsets.UTF_8)) {
+        List<String> parts = Splitter.on(':').trimResults().splitToList(line);
+        if (parts.size() != 2) {
+          continue;
+        }
+        if (parts.get(0).equals("rchar")) {
+          result[0] = Long.parseLong(parts.get(1));
+        } else if (parts.get(0).equals("wchar")) {
+          result[1] = Long.parseLong(parts.get(1));
+        }
+      }
+    } catch (IOException | NumberFormatException e) {
+      // Not available in this platform
+    }
+    return result;
+  }
+
+  private static String jsonString(String value) {
+    StringBuilder result = new StringBuilder("\"");
+    for (char c : value.toCharArray()) {
+      switch (c) {
+        case '"':
+          result.append("\\\"");
+          break;
+        case '\\':
+          result.append("\\\\");
+          break;
+        case '\n':
+          result.append("\\n");
+          break;
+        default:
+          if (c < 0x20) {
+            result.append(String.format("\\u%04x", (int) c));
+          } else {
+            result.append(c);
+          }
+      }
+    }
+    return result.append('"').toString();
+  }
+
+  private static String prometheusString(String value) {
+    return "\"" + value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n") + "\"";
+  }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2016 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.copybara.util.console;
+
+import com.google.common.base.Preconditions;
+import java.io.IOException;
+
+/**
+ * A console that forwards the messages to the console set for the current thread with {@link
+ * #enter}, or to a default console otherwise.
+ *
+ * <p>Objects that keep a reference to their console, like the migrations of a parsed config, can
+ * be created with this console so that the tasks that run them at the same time get their own
+ * output. Threads started by a task use the console of the task too.
+ */
+public final class ThreadLocalConsole implements Console {
+
+  private final Console defaultConsole;
+  private final InheritableThreadLocal<Console> threadConsole = new InheritableThreadLocal<>();
+
+  public ThreadLocalConsole(Console defaultConsole) {
+    this.defaultConsole = Preconditions.checkNotNull(defaultConsole);
+  }
+
+  /**
+   * Sends the messages of the current thread to {@code console} until the returned scope is
+   * closed.
+   */
+  public Scope enter(Console console) {
+    Preconditions.checkNotNull(console);
+    Console previous = threadConsole.get();
+    threadConsole.set(console);
+    return () -> threadConsole.set(previous);
+  }
+
+  /** Returns the console that receives the messages of the current thread. */
+  public Console current() {
+    Console console = threadConsole.get();
+    return console != null ? console : defaultConsole;
+  }
+
+  /** A console set for a thread, that is unset when closed. */
+  public interface Scope extends AutoCloseable {
+
+    @Override
+    void close();
+  }
+
+  @Override
+  public void startupMessage() {
+    current().startupMessage();
+  }
+
+  @Override
+  public void error(String message) {
+    current().error(message);
+  }
+
+  @Override
+  public void warn(String message) {
+    current().warn(message);
+  }
+
+  @Override
+  public void info(String message) {
+    current().info(message);
+  }
+
+  @Override
+  public void progress(String progress) {
+    current().progress(progress);
+  }
+
+  @Override
+  public boolean promptConfirmation(String message) throws IOException {
+    return current().promptConfirmation(message);
+  }
+
+  @Override
+  public String colorize(AnsiColor ansiColor, String message) {
+    return current().colorize(ansiColor, message);
+  }
+}
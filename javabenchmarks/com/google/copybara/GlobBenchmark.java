@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2016 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.copybara;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.copybara.util.Glob;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures {@link Glob#relativeTo} matching over the paths of a {@link SyntheticTree}, without
+ * touching the file system.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class GlobBenchmark {
+
+  private static final ImmutableMap<String, Glob> GLOBS = ImmutableMap.<String, Glob>builder()
+      .put("all", Glob.ALL_FILES)
+      .put("extension", new Glob(ImmutableList.of("**.java")))
+      .put("subtree", new Glob(ImmutableList.of("src/d1/**")))
+      .put("many_includes", new Glob(ImmutableList.of(
+          "src/d1/**", "src/d2/**.java", "src/d3/File1*.java", "**/File99.java", "**.txt")))
+      .put("excludes", new Glob(ImmutableList.of("**"),
+          ImmutableList.of("**/File1*.java", "src/d2/**", "**.txt")))
+      .build();
+
+  private static final Path ROOT = FileSystems.getDefault().getPath("/checkout");
+
+  @Param({"1000", "100000"})
+  public int files;
+
+  @Param({"all", "extension", "subtree", "many_includes", "excludes"})
+  public String glob;
+
+  private List<Path> paths;
+  private PathMatcher matcher;
+
+  @Setup
+  public void setup() {
+    paths = new ArrayList<>(files);
+    for (int i = 0; i < files; i++) {
+      paths.add(ROOT.resolve(SyntheticTree.ROOT).resolve(SyntheticTree.relativePath(i)));
+    }
+    Glob selected = GLOBS.get(glob);
+    if (selected == null) {
+      throw new IllegalArgumentException("Unknown glob: " + glob);
+    }
+    matcher = selected.relativeTo(ROOT);
+  }
+
+  @Benchmark
+  public int matchAll() {
+    int matches = 0;
+    for (Path path : paths) {
+      if (matcher.matches(path)) {
+        matches++;
+      }
+    }
+    return matches;
+  }
+
+  @Benchmark
+  public PathMatcher createMatcher() {
+    return GLOBS.get(glob).relativeTo(ROOT);
+  }
+}
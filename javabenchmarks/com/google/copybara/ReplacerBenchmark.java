@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2016 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.copybara;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.copybara.transform.TemplateTokens;
+import com.google.copybara.transform.TemplateTokens.Replacer;
+import com.google.devtools.build.lib.events.Location;
+import com.google.devtools.build.lib.syntax.EvalException;
+import com.google.re2j.Pattern;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures {@link Replacer#replace} on the content of a single file, without touching the file
+ * system. This isolates the regex work of {@code core.replace} from the tree traversal measured
+ * by {@link TransformationBenchmark}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class ReplacerBenchmark {
+
+  @Param({"1024", "65536"})
+  public int size;
+
+  @Param({"0.0", "0.1", "1.0"})
+  public double hitRatio;
+
+  @Param({"literal", "regex_groups", "multiline", "first_only"})
+  public String mode;
+
+  private String content;
+  private Replacer replacer;
+
+  @Setup
+  public void setup() throws EvalException {
+    // Same shape as the content of SyntheticTree, but the hit ratio applies to lines
+    Random random = new Random(42);
+    StringBuilder text = new StringBuilder(size + 80);
+    while (text.length() < size) {
+      text.append("  public static final String FIELD_").append(random.nextInt(100_000))
+          .append(" = \"").append(random.nextDouble() < hitRatio ? SyntheticTree.TOKEN : "value")
+          .append("\";\n");
+    }
+    content = text.toString();
+
+    Map<String, Pattern> groups = ImmutableMap.of("n", Pattern.compile("[0-9]+"));
+    switch (mode) {
+      case "literal":
+        replacer = replacer(SyntheticTree.TOKEN, "other_token", ImmutableMap.of(),
+            /*firstOnly=*/ false, /*multiline=*/ false);
+        break;
+      case "regex_groups":
+        replacer = replacer("FIELD_${n} = \"" + SyntheticTree.TOKEN + "\"",
+            "FIELD_${n} = \"other_token\"", groups, /*firstOnly=*/ false, /*multiline=*/ false);
+        break;
+      case "multiline":
+        replacer = replacer(SyntheticTree.TOKEN + "\";\n", "other_token\";\n",
+            ImmutableMap.of(), /*firstOnly=*/ false, /*multiline=*/ true);
+        break;
+      case "first_only":
+        replacer = replacer(SyntheticTree.TOKEN, "other_token", ImmutableMap.of(),
+            /*firstOnly=*/ true, /*multiline=*/ false);
+        break;
+      default:
+        throw new IllegalArgumentException("Unknown mode: " + mode);
+    }
+  }
+
+  private static Replacer replacer(String before, String after, Map<String, Pattern> groups,
+      boolean firstOnly, boolean multiline) throws EvalException {
+    TemplateTokens beforeTokens =
+        new TemplateTokens(Location.BUILTIN, before, groups, /*repeatedGroups=*/ false);
+    TemplateTokens afterTokens =
+        new TemplateTokens(Location.BUILTIN, after, groups, /*repeatedGroups=*/ false);
+    return beforeTokens.replacer(afterTokens, firstOnly, multiline);
+  }
+
+  @Benchmark
+  public String replace() {
+    return replacer.replace(content);
+  }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2016 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.copybara;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.base.Preconditions;
+import com.google.copybara.util.FileUtil;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Random;
+
+/**
+ * Generates deterministic checkout trees for the benchmarks.
+ *
+ * <p>Files are placed under {@code src/} in directories of at most {@value #FILES_PER_DIR} files,
+ * nested as needed. A fraction of the files, given by the hit ratio, contains {@link #TOKEN}
+ * once per line, so that transformations looking for it find matches in those files only.
+ *
+ * <p>Generating a million files is slow, so trees are kept in
+ * {@code ${java.io.tmpdir}/copybara-benchmarks} and reused by later runs with the same
+ * parameters.
+ */
+final class SyntheticTree {
+
+  /** String present in the matching files. */
+  static final String TOKEN = "copybara_benchmark_token";
+
+  /** Root directory of all the files of the tree. */
+  static final String ROOT = "src";
+
+  private static final int FILES_PER_DIR = 100;
+  private static final String COMPLETE_MARKER = ".complete";
+  private static final long SEED = 42;
+
+  /** How the size of the files is distributed. */
+  enum SizeDistribution {
+    /** All files have 1KB. */
+    SMALL {
+      @Override
+      int nextSize(Random random) {
+        return 1024;
+      }
+    },
+    /**
+     * Mostly small files with a long tail of big ones (Log-normal with a median of 4KB), similar
+     * to a source code repository.
+     */
+    MIXED {
+      @Override
+      int nextSize(Random random) {
+        return (int) Math.min(4 * 1024 * Math.exp(random.nextGaussian()), 1024 * 1024);
+      }
+    },
+    /** All files have 64KB. */
+    LARGE {
+      @Override
+      int nextSize(Random random) {
+        return 64 * 1024;
+      }
+    };
+
+    abstract int nextSize(Random random);
+  }
+
+  private SyntheticTree() {}
+
+  /**
+   * Returns a directory with the tree for the given parameters, generating it if it doesn't
+   * exist yet. The returned directory should not be modified.
+   */
+  static Path get(int files, SizeDistribution distribution, double hitRatio)
+      throws IOException {
+    Preconditions.checkArgument(files > 0, "Invalid number of files: %s", files);
+    Preconditions.checkArgument(hitRatio >= 0 && hitRatio <= 1, "Invalid hit ratio: %s",
+        hitRatio);
+    Path dir = Paths.get(System.getProperty("java.io.tmpdir"), "copybara-benchmarks",
+        String.format("tree-%d-%s-%s", files, distribution.name().toLowerCase(), hitRatio));
+    if (Files.exists(dir.resolve(COMPLETE_MARKER))) {
+      return dir;
+    }
+    if (Files.exists(dir)) {
+      // Leftovers of an interrupted generation
+      FileUtil.deleteAllFilesRecursively(dir);
+    }
+    Random random = new Random(SEED);
+    for (int i = 0; i < files; i++) {
+      Path file = dir.resolve(ROOT).resolve(relativePath(i));
+      Files.createDirectories(file.getParent());
+      Files.write(file, content(random, distribution.nextSize(random),
+          random.nextDouble() < hitRatio));
+    }
+    Files.createFile(dir.resolve(COMPLETE_MARKER));
+    return dir;
+  }
+
+  /**
+   * Returns the path of the {@code index}-th file, for example {@code d12/d34/File56.java}.
+   */
+  static String relativePath(int index) {
+    StringBuilder path = new StringBuilder();
+    for (int dir = index / FILES_PER_DIR; dir > 0; dir /= FILES_PER_DIR) {
+      path.insert(0, "d" + (dir % FILES_PER_DIR) + "/");
+    }
+    return path.append("File").append(index % FILES_PER_DIR).append(".java").toString();
+  }
+
+  private static byte[] content(Random random, int size, boolean hit) {
+    StringBuilder content = new StringBuilder(size + 80);
+    while (content.length() < size) {
+      content.append("  public static final String FIELD_").append(random.nextInt(100_000))
+          .append(" = \"").append(hit ? TOKEN : "value").append("\";\n");
+    }
+    return content.toString().getBytes(UTF_8);
+  }
+}
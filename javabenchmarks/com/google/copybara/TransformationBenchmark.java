@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2016 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.copybara;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.ByteStreams;
+import com.google.copybara.SyntheticTree.SizeDistribution;
+import com.google.copybara.testing.OptionsBuilder;
+import com.google.copybara.testing.SkylarkTestExecutor;
+import com.google.copybara.testing.TransformWorks;
+import com.google.copybara.util.FileUtil;
+import com.google.copybara.util.FileUtil.CopySymlinkStrategy;
+import com.google.copybara.util.console.Console;
+import com.google.copybara.util.console.LogConsole;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the core transformations applied to a whole checkout tree through
+ * {@link TransformWork}, the same way a workflow applies them.
+ *
+ * <p>Each invocation works on a fresh hard-linked snapshot of a {@link SyntheticTree}, created
+ * outside of the measured time. Transformations are created from Skylark, so the benchmark
+ * measures what a user config would run.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+public class TransformationBenchmark {
+
+  private static final String TOKEN = SyntheticTree.TOKEN;
+
+  /** The transformations, keyed by the name used in the {@code transformation} param. */
+  private static final ImmutableMap<String, String> TRANSFORMATIONS =
+      ImmutableMap.<String, String>builder()
+          .put("replace", String.format(
+              "core.replace(before = '%s', after = 'other_token')", TOKEN))
+          .put("replace_regex_groups", String.format(""
+              + "core.replace(\n"
+              + "    before = 'FIELD_${n} = \"%s\"',\n"
+              + "    after = 'FIELD_${n} = \"other_token\"',\n"
+              + "    regex_groups = {'n': '[0-9]+'},\n"
+              + ")", TOKEN))
+          .put("replace_java_only", String.format(
+              "core.replace(before = '%s', after = 'other_token', paths = glob(['**.java']))",
+              TOKEN))
+          .put("move", String.format("core.move('%s', 'moved')", SyntheticTree.ROOT))
+          .put("verify_no_match",
+              "core.verify_match(regex = 'NOT_PRESENT_[0-9]+', verify_no_match = True)")
+          // A typical sequence of an import: verify, rename the root and replace a few tokens.
+          .put("sequence", String.format("[\n"
+              + "    core.verify_match(regex = 'NOT_PRESENT_[0-9]+', verify_no_match = True),\n"
+              + "    core.move('%s', 'moved'),\n"
+              + "    core.replace(before = '%s', after = 'other_token'),\n"
+              + "    core.replace(before = 'public static', after = 'static'),\n"
+              + "    core.replace(before = 'FIELD_${n}', after = 'F_${n}',"
+              + " regex_groups = {'n': '[0-9]+'}),\n"
+              + "]", SyntheticTree.ROOT, TOKEN))
+          .build();
+
+  @Param({"1000", "10000", "100000"})
+  public int files;
+
+  @Param({"SMALL", "MIXED"})
+  public SizeDistribution distribution;
+
+  @Param({"0.0", "0.1", "1.0"})
+  public double hitRatio;
+
+  @Param({"replace", "replace_regex_groups", "replace_java_only", "move", "verify_no_match",
+      "sequence"})
+  public String transformation;
+
+  private Path tree;
+  private Path workdir;
+  private Transformation transform;
+  private Console console;
+
+  @Setup(Level.Trial)
+  public void setupTrial() throws IOException, ValidationException {
+    tree = SyntheticTree.get(files, distribution, hitRatio);
+    console = LogConsole.writeOnlyConsole(new PrintStream(ByteStreams.nullOutputStream()));
+    OptionsBuilder options = new OptionsBuilder().setConsole(console);
+    String config = TRANSFORMATIONS.get(transformation);
+    if (config == null) {
+      throw new IllegalArgumentException("Unknown transformation: " + transformation);
+    }
+    // core.transform wraps the list in a Sequence, like core.workflow does. The reversal is
+    // never used.
+    String list = config.startsWith("[") ? config : "[" + config + "]";
+    transform = new SkylarkTestExecutor(options, Core.class)
+        .eval("t", "t = core.transform(" + list + ", reversal = [])");
+  }
+
+  @Setup(Level.Invocation)
+  public void setupInvocation() throws IOException {
+    workdir = Files.createTempDirectory("TransformationBenchmark");
+    FileUtil.snapshotFilesRecursively(tree, workdir, CopySymlinkStrategy.FAIL_OUTSIDE_SYMLINKS);
+  }
+
+  @TearDown(Level.Invocation)
+  public void tearDownInvocation() throws IOException {
+    FileUtil.deleteAllFilesRecursively(workdir);
+    Files.deleteIfExists(workdir);
+  }
+
+  @Benchmark
+  public void transform() throws IOException, ValidationException {
+    transform.transform(TransformWorks.of(workdir, "Benchmark", console));
+  }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2016 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.copybara;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.copybara.config.PathBasedConfigFile;
+import com.google.copybara.config.SkylarkParser;
+import com.google.copybara.testing.OptionsBuilder;
+import com.google.copybara.testing.TestingModule;
+import com.google.copybara.util.console.testing.TestingConsole;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class ConfigCacheTest {
+
+  private OptionsBuilder options;
+  private SkylarkParser skylark;
+  private Path root;
+  private PathBasedConfigFile configFile;
+  private ConfigCache cache;
+
+  @Before
+  public void setup() throws IOException {
+    options = new OptionsBuilder();
+    options.setConsole(new TestingConsole());
+    skylark = new SkylarkParser(ImmutableSet.of(TestingModule.class));
+    root = Files.createTempDirectory("ConfigCacheTest");
+    writeFile("authoring.bara.sky", "author = 'Copybara <no-reply@google.com>'\n");
+    writeFile("copy.bara.sky", ""
+        + "load('authoring', 'author')\n"
+        + "core.workflow(\n"
+        + "    name = 'default',\n"
+        + "    origin = testing.origin(),\n"
+        + "    destination = testing.destination(),\n"
+        + "    authoring = authoring.overwrite(author),\n"
+        + ")\n");
+    configFile = new PathBasedConfigFile(root.resolve("copy.bara.sky"), root);
+    cache = new ConfigCache(/*maxEntries=*/10);
+  }
+
+  @Test
+  public void testReusesConfig() throws Exception {
+    Config config = cache.load(skylark, configFile, options.build(), "key");
+    assertThat(cache.load(skylark, configFile, options.build(), "key")).isSameAs(config);
+  }
+
+  @Test
+  public void testDifferentOptionsKey() throws Exception {
+    Config config = cache.load(skylark, configFile, options.build(), "key");
+    assertThat(cache.load(skylark, configFile, options.build(), "other")).isNotSameAs(config);
+  }
+
+  @Test
+  public void testImportedFileChanged() throws Exception {
+    Config config = cache.load(skylark, configFile, options.build(), "key");
+    writeFile("authoring.bara.sky", "author = 'Other <other@example.com>'\n");
+
+    Config reloaded = cache.load(skylark, configFile, options.build(), "key");
+    assertThat(reloaded).isNotSameAs(config);
+    assertThat(cache.load(skylark, configFile, options.build(), "key")).isSameAs(reloaded);
+  }
+
+  @Test
+  public void testEvictsLeastRecentlyUsed() throws Exception {
+    cache = new ConfigCache(/*maxEntries=*/1);
+    Config config = cache.load(skylark, configFile, options.build(), "key");
+    cache.load(skylark, configFile, options.build(), "other");
+    assertThat(cache.load(skylark, configFile, options.build(), "key")).isNotSameAs(config);
+  }
+
+  private void writeFile(String path, String content) throws IOException {
+    Files.write(root.resolve(path), content.getBytes(UTF_8));
+  }
+}
@@ -129,6 +129,37 @@ public class MainArgumentsTest {
     checkParsing(ImmutableList.of("info", "copy.bara.sky", "import_wf", "some_ref"));
   }
 
+  @Test
+  public void testArgumentParsingSeveralWorkflows() throws Exception {
+    checkParsing(ImmutableList.of("copy.bara.sky", "import_*"),
+        Subcommand.MIGRATE, "copy.bara.sky", "import_*", /*sourceRef=*/ null);
+    assertThat(mainArguments.isMultipleWorkflows()).isTrue();
+
+    mainArguments = new MainArguments();
+    mainArguments.all = true;
+    mainArguments.unnamed = ImmutableList.of("copy.bara.sky");
+    mainArguments.parseUnnamedArgs();
+    assertThat(mainArguments.getWorkflowName()).isEqualTo("*");
+    assertThat(mainArguments.isMultipleWorkflows()).isTrue();
+
+    checkParsing(ImmutableList.of("copy.bara.sky", "import_wf"));
+    assertThat(mainArguments.isMultipleWorkflows()).isFalse();
+  }
+
+  @Test
+  public void testSeveralWorkflowsWithSourceRef() throws Exception {
+    thrown.expect(CommandLineException.class);
+    thrown.expectMessage("A source_ref cannot be used when migrating several workflows");
+    checkParsing(ImmutableList.of("copy.bara.sky", "import_*", "some_ref"));
+  }
+
+  @Test
+  public void testSeveralWorkflowsOnlyForMigrate() throws Exception {
+    thrown.expect(CommandLineException.class);
+    thrown.expectMessage("Several workflows can only be selected for subcommand 'migrate'");
+    checkParsing(ImmutableList.of("info", "copy.bara.sky", "import_*"));
+  }
+
   private void checkParsing(List<String> args, Subcommand expectedSubcommand, String expectedConfigPath,
       String expectedWorkflowName, @Nullable String expectedSourceRef) throws CommandLineException {
     checkParsing(args);
@@ -19,8 +19,10 @@ package com.google.copybara;
 import static com.google.common.truth.Truth.assertThat;
 
 import com.beust.jcommander.JCommander;
+import com.google.common.collect.ImmutableMap;
 import com.google.copybara.util.ExitCode;
 import java.nio.file.FileSystem;
+import java.util.Map;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
@@ -96,4 +98,31 @@ public class MainTest {
     main.run(args);
     assertThat(called).isTrue();
   }
+
+  @Test
+  public void testOptionsKeyIgnoresOnlyPositionalArgs() {
+    Map<String, String> env = ImmutableMap.of("HOME", "/home/foo");
+    assertThat(optionsKey(env, "copy.bara.sky", "workflow1"))
+        .isEqualTo(optionsKey(env, "copy.bara.sky", "workflow2"));
+    assertThat(optionsKey(env, "--work-dir", "/tmp/a", "copy.bara.sky"))
+        .isEqualTo(optionsKey(env, "--work-dir=/tmp/a", "other/copy.bara.sky"));
+    // A flag value equal to a positional argument is not removed
+    assertThat(optionsKey(env, "--work-dir", "copy.bara.sky", "copy.bara.sky"))
+        .isNotEqualTo(optionsKey(env, "--work-dir", "other", "copy.bara.sky"));
+    assertThat(optionsKey(env, "--all", "copy.bara.sky"))
+        .isNotEqualTo(optionsKey(env, "copy.bara.sky"));
+  }
+
+  @Test
+  public void testOptionsKeyUsesAllTheEnvironment() {
+    assertThat(optionsKey(ImmutableMap.of("SSH_AUTH_SOCK", "/tmp/a"), "copy.bara.sky"))
+        .isNotEqualTo(optionsKey(ImmutableMap.of("SSH_AUTH_SOCK", "/tmp/b"), "copy.bara.sky"));
+  }
+
+  private static String optionsKey(Map<String, String> env, String... args) {
+    MainArguments mainArgs = new MainArguments();
+    JCommander jcommander = new JCommander(mainArgs);
+    jcommander.parse(args);
+    return Main.optionsKey(jcommander, args, mainArgs.unnamed, env);
+  }
 }
@@ -0,0 +1,258 @@
+/*
+ * Copyright (C) 2016 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.copybara;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.fail;
+
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.copybara.util.ExitCode;
+import com.google.copybara.util.console.testing.TestingConsole;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermission;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class ServerTest {
+
+  private Path home;
+  private Path tokenDir;
+  private Server server;
+  private int port;
+  private Thread serverThread;
+  private final List<List<String>> requests = Collections.synchronizedList(new ArrayList<>());
+  private volatile Server.RequestExecutor executor;
+
+  @Before
+  public void setup() throws Exception {
+    home = Files.createTempDirectory("ServerTest");
+    tokenDir = home.resolve(".copybara/server");
+    executor = (args, environment, console) -> {
+      console.info("Running " + String.join(" ", args) + " for " + environment.get("USER"));
+      return ExitCode.SUCCESS;
+    };
+    server = new Server(/*port=*/ 0, tokenDir, new TestingConsole());
+    port = server.start();
+    serverThread = new Thread(() -> {
+      try {
+        server.serve((args, environment, console) -> {
+          requests.add(ImmutableList.copyOf(args));
+          return executor.execute(args, environment, console);
+        });
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+    });
+    serverThread.start();
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    server.close();
+    serverThread.join();
+  }
+
+  @Test
+  public void testRequestOutputIsStreamedToTheClient() throws Exception {
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+
+    ExitCode exitCode = new Client(port, tokenDir)
+        .run(ImmutableList.of("copy.bara.sky", "default"), ImmutableMap.of("USER", "foo"), output);
+
+    assertThat(exitCode).isEqualTo(ExitCode.SUCCESS);
+    assertThat(requests).containsExactly(ImmutableList.of("copy.bara.sky", "default"));
+    assertThat(new String(output.toByteArray(), UTF_8))
+        .contains("Running copy.bara.sky default for foo");
+  }
+
+  @Test
+  public void testExitCodeIsPropagated() throws Exception {
+    executor = (args, environment, console) -> {
+      console.error("Invalid config");
+      return ExitCode.CONFIGURATION_ERROR;
+    };
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+
+    ExitCode exitCode = new Client(port, tokenDir)
+        .run(ImmutableList.of("copy.bara.sky"), ImmutableMap.of(), output);
+
+    assertThat(exitCode).isEqualTo(ExitCode.CONFIGURATION_ERROR);
+    assertThat(new String(output.toByteArray(), UTF_8)).contains("Invalid config");
+  }
+
+  @Test
+  public void testValuesLongerThan64KB() throws Exception {
+    String longValue = Strings.repeat("a", 100_000);
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+
+    ExitCode exitCode = new Client(port, tokenDir)
+        .run(ImmutableList.of(longValue), ImmutableMap.of("USER", longValue), output);
+
+    assertThat(exitCode).isEqualTo(ExitCode.SUCCESS);
+    assertThat(requests).containsExactly(ImmutableList.of(longValue));
+    assertThat(new String(output.toByteArray(), UTF_8))
+        .contains("Running " + longValue + " for " + longValue);
+  }
+
+  @Test
+  public void testTokenFileIsOnlyReadableByTheOwner() throws Exception {
+    assertThat(Files.getPosixFilePermissions(Server.tokenFile(tokenDir, port)))
+        .containsExactly(PosixFilePermission.OWNER_READ, PosixFilePermission.OWNER_WRITE);
+  }
+
+  @Test
+  public void testInvalidTokenIsRejected() throws Exception {
+    Path otherTokenDir = Files.createTempDirectory("ServerTest-otherTokenDir");
+    Files.write(Server.tokenFile(otherTokenDir, port), Strings.repeat("0", 64).getBytes(UTF_8));
+
+    try {
+      new Client(port, otherTokenDir)
+          .run(ImmutableList.of("copy.bara.sky"), ImmutableMap.of(), new ByteArrayOutputStream());
+      fail();
+    } catch (IOException expected) {
+      // The connection is closed without an exit code (or reset, since the request is not read)
+    }
+    assertThat(requests).isEmpty();
+    // The server still accepts valid requests
+    assertThat(new Client(port, tokenDir)
+        .run(ImmutableList.of("copy.bara.sky"), ImmutableMap.of(), new ByteArrayOutputStream()))
+        .isEqualTo(ExitCode.SUCCESS);
+  }
+
+  @Test
+  public void testMissingTokenFile() throws Exception {
+    Path otherTokenDir = Files.createTempDirectory("ServerTest-otherTokenDir");
+    try {
+      new Client(port, otherTokenDir)
+          .run(ImmutableList.of("copy.bara.sky"), ImmutableMap.of(), new ByteArrayOutputStream());
+      fail();
+    } catch (IOException e) {
+      assertThat(e.getMessage()).contains("Is the server running?");
+    }
+    assertThat(requests).isEmpty();
+  }
+
+  @Test
+  public void testMalformedFrameIsRejected() throws Exception {
+    try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+      DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+      Server.writeBytes(out, Files.readAllBytes(Server.tokenFile(tokenDir, port)));
+      // One variable whose name has a negative length
+      out.writeInt(1);
+      out.writeInt(-5);
+      out.flush();
+      assertThat(socket.getInputStream().read()).isEqualTo(-1);
+    }
+    assertThat(requests).isEmpty();
+    // The server still accepts valid requests
+    assertThat(new Client(port, tokenDir)
+        .run(ImmutableList.of("copy.bara.sky"), ImmutableMap.of(), new ByteArrayOutputStream()))
+        .isEqualTo(ExitCode.SUCCESS);
+  }
+
+  @Test
+  public void testConcurrentRequests() throws Exception {
+    AtomicInteger running = new AtomicInteger();
+    AtomicInteger maxRunning = new AtomicInteger();
+    executor = (args, environment, console) -> {
+      maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+      try {
+        Thread.sleep(100);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      console.info("Output of " + args[0]);
+      running.decrementAndGet();
+      return ExitCode.SUCCESS;
+    };
+    ExecutorService clients = Executors.newFixedThreadPool(4);
+    try {
+      List<Future<String>> outputs = new ArrayList<>();
+      for (int i = 0; i < 4; i++) {
+        String arg = "request" + i;
+        outputs.add(clients.submit(() -> {
+          ByteArrayOutputStream output = new ByteArrayOutputStream();
+          assertThat(new Client(port, tokenDir).run(ImmutableList.of(arg), ImmutableMap.of(),
+              output)).isEqualTo(ExitCode.SUCCESS);
+          return new String(output.toByteArray(), UTF_8);
+        }));
+      }
+      for (int i = 0; i < 4; i++) {
+        String output = outputs.get(i).get();
+        assertThat(output).contains("Output of request" + i);
+        for (int j = 0; j < 4; j++) {
+          if (j != i) {
+            assertThat(output).doesNotContain("Output of request" + j);
+          }
+        }
+      }
+    } finally {
+      clients.shutdownNow();
+    }
+    // Requests are executed one at a time
+    assertThat(requests).hasSize(4);
+    assertThat(maxRunning.get()).isEqualTo(1);
+  }
+
+  @Test
+  public void testMainStripsTheServerPortFlag() throws Exception {
+    Map<String, String> environment = ImmutableMap.of("HOME", home.toString());
+
+    assertThat(new Main(environment).run(
+        new String[]{"--server-port", Integer.toString(port), "copy.bara.sky", "default"}))
+        .isEqualTo(ExitCode.SUCCESS);
+    assertThat(new Main(environment).run(
+        new String[]{"copy.bara.sky", "--server-port=" + port, "--force"}))
+        .isEqualTo(ExitCode.SUCCESS);
+
+    assertThat(requests).containsExactly(
+        ImmutableList.of("copy.bara.sky", "default"),
+        ImmutableList.of("copy.bara.sky", "--force")).inOrder();
+  }
+
+  @Test
+  public void testMainInvalidServerPort() throws Exception {
+    Map<String, String> environment = ImmutableMap.of("HOME", home.toString());
+
+    assertThat(new Main(environment).run(new String[]{"copy.bara.sky", "--server-port"}))
+        .isEqualTo(ExitCode.COMMAND_LINE_ERROR);
+    assertThat(new Main(environment).run(new String[]{"copy.bara.sky", "--server-port=foo"}))
+        .isEqualTo(ExitCode.COMMAND_LINE_ERROR);
+    assertThat(requests).isEmpty();
+  }
+}
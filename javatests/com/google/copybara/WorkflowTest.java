@@ -36,6 +36,7 @@ import com.google.copybara.testing.RecordsProcessCallDestination.ProcessedChange
 import com.google.copybara.testing.TestingModule;
 import com.google.copybara.testing.TransformWorks;
 import com.google.copybara.util.Glob;
+import com.google.copybara.util.Metrics;
 import com.google.copybara.util.console.Message;
 import com.google.copybara.util.console.Message.MessageType;
 import com.google.copybara.util.console.testing.TestingConsole;
@@ -46,6 +47,9 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.PathMatcher;
 import java.time.Instant;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 import javax.annotation.Nullable;
 import org.junit.Before;
 import org.junit.Rule;
@@ -191,6 +195,81 @@ public class WorkflowTest {
     assertThat(destination.processed).hasSize(18);
   }
 
+  @Test
+  public void iterativeWorkflowTest_pipelined() throws Exception {
+    for (int timestamp = 0; timestamp < 61; timestamp++) {
+      origin.addSimpleChange(timestamp);
+    }
+    options.workflowOptions.iterativePipelineDepth = 2;
+    Workflow workflow = iterativeWorkflow(/*previousRef=*/"42");
+
+    workflow.run(workdir, /*sourceRef=*/"50");
+    assertThat(destination.processed).hasSize(8);
+    int nextChange = 43;
+    for (ProcessedChange change : destination.processed) {
+      assertThat(change.getChangesSummary()).isEqualTo(nextChange + " change");
+      String asString = Integer.toString(nextChange);
+      assertThat(change.getOriginRef().asString()).isEqualTo(asString);
+      assertThat(change.numFiles()).isEqualTo(1);
+      assertThat(change.getContent("file.txt")).isEqualTo(PREFIX + asString);
+      nextChange++;
+    }
+  }
+
+  @Test
+  public void iterativeWorkflowTest_incremental() throws Exception {
+    Path base = Files.createTempDirectory("incremental");
+    for (int i = 0; i < 4; i++) {
+      Path change = Files.createDirectories(base.resolve("" + i));
+      Files.write(change.resolve("unchanged.txt"), "0".getBytes(StandardCharsets.UTF_8));
+      Files.write(change.resolve("file.txt"), ("" + i).getBytes(StandardCharsets.UTF_8));
+      if (i < 2) {
+        Files.write(change.resolve("deleted.txt"), "1".getBytes(StandardCharsets.UTF_8));
+      }
+      origin.addChange(i, change, i + " change");
+    }
+    options.workflowOptions.iterativeIncremental = true;
+
+    iterativeWorkflow(/*previousRef=*/"0").run(workdir, /*sourceRef=*/"3");
+
+    assertThat(destination.processed).hasSize(3);
+    for (int i = 0; i < 3; i++) {
+      ProcessedChange change = destination.processed.get(i);
+      assertThat(change.getContent("unchanged.txt")).isEqualTo(PREFIX + "0");
+      assertThat(change.getContent("file.txt")).isEqualTo(PREFIX + (i + 1));
+      assertThat(change.filePresent("deleted.txt")).isEqualTo(i == 0);
+    }
+    assertThat(destination.processed.get(0).getContent("deleted.txt")).isEqualTo(PREFIX + "1");
+  }
+
+  @Test
+  public void iterativeWorkflowConfirmationHandlingTest_pipelined() throws Exception {
+    for (int timestamp = 0; timestamp < 10; timestamp++) {
+      origin.addSimpleChange(timestamp);
+    }
+
+    console()
+        .respondYes()
+        .respondNo();
+    RecordsProcessCallDestination programmableDestination = new RecordsProcessCallDestination(
+        WriterResult.OK, WriterResult.PROMPT_TO_CONTINUE, WriterResult.PROMPT_TO_CONTINUE);
+
+    options.testingOptions.destination = programmableDestination;
+    options.workflowOptions.iterativePipelineDepth = 3;
+
+    Workflow workflow = iterativeWorkflow(/*previousRef=*/"2");
+
+    try {
+      workflow.run(workdir, /*sourceRef=*/"9");
+      fail("Should throw ChangeRejectedException");
+    } catch (ChangeRejectedException expected) {
+      assertThat(expected.getMessage())
+          .contains("Iterative workflow aborted by user after: Change 3 of 7 (5)");
+    }
+    // Changes transformed ahead of time are never written
+    assertThat(programmableDestination.processed).hasSize(3);
+  }
+
   @Test
   public void testIterativeModeWithLimit() throws Exception {
     for (int timestamp = 0; timestamp < 51; timestamp++) {
@@ -377,6 +456,76 @@ public class WorkflowTest {
     assertThat(change.getAuthor()).isEqualTo(DEFAULT_AUTHOR);
   }
 
+  @Test
+  public void testTransformationCache() throws Exception {
+    Path cacheDir = Files.createTempDirectory("cache");
+    options.workflowOptions.transformationCacheDir = cacheDir.toString();
+    Workflow workflow = workflow();
+
+    workflow.run(workdir, origin.getHead());
+    assertThat(Iterables.getLast(destination.processed).getContent("file.txt"))
+        .isEqualTo(PREFIX + "0");
+
+    List<Path> entries;
+    try (Stream<Path> stream = Files.walk(cacheDir)) {
+      entries = stream.filter(Files::isRegularFile).collect(Collectors.toList());
+    }
+    assertThat(entries).hasSize(1);
+    assertThat(new String(Files.readAllBytes(entries.get(0)), StandardCharsets.UTF_8))
+        .isEqualTo(PREFIX + "0");
+
+    // Check that the second run uses the cached content instead of transforming the file.
+    Files.write(entries.get(0), "cached".getBytes(StandardCharsets.UTF_8));
+    workflow.run(Files.createTempDirectory("workdir"), origin.getHead());
+    assertThat(Iterables.getLast(destination.processed).getContent("file.txt"))
+        .isEqualTo("cached");
+  }
+
+  @Test
+  public void testTransformationCacheNotUsedForMoves() throws Exception {
+    Path cacheDir = Files.createTempDirectory("cache");
+    options.workflowOptions.transformationCacheDir = cacheDir.toString();
+    transformations = "[core.move('file.txt', 'other.txt')]";
+
+    workflow().run(workdir, origin.getHead());
+
+    assertThat(Iterables.getLast(destination.processed).getContent("other.txt")).isEqualTo("0");
+    try (Stream<Path> stream = Files.walk(cacheDir)) {
+      assertThat(stream.anyMatch(Files::isRegularFile)).isFalse();
+    }
+  }
+
+  @Test
+  public void testMetrics() throws Exception {
+    Path metricsDir = Files.createTempDirectory("metrics");
+    options.workflowOptions.metricsDir = metricsDir.toString();
+    workflow().run(workdir, origin.getHead());
+
+    String json = new String(Files.readAllBytes(metricsDir.resolve("default.json")),
+        StandardCharsets.UTF_8);
+    assertThat(json).contains("\"workflow\": \"default\"");
+    for (String phase : ImmutableList.of("migration", "resolve", "checkout", "transform",
+        "write", "flush")) {
+      assertThat(json).contains("{\"name\": \"" + phase + "\", \"count\": 1,");
+    }
+    assertThat(json).containsMatch(
+        "\\{\"name\": \"transformation/[^\n]*, \"files\": [1-9][0-9]*, \"file_bytes\": [1-9]");
+  }
+
+  @Test
+  public void testMetricsPrometheus() throws Exception {
+    Path metricsDir = Files.createTempDirectory("metrics");
+    options.workflowOptions.metricsDir = metricsDir.toString();
+    options.workflowOptions.metricsFormat = Metrics.Format.PROMETHEUS;
+    workflow().run(workdir, origin.getHead());
+
+    String text = new String(Files.readAllBytes(metricsDir.resolve("default.prom")),
+        StandardCharsets.UTF_8);
+    assertThat(text).contains("# TYPE copybara_phase_wall_seconds_total counter\n");
+    assertThat(text).contains("copybara_phase_executions_total"
+        + "{workflow=\"default\",mode=\"SQUASH\",phase=\"write\"} 1\n");
+  }
+
   @Test
   public void testSquashAlreadyMigrated() throws Exception {
     options.setForce(false); // Disable force so that we get an error
@@ -20,6 +20,9 @@ import static com.google.common.truth.Truth.assertThat;
 import static java.nio.charset.StandardCharsets.UTF_8;
 
 import com.google.common.collect.ImmutableList;
+import com.google.common.hash.Hashing;
+import com.google.copybara.Destination.Writer;
+import com.google.copybara.GeneralOptions;
 import com.google.copybara.ValidationException;
 import com.google.copybara.Destination.WriterResult;
 import com.google.copybara.RepoException;
@@ -39,6 +42,8 @@ import java.io.PrintStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.time.Instant;
+import java.util.HashMap;
+import java.util.Map;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
@@ -85,6 +90,8 @@ public class GerritDestinationTest {
     options = new OptionsBuilder();
     options.gitDestination.committerEmail = "commiter@email";
     options.gitDestination.committerName = "Bara Kopi";
+    options.git.repoStorage =
+        Files.createTempDirectory("GerritDestinationTest-repoStorage").toString();
     console = new TestingConsole();
     options.setConsole(console);
     excludedDestinationPaths = ImmutableList.of();
@@ -153,6 +160,48 @@ public class GerritDestinationTest {
         .isNotEqualTo(lastCommitChangeIdLine());
   }
 
+  @Test
+  public void changeIdMatchesCommitMsgHook() throws Exception {
+    fetch = "master";
+    options.setForce(true);
+    Map<String, String> env = new HashMap<>(options.general.getEnvironment());
+    env.put("GIT_AUTHOR_DATE", "1500000000 +0000");
+    env.put("GIT_COMMITTER_DATE", "1500000000 +0000");
+    options.general = new GeneralOptions(env, options.general.getFileSystem(),
+        options.general.isVerbose(), options.general.console(), options.general.getConfigRoot(),
+        options.general.isDisableReversibleCheck(), options.general.isForced());
+    Writer writer = destination()
+        .newWriter(new Glob(ImmutableList.of("**"), excludedDestinationPaths));
+
+    Files.write(workdir.resolve("file"), "some content".getBytes());
+    writer.write(TransformResults.of(workdir, new DummyReference("origin_ref")), console);
+    assertThat(lastCommitChangeIdLine()).isEqualTo("    Change-Id: " + expectedChangeId());
+
+    // The parent of the second commit is the first one
+    Files.write(workdir.resolve("file2"), "some more content".getBytes());
+    writer.write(TransformResults.of(workdir, new DummyReference("origin_ref")), console);
+    assertThat(lastCommitChangeIdLine()).isEqualTo("    Change-Id: " + expectedChangeId());
+  }
+
+  /**
+   * Computes the Change-Id for the last commit the same way Gerrit's commit-msg hook does.
+   */
+  private String expectedChangeId() throws RepoException {
+    String parent;
+    try {
+      parent = git("rev-parse", "refs/for/master^");
+    } catch (RepoException e) {
+      parent = "";
+    }
+    String ident = "Bara Kopi <commiter@email> 1500000000 +0000\n";
+    return "I" + Hashing.sha1().newHasher()
+        .putString(git("rev-parse", "refs/for/master^{tree}"), UTF_8)
+        .putString(parent, UTF_8)
+        .putString(ident, UTF_8)
+        .putString(ident, UTF_8)
+        .hash();
+  }
+
   @Test
   public void specifyChangeId() throws Exception {
     fetch = "master";
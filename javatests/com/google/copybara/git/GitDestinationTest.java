@@ -21,6 +21,7 @@ import static java.nio.charset.StandardCharsets.UTF_8;
 import static org.junit.Assert.fail;
 
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterables;
 import com.google.copybara.Change;
 import com.google.copybara.ChangeVisitable.VisitResult;
 import com.google.copybara.Destination;
@@ -43,9 +44,13 @@ import com.google.copybara.util.console.testing.TestingConsole;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.time.Instant;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
@@ -80,6 +85,8 @@ public class GitDestinationTest {
     options = new OptionsBuilder().setConsole(console);
     options.gitDestination.committerEmail = "commiter@email";
     options.gitDestination.committerName = "Bara Kopi";
+    options.git.repoStorage =
+        Files.createTempDirectory("GitDestinationTest-repoStorage").toString();
     destinationFiles = new Glob(ImmutableList.of("**"));
 
     url = "file://" + repoGitDir;
@@ -278,6 +285,45 @@ public class GitDestinationTest {
         .containsNoMoreMessages();
   }
 
+  @Test
+  public void processBatchedPushes() throws Exception {
+    fetch = "master";
+    push = "master";
+    options.gitDestination.pushBatchSize = 2;
+    Writer writer = destinationFirstCommit().newWriter(destinationFiles);
+    for (int i = 1; i <= 3; i++) {
+      Files.write(workdir.resolve("test.txt"), ("content " + i).getBytes(UTF_8));
+      process(writer, new DummyReference("ref" + i));
+    }
+    // The first two changes are pushed together and the third one waits for the flush.
+    assertCommitCount(2, "master");
+    assertCommitHasOrigin("master", "ref2");
+
+    writer.flush(console);
+    assertCommitCount(3, "master");
+    assertCommitHasOrigin("master", "ref3");
+  }
+
+  @Test
+  public void processBatchedPushFailureReportsLastPushedChange() throws Exception {
+    fetch = "master";
+    push = "master";
+    options.gitDestination.pushBatchSize = 2;
+    Writer writer = destinationFirstCommit().newWriter(destinationFiles);
+    for (int i = 1; i <= 3; i++) {
+      Files.write(workdir.resolve("test.txt"), ("content " + i).getBytes(UTF_8));
+      process(writer, new DummyReference("ref" + i));
+    }
+    Path hook = repoGitDir.resolve("hooks/pre-receive");
+    Files.createDirectories(hook.getParent());
+    Files.write(hook, "#!/bin/sh\nexit 1\n".getBytes(UTF_8));
+    assertThat(hook.toFile().setExecutable(true)).isTrue();
+
+    thrown.expect(RepoException.class);
+    thrown.expectMessage("Last change pushed: ref2. Changes not pushed: [ref3]");
+    writer.flush(console);
+  }
+
   @Test
   public void processEmptyCommit() throws Exception {
     fetch = "master";
@@ -426,6 +472,37 @@ public class GitDestinationTest {
     assertCommitHasOrigin("master", "third_commit");
   }
 
+  @Test
+  public void destinationIsFetchedIntoRepoCache() throws Exception {
+    fetch = "master";
+    push = "master";
+
+    Files.write(workdir.resolve("test.txt"), "some content".getBytes());
+    process(destinationFirstCommit().newWriter(destinationFiles),
+        new DummyReference("first_commit"));
+    String firstCommit = repo().resolveReference("master").asString();
+
+    Files.write(workdir.resolve("test.txt"), "some other content".getBytes());
+    GitDestination destination = destination();
+    Destination.Writer writer = destination.newWriter(destinationFiles);
+    assertThat(writer.getPreviousRef(DummyOrigin.LABEL_NAME)).isEqualTo("first_commit");
+    process(writer, new DummyReference("second_commit"));
+    assertCommitHasOrigin("master", "second_commit");
+
+    GitRepository cache = GitRepository.bareRepoInCache(
+        url, System.getenv(), /*verbose=*/true, options.git.repoStorage);
+    // The destination was fetched once, before writing the second change
+    assertThat(cache.resolveReference("refs/copybara/destination/master").asString())
+        .isEqualTo(firstCommit);
+    // A reader sees the changes pushed by the writer
+    List<String> visited = new ArrayList<>();
+    destination.newReader(destinationFiles).visitChanges(null, change -> {
+      visited.add(change.getLabels().get(DummyOrigin.LABEL_NAME));
+      return VisitResult.CONTINUE;
+    });
+    assertThat(visited).containsExactly("second_commit", "first_commit").inOrder();
+  }
+
   @Test
   public void previousImportReference_nonCopybaraCommitsSinceLastMigrate() throws Exception {
     fetch = "master";
@@ -481,6 +558,101 @@ public class GitDestinationTest {
     destination().newWriter(destinationFiles).getPreviousRef(DummyOrigin.LABEL_NAME);
   }
 
+  @Test
+  public void previousImportReferenceSeveralCommitsBackInMultiLineBody() throws Exception {
+    fetch = "master";
+    push = "master";
+
+    Files.write(workdir.resolve("test.txt"), "some content".getBytes());
+    process(destinationFirstCommit().newWriter(destinationFiles),
+        new DummyReference("first_commit"));
+
+    Path scratchTree = Files.createTempDirectory("GitDestinationTest-scratchTree");
+    GitRepository scratchRepo = repo().withWorkTree(scratchTree);
+    scratchRepo.simpleCommand("checkout", "-q", "-f", "master");
+    Files.write(scratchTree.resolve("test.txt"), "labeled".getBytes());
+    scratchRepo.add().files("test.txt").run();
+    scratchRepo.simpleCommand("commit", "-m", ""
+        + "Manual commit\n"
+        + "\n"
+        + "First paragraph\n"
+        + "of the description.\n"
+        + "\n"
+        + "Other-Label: foo\n"
+        + DummyOrigin.LABEL_NAME + ": manual_commit\n"
+        + "Another-Label: bar\n");
+    for (int i = 0; i < 5; i++) {
+      Files.write(scratchTree.resolve("test.txt"), new byte[] {(byte) i});
+      scratchRepo.add().files("test.txt").run();
+      scratchRepo.simpleCommand("commit", "-m", ""
+          + "Unlabeled #" + i + "\n"
+          + "\n"
+          + "Mentions the label in the middle of a line: " + DummyOrigin.LABEL_NAME + ": no\n"
+          + "\n"
+          + "Last paragraph.\n");
+    }
+
+    assertThat(destination().newWriter(destinationFiles).getPreviousRef(DummyOrigin.LABEL_NAME))
+        .isEqualTo("manual_commit");
+  }
+
+  @Test
+  public void previousImportReferenceOnlyFollowsTheFirstParentOfMerges() throws Exception {
+    fetch = "master";
+    push = "master";
+
+    Files.write(workdir.resolve("test.txt"), "some content".getBytes());
+    process(destinationFirstCommit().newWriter(destinationFiles),
+        new DummyReference("first_commit"));
+
+    Path scratchTree = Files.createTempDirectory("GitDestinationTest-scratchTree");
+    GitRepository scratchRepo = repo().withWorkTree(scratchTree);
+
+    scratchRepo.simpleCommand("checkout", "-q", "-f", "-b", "side", "master");
+    Files.write(scratchTree.resolve("side.file"), new byte[] {1});
+    scratchRepo.add().files("side.file").run();
+    scratchRepo.simpleCommand("commit", "-m",
+        "side\n\n" + DummyOrigin.LABEL_NAME + ": side_commit\n");
+
+    scratchRepo.simpleCommand("checkout", "-q", "master");
+    Files.write(scratchTree.resolve("master.file"), new byte[] {2});
+    scratchRepo.add().files("master.file").run();
+    scratchRepo.simpleCommand("commit", "-m", "master");
+    scratchRepo.simpleCommand("merge", "--no-ff", "-m", "merge side", "side");
+
+    // The label of the second parent is not used, and the first parent is not visited
+    thrown.expect(RepoException.class);
+    thrown.expectMessage(
+        "Found commit with multiple parents (merge commit) when looking for "
+        + DummyOrigin.LABEL_NAME + ".");
+    destination().newWriter(destinationFiles).getPreviousRef(DummyOrigin.LABEL_NAME);
+  }
+
+  @Test
+  public void previousImportReferenceInAMergeCommit() throws Exception {
+    fetch = "master";
+    push = "master";
+
+    Files.write(workdir.resolve("test.txt"), "some content".getBytes());
+    process(destinationFirstCommit().newWriter(destinationFiles),
+        new DummyReference("first_commit"));
+
+    Path scratchTree = Files.createTempDirectory("GitDestinationTest-scratchTree");
+    GitRepository scratchRepo = repo().withWorkTree(scratchTree);
+
+    scratchRepo.simpleCommand("checkout", "-q", "-f", "-b", "side", "master");
+    Files.write(scratchTree.resolve("side.file"), new byte[] {1});
+    scratchRepo.add().files("side.file").run();
+    scratchRepo.simpleCommand("commit", "-m", "side");
+
+    scratchRepo.simpleCommand("checkout", "-q", "master");
+    scratchRepo.simpleCommand("merge", "--no-ff", "-m",
+        "merge side\n\n" + DummyOrigin.LABEL_NAME + ": merge_commit\n", "side");
+
+    assertThat(destination().newWriter(destinationFiles).getPreviousRef(DummyOrigin.LABEL_NAME))
+        .isEqualTo("merge_commit");
+  }
+
   @Test
   public void writesOriginTimestampToAuthorField() throws Exception {
     fetch = "master";
@@ -615,6 +787,174 @@ public class GitDestinationTest {
         .containsNoMoreFiles();
   }
 
+  @Test
+  public void incrementalIndexUpdatesChangedFiles() throws Exception {
+    fetch = "master";
+    push = "master";
+    options.gitDestination.incrementalIndex = true;
+
+    Path scratchTree = Files.createTempDirectory("GitDestinationTest-scratchTree");
+    Files.write(scratchTree.resolve("excluded.txt"), "some content".getBytes(UTF_8));
+    repo().withWorkTree(scratchTree)
+        .add().files("excluded.txt").run();
+    repo().withWorkTree(scratchTree)
+        .simpleCommand("commit", "-m", "message");
+
+    destinationFiles = new Glob(ImmutableList.of("**"), ImmutableList.of("excluded.txt"));
+    Writer writer = destination().newWriter(destinationFiles);
+    Files.createDirectories(workdir.resolve("dir"));
+    Files.write(workdir.resolve("dir/deleted.txt"), "deleted".getBytes(UTF_8));
+    Files.write(workdir.resolve("changed.txt"), "one".getBytes(UTF_8));
+    Files.write(workdir.resolve("excluded.txt"), "ignored".getBytes(UTF_8));
+    process(writer, new DummyReference("ref1"));
+
+    Files.delete(workdir.resolve("dir/deleted.txt"));
+    Files.delete(workdir.resolve("dir"));
+    Files.write(workdir.resolve("changed.txt"), "two".getBytes(UTF_8));
+    Files.write(workdir.resolve("dir"), "dir is a file now".getBytes(UTF_8));
+    process(writer, new DummyReference("ref2"));
+
+    GitTesting.assertThatCheckout(repo(), "master")
+        .containsFile("excluded.txt", "some content")
+        .containsFile("changed.txt", "two")
+        .containsFile("dir", "dir is a file now")
+        .containsNoMoreFiles();
+    assertCommitCount(3, "master");
+    assertCommitHasOrigin("master", "ref2");
+
+    thrown.expect(EmptyChangeException.class);
+    process(writer, new DummyReference("ref3"));
+  }
+
+  @Test
+  public void temporaryWorkTreeIsRemovedOnFlush() throws Exception {
+    fetch = "master";
+    push = "master";
+    Files.write(workdir.resolve("test.txt"), "some content".getBytes(UTF_8));
+    process(destinationFirstCommit().newWriter(destinationFiles), new DummyReference("ref1"));
+
+    Writer writer = destination().newWriter(destinationFiles);
+    Files.write(workdir.resolve("test.txt"), "other content".getBytes(UTF_8));
+    process(writer, new DummyReference("ref2"));
+    GitRepository cache = GitRepository.bareRepoInCache(
+        url, System.getenv(), /*verbose=*/true, options.git.repoStorage);
+    assertThat(cache.simpleCommand("worktree", "list", "--porcelain").getStdout())
+        .contains("detached");
+
+    writer.flush(console);
+    assertThat(cache.simpleCommand("worktree", "list", "--porcelain").getStdout())
+        .doesNotContain("detached");
+    assertCommitHasOrigin("master", "ref2");
+  }
+
+  @Test
+  public void incrementalIndexKeepsWorkTreeBetweenMigrations() throws Exception {
+    fetch = "master";
+    push = "master";
+    options.gitDestination.incrementalIndex = true;
+    Files.write(workdir.resolve("unchanged.txt"), "unchanged".getBytes(UTF_8));
+    Files.write(workdir.resolve("changed.txt"), "one".getBytes(UTF_8));
+    process(destinationFirstCommit().newWriter(destinationFiles), new DummyReference("ref1"));
+
+    Writer writer = destination().newWriter(destinationFiles);
+    Files.write(workdir.resolve("changed.txt"), "two".getBytes(UTF_8));
+    process(writer, new DummyReference("ref2"));
+    writer.flush(console);
+
+    Path workTree;
+    try (Stream<Path> files = Files.list(
+        Paths.get(options.git.repoStorage).resolve("destination_worktrees"))) {
+      workTree = Iterables.getOnlyElement(
+          files.filter(Files::isDirectory).collect(Collectors.toList()));
+    }
+    Object unchangedFileKey = fileKey(workTree.resolve("unchanged.txt"));
+
+    writer = destination().newWriter(destinationFiles);
+    Files.write(workdir.resolve("changed.txt"), "three".getBytes(UTF_8));
+    process(writer, new DummyReference("ref3"));
+    writer.flush(console);
+
+    assertThat(fileKey(workTree.resolve("unchanged.txt"))).isEqualTo(unchangedFileKey);
+    GitTesting.assertThatCheckout(repo(), "master")
+        .containsFile("unchanged.txt", "unchanged")
+        .containsFile("changed.txt", "three")
+        .containsNoMoreFiles();
+    assertCommitCount(3, "master");
+  }
+
+  @Test
+  public void incrementalIndexReusedWorkTreeForgetsCommitter() throws Exception {
+    fetch = "master";
+    push = "master";
+    options.gitDestination.incrementalIndex = true;
+    Path home = Files.createTempDirectory("home");
+    Files.write(home.resolve(".gitconfig"),
+        "[user]\n  name = Global User\n  email = global@email\n".getBytes(UTF_8));
+    options.setHomeDir(home.toString());
+    options.git.repoStorage =
+        Files.createTempDirectory("GitDestinationTest-repoStorage").toString();
+    Files.write(workdir.resolve("test.txt"), "one".getBytes(UTF_8));
+    process(destinationFirstCommit().newWriter(destinationFiles), new DummyReference("ref1"));
+
+    Writer writer = destination().newWriter(destinationFiles);
+    Files.write(workdir.resolve("test.txt"), "two".getBytes(UTF_8));
+    process(writer, new DummyReference("ref2"));
+    writer.flush(console);
+    assertThat(git("log", "-1", "--format=%cn", "master").trim()).isEqualTo("Bara Kopi");
+
+    options.gitDestination.committerName = "";
+    options.gitDestination.committerEmail = "";
+    writer = destination().newWriter(destinationFiles);
+    Files.write(workdir.resolve("test.txt"), "three".getBytes(UTF_8));
+    process(writer, new DummyReference("ref3"));
+    writer.flush(console);
+    assertThat(git("log", "-1", "--format=%cn", "master").trim()).isEqualTo("Global User");
+  }
+
+  @Test
+  public void originAlternatesAvoidStoringOriginObjects() throws Exception {
+    fetch = "master";
+    push = "master";
+    options.gitDestination.originAlternates = true;
+    Files.write(workdir.resolve("other.txt"), "other".getBytes(UTF_8));
+    process(destinationFirstCommit().newWriter(destinationFiles), new DummyReference("ref1"));
+
+    Path originWorkTree = Files.createTempDirectory("origin");
+    GitRepository originRepo =
+        GitRepository.initScratchRepo(/*verbose=*/true, originWorkTree, System.getenv());
+    Files.write(originWorkTree.resolve("foo.txt"), "origin content".getBytes(UTF_8));
+    originRepo.add().files("foo.txt").run();
+    originRepo.simpleCommand("commit", "-m", "origin commit");
+    String blob = originRepo.simpleCommand("rev-parse", "HEAD:foo.txt").getStdout().trim();
+    GitOrigin origin = skylark.eval("result", "result = git.origin(\n"
+        + "    url = 'file://" + originWorkTree + "',\n"
+        + "    ref = 'master',\n"
+        + ")");
+    origin.resolve("master");
+
+    Files.write(workdir.resolve("foo.txt"), "origin content".getBytes(UTF_8));
+    process(destination().newWriter(destinationFiles, origin), new DummyReference("ref2"));
+
+    GitTesting.assertThatCheckout(repo(), "master")
+        .containsFile("other.txt", "other")
+        .containsFile("foo.txt", "origin content")
+        .containsNoMoreFiles();
+    Path destinationCache;
+    try (Stream<Path> repos = Files.list(Paths.get(options.git.repoStorage))) {
+      destinationCache = Iterables.getOnlyElement(repos
+          .filter(r -> Files.exists(r.resolve("objects/info/alternates")))
+          .collect(Collectors.toList()));
+    }
+    assertThat(Files.exists(destinationCache.resolve(
+        "objects/" + blob.substring(0, 2) + "/" + blob.substring(2)))).isFalse();
+    assertThat(origin.getRepository().simpleCommand("config", "--get", "gc.pruneExpire")
+        .getStdout().trim()).isEqualTo("never");
+  }
+
+  private static Object fileKey(Path file) throws IOException {
+    return Files.readAttributes(file, BasicFileAttributes.class).fileKey();
+  }
+
   @Test
   public void excludedDestinationPathsIgnoreGitTreeFiles() throws Exception {
     fetch = "master";
@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2016 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.copybara.git;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.fail;
+
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableList;
+import com.google.copybara.RepoException;
+import com.google.copybara.git.GitObjectService.GitObject;
+import com.google.copybara.git.GitObjectService.ObjectInfo;
+import com.google.copybara.git.GitObjectService.TreeEntry;
+import com.google.copybara.git.GitRepository.GitObjectType;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class GitObjectServiceTest {
+
+  private GitRepository repository;
+  private GitObjectService objects;
+  private String head;
+
+  @Before
+  public void setup() throws Exception {
+    Path workdir = Files.createTempDirectory("workdir");
+    repository = GitRepository.initScratchRepo(/*verbose=*/true, System.getenv())
+        .withWorkTree(workdir);
+    Files.createDirectories(workdir.resolve("dir"));
+    Files.write(workdir.resolve("foo.txt"), "foo\n".getBytes(UTF_8));
+    Files.write(workdir.resolve("dir/bar.txt"), "bar\n".getBytes(UTF_8));
+    repository.add().files("foo.txt", "dir/bar.txt").run();
+    repository.simpleCommand("commit", "-m", "message");
+    head = repository.revParse("HEAD");
+    objects = GitObjectService.forGitDir(repository.getGitDir(), System.getenv());
+  }
+
+  @Test
+  public void testInfo() throws Exception {
+    ObjectInfo commit = objects.info(head);
+    assertThat(commit.getSha1()).isEqualTo(head);
+    assertThat(commit.getType()).isEqualTo(GitObjectType.COMMIT);
+
+    ObjectInfo blob = objects.info(head + ":foo.txt");
+    assertThat(blob.getType()).isEqualTo(GitObjectType.BLOB);
+    assertThat(blob.getSize()).isEqualTo(4);
+  }
+
+  @Test
+  public void testMissing() throws Exception {
+    assertThat(objects.info("0000000000000000000000000000000000000000")).isNull();
+    assertThat(objects.info(head + ":missing.txt")).isNull();
+    assertThat(objects.read(head + ":missing.txt")).isNull();
+    // The processes keep working after a miss
+    assertThat(objects.info(head)).isNotNull();
+  }
+
+  @Test
+  public void testAmbiguousShortSha1() throws Exception {
+    // Enough blobs so that at least two of them share the first four characters
+    Path blobs = Files.createTempDirectory("blobs");
+    List<String> args = new ArrayList<>(ImmutableList.of("hash-object", "-w"));
+    for (int i = 0; i < 2000; i++) {
+      Path blob = blobs.resolve("blob" + i);
+      Files.write(blob, ("blob " + i).getBytes(UTF_8));
+      args.add(blob.toString());
+    }
+    Set<String> prefixes = new HashSet<>();
+    String ambiguous = null;
+    for (String sha1 : Splitter.on('\n').omitEmptyStrings().split(
+        repository.simpleCommand(args.toArray(new String[0])).getStdout())) {
+      if (!prefixes.add(sha1.substring(0, 4))) {
+        ambiguous = sha1.substring(0, 4);
+        break;
+      }
+    }
+    assertThat(ambiguous).isNotNull();
+
+    try {
+      objects.info(ambiguous);
+      fail();
+    } catch (RepoException e) {
+      assertThat(e.getMessage()).contains("'" + ambiguous + "': the short SHA-1 is ambiguous");
+    }
+    // The processes keep working
+    assertThat(objects.info(head)).isNotNull();
+  }
+
+  @Test
+  public void testRead() throws Exception {
+    GitObject blob = objects.read(head + ":dir/bar.txt");
+    assertThat(new String(blob.getContent(), UTF_8)).isEqualTo("bar\n");
+    assertThat(objects.read(head + ":foo.txt").getContent()).isEqualTo("foo\n".getBytes(UTF_8));
+  }
+
+  @Test
+  public void testParseTree() throws Exception {
+    List<TreeEntry> entries = objects.read(head + "^{tree}").parseTree();
+    assertThat(entries).hasSize(2);
+    assertThat(entries.get(0).getName()).isEqualTo("dir");
+    assertThat(entries.get(0).getMode()).isEqualTo("040000");
+    assertThat(entries.get(0).getType()).isEqualTo(GitObjectType.TREE);
+    assertThat(entries.get(0).getSha1()).isEqualTo(repository.revParse("HEAD:dir"));
+    assertThat(entries.get(1).getName()).isEqualTo("foo.txt");
+    assertThat(entries.get(1).getMode()).isEqualTo("100644");
+    assertThat(entries.get(1).getType()).isEqualTo(GitObjectType.BLOB);
+  }
+
+  @Test
+  public void testSeesNewObjects() throws Exception {
+    assertThat(objects.info(head)).isNotNull();
+    Files.write(repository.getWorkTree().resolve("foo.txt"), "changed".getBytes(UTF_8));
+    repository.simpleCommand("commit", "-a", "-m", "message2");
+    assertThat(objects.info(repository.revParse("HEAD"))).isNotNull();
+  }
+
+  @Test
+  public void testSeesObjectsOfNewAlternates() throws Exception {
+    Path otherWorkdir = Files.createTempDirectory("other");
+    GitRepository other = GitRepository.initScratchRepo(/*verbose=*/true, System.getenv())
+        .withWorkTree(otherWorkdir);
+    Files.write(otherWorkdir.resolve("other.txt"), "other\n".getBytes(UTF_8));
+    other.add().files("other.txt").run();
+    other.simpleCommand("commit", "-m", "other");
+    String otherHead = other.revParse("HEAD");
+    assertThat(objects.info(otherHead)).isNull();
+
+    repository.addAlternates(ImmutableList.of(other.getGitDir().resolve("objects")));
+
+    assertThat(objects.info(otherHead)).isNotNull();
+  }
+
+  @Test
+  public void testSharedByRepositoriesWithSameGitDir() throws Exception {
+    assertThat(GitObjectService.forGitDir(repository.getGitDir(), System.getenv()))
+        .isSameAs(objects);
+  }
+}
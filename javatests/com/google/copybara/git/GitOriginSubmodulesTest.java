@@ -116,6 +116,56 @@ public class GitOriginSubmodulesTest {
         .containsNoMoreFiles();
   }
 
+  @Test
+  public void testSeveralSubmodules() throws Exception {
+    Path base = Files.createTempDirectory("base");
+    GitRepository r1 = createRepoWithFoo(base, "r1");
+    GitRepository r2 = createRepoWithFoo(base, "r2");
+    GitRepository r3 = createRepoWithFoo(base, "r3");
+    r3.simpleCommand("submodule", "add", "--name", "a", "file://" + r1.getWorkTree(), "a");
+    r3.simpleCommand("submodule", "add", "--name", "b", "file://" + r2.getWorkTree(), "b");
+    // Same url as 'a'
+    r3.simpleCommand("submodule", "add", "--name", "c", "file://" + r1.getWorkTree(), "dir/c");
+    commit(r3, "adding submodules");
+
+    GitOrigin origin = origin("file://" + r3.getGitDir(), "master");
+    GitReference master = origin.resolve("master");
+    origin.newReader(Glob.ALL_FILES, authoring).checkout(master, checkoutDir);
+
+    FileSubjects.assertThatPath(checkoutDir)
+        .containsFiles(GITMODULES)
+        .containsFile("foo", "1")
+        .containsFile("a/foo", "1")
+        .containsFile("b/foo", "1")
+        .containsFile("dir/c/foo", "1")
+        .containsNoMoreFiles();
+  }
+
+  @Test
+  public void testSameSubmoduleUrlInSeveralLevels() throws Exception {
+    Path base = Files.createTempDirectory("base");
+    GitRepository r1 = createRepoWithFoo(base, "r1");
+    GitRepository r2 = createRepoWithFoo(base, "r2");
+    r2.simpleCommand("submodule", "add", "--name", "r1", "file://" + r1.getWorkTree(), "r1");
+    commit(r2, "adding r1 submodule");
+    GitRepository r3 = createRepoWithFoo(base, "r3");
+    r3.simpleCommand("submodule", "add", "--name", "a", "file://" + r1.getWorkTree(), "a");
+    r3.simpleCommand("submodule", "add", "--name", "b", "file://" + r2.getWorkTree(), "b");
+    commit(r3, "adding submodules");
+
+    GitOrigin origin = origin("file://" + r3.getGitDir(), "master");
+    GitReference master = origin.resolve("master");
+    origin.newReader(Glob.ALL_FILES, authoring).checkout(master, checkoutDir);
+
+    FileSubjects.assertThatPath(checkoutDir)
+        .containsFiles(GITMODULES, "b/" + GITMODULES)
+        .containsFile("foo", "1")
+        .containsFile("a/foo", "1")
+        .containsFile("b/foo", "1")
+        .containsFile("b/r1/foo", "1")
+        .containsNoMoreFiles();
+  }
+
   private GitRepository createRepoWithFoo(Path base, String name)
       throws IOException, RepoException, ValidationException {
     Files.createDirectories(base.resolve(name));
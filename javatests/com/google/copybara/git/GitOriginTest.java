@@ -23,6 +23,7 @@ import static org.junit.Assert.fail;
 
 import com.google.common.base.Strings;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Iterables;
 import com.google.copybara.CannotResolveReferenceException;
@@ -47,6 +48,9 @@ import java.time.Instant;
 import java.time.ZonedDateTime;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
@@ -124,6 +128,20 @@ public class GitOriginTest {
             + ")", url, ref));
   }
 
+  /**
+   * Returns an origin for the master branch whose first fetch only downloads one commit
+   * ({@code --git-origin-fetch-depth=1}).
+   */
+  private GitOrigin shallowOrigin() throws ValidationException {
+    return shallowOrigin(/*depth=*/ 1);
+  }
+
+  private GitOrigin shallowOrigin(int depth) throws ValidationException {
+    options.git.originFetchDepth = depth;
+    ref = "master";
+    return origin();
+  }
+
   private String git(String... params) throws RepoException {
     return repo.git(remote, params).getStdout();
   }
@@ -233,12 +251,126 @@ public class GitOriginTest {
     assertThat(Files.exists(testFile)).isFalse();
   }
 
+  @Test
+  public void testCheckoutOnlyOriginFilesRoots() throws Exception {
+    Files.createDirectories(remote.resolve("dir/sub"));
+    Files.write(remote.resolve("dir/sub/foo.txt"), "foo".getBytes());
+    Files.createDirectories(remote.resolve("other"));
+    Files.write(remote.resolve("other/bar.txt"), "bar".getBytes());
+    repo.add().files("dir/sub/foo.txt", "other/bar.txt").run();
+    git("commit", "-m", "second commit");
+    // Leave entries for all the files in the index of the cached repository
+    newReader().checkout(origin.resolve("master"), Files.createTempDirectory("full"));
+
+    originFiles = new Glob(ImmutableList.of("dir/**", "missing/**"));
+    newReader().checkout(origin.resolve("master"), checkoutDir);
+
+    assertThatPath(checkoutDir)
+        .containsFile("dir/sub/foo.txt", "foo")
+        .containsNoMoreFiles();
+  }
+
+  @Test
+  public void testCheckoutOnlyOriginFilesRootsUsesRootGitAttributes() throws Exception {
+    Files.write(remote.resolve(".gitattributes"), "* text eol=crlf\n".getBytes(UTF_8));
+    Files.createDirectories(remote.resolve("dir/sub"));
+    Files.write(remote.resolve("dir/sub/foo.txt"), "a\nb\n".getBytes(UTF_8));
+    repo.add().files(".gitattributes", "dir/sub/foo.txt").run();
+    git("commit", "-m", "with attributes");
+    GitReference withAttributes = origin.resolve("master");
+    git("rm", "-q", ".gitattributes");
+    git("commit", "-m", "without attributes");
+    GitReference withoutAttributes = origin.resolve("master");
+    originFiles = new Glob(ImmutableList.of("dir/**"));
+
+    newReader().checkout(withAttributes, checkoutDir);
+    assertThatPath(checkoutDir)
+        .containsFile("dir/sub/foo.txt", "a\r\nb\r\n")
+        .containsNoMoreFiles();
+
+    // The attributes of the previous checkout are not used
+    Path otherDir = Files.createTempDirectory("other");
+    newReader().checkout(withoutAttributes, otherDir);
+    assertThatPath(otherDir)
+        .containsFile("dir/sub/foo.txt", "a\nb\n")
+        .containsNoMoreFiles();
+  }
+
+  @Test
+  public void testCheckoutChangedFiles() throws Exception {
+    GitReference first = origin.resolve("master");
+    Files.write(remote.resolve("test.txt"), "new content".getBytes());
+    Files.createDirectories(remote.resolve("dir"));
+    Files.write(remote.resolve("dir/added.txt"), "added".getBytes());
+    Files.write(remote.resolve("unchanged.txt"), "unchanged".getBytes());
+    repo.add().files("test.txt", "dir/added.txt", "unchanged.txt").run();
+    git("commit", "-m", "second commit");
+    GitReference second = origin.resolve("master");
+
+    git("rm", "test.txt");
+    Files.write(remote.resolve("dir/added.txt"), "modified".getBytes());
+    repo.add().files("dir/added.txt").run();
+    git("commit", "-m", "third commit");
+
+    ImmutableSet<String> changed =
+        newReader().checkoutChangedFiles(second, origin.resolve("master"), checkoutDir);
+
+    assertThat(changed).containsExactly("test.txt", "dir/added.txt");
+    assertThatPath(checkoutDir)
+        .containsFile("dir/added.txt", "modified")
+        .containsNoMoreFiles();
+
+    assertThat(newReader().checkoutChangedFiles(first, second, Files.createTempDirectory("x")))
+        .containsExactly("test.txt", "dir/added.txt", "unchanged.txt");
+  }
+
+  @Test
+  public void testCheckoutChangedFilesNotSupportedWithHook() throws Exception {
+    options.git.originCheckoutHook = "/bin/true";
+    origin = origin();
+    GitReference first = origin.resolve("master");
+
+    assertThat(newReader().checkoutChangedFiles(first, first, checkoutDir)).isNull();
+  }
+
   @Test
   public void testResolveNonExistentFullSha1() throws Exception {
     thrown.expect(CannotResolveReferenceException.class);
     origin.resolve(Strings.repeat("a", 40));
   }
 
+  @Test
+  public void testResolveExistingSha1DoesNotFetch() throws Exception {
+    origin.resolve("master");
+    // Any fetch would fail now
+    Files.move(remote, Files.createTempDirectory("moved").resolve("remote"));
+
+    assertThat(origin.resolve(firstCommitRef).asString()).isEqualTo(firstCommitRef);
+  }
+
+  @Test
+  public void testConcurrentResolvesOfDifferentRefs() throws Exception {
+    git("branch", "other");
+    Files.write(remote.resolve("test.txt"), "new content".getBytes());
+    repo.add().files("test.txt").run();
+    git("commit", "-m", "second file", "--date", commitTime);
+    String masterRef = git("rev-parse", "master").trim();
+    // Both origins use the same repository of the cache
+    GitOrigin otherOrigin = origin();
+
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    try {
+      for (int i = 0; i < 10; i++) {
+        Future<GitReference> master = executor.submit(() -> origin.resolve("master"));
+        Future<GitReference> other = executor.submit(() -> otherOrigin.resolve("other"));
+        assertThat(master.get().asString()).isEqualTo(masterRef);
+        assertThat(other.get().asString()).isEqualTo(firstCommitRef);
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
   @Test
   public void testResolveNonExistentRef() throws Exception {
     thrown.expect(CannotResolveReferenceException.class);
@@ -328,6 +460,87 @@ public class GitOriginTest {
     }
   }
 
+  @Test
+  public void testChangesDeepensShallowHistory() throws Exception {
+    origin = shallowOrigin();
+    String author = "John Name <john@name.com>";
+    for (int i = 2; i <= 6; i++) {
+      singleFileCommit(author, "change" + i, "test.txt", "some content" + i);
+    }
+
+    GitReference head = origin.resolve("HEAD");
+    assertThat(origin.getRepository().isShallow()).isTrue();
+
+    ImmutableList<Change<GitReference>> changes = newReader()
+        .changes(origin.resolve(firstCommitRef), head);
+
+    assertThat(changes).hasSize(5);
+    assertThat(changes.get(0).getMessage()).isEqualTo("change2\n");
+    assertThat(changes.get(4).getMessage()).isEqualTo("change6\n");
+  }
+
+  @Test
+  public void testChangesDoesNotDeepenIfFromIsInTheShallowHistory() throws Exception {
+    origin = shallowOrigin(/*depth=*/ 2);
+    String author = "John Name <john@name.com>";
+    singleFileCommit(author, "change2", "test.txt", "some content2");
+    singleFileCommit(author, "change3", "test.txt", "some content3");
+
+    GitReference head = origin.resolve("HEAD");
+    // Already fetched with HEAD
+    GitReference parent = origin.resolve(git("rev-parse", "HEAD~1").trim());
+    assertThat(origin.getRepository().isShallow()).isTrue();
+
+    ImmutableList<Change<GitReference>> changes = newReader().changes(parent, head);
+
+    assertThat(changes).hasSize(1);
+    assertThat(changes.get(0).getMessage()).isEqualTo("change3\n");
+    assertThat(origin.getRepository().isShallow()).isTrue();
+    console.assertThat()
+        .timesInLog(0, MessageType.PROGRESS, "Git Origin: Fetching .*");
+  }
+
+  @Test
+  public void testChangesFetchesTheCompleteHistoryAfterMaxDeepenAttempts() throws Exception {
+    origin = shallowOrigin();
+    String author = "John Name <john@name.com>";
+    // More than the 1 + 2 + 4 + ... + 32 commits fetched by the deepen attempts
+    for (int i = 2; i <= 70; i++) {
+      singleFileCommit(author, "change" + i, "test.txt", "some content" + i);
+    }
+
+    GitReference head = origin.resolve("HEAD");
+    ImmutableList<Change<GitReference>> changes = newReader()
+        .changes(origin.resolve(firstCommitRef), head);
+
+    assertThat(changes).hasSize(69);
+    assertThat(changes.get(0).getMessage()).isEqualTo("change2\n");
+    assertThat(changes.get(68).getMessage()).isEqualTo("change70\n");
+    assertThat(origin.getRepository().isShallow()).isFalse();
+    console.assertThat()
+        .onceInLog(MessageType.PROGRESS, "Git Origin: Fetching 2 more commits of .*")
+        .onceInLog(MessageType.PROGRESS, "Git Origin: Fetching 32 more commits of .*")
+        .timesInLog(0, MessageType.PROGRESS, "Git Origin: Fetching 64 more commits of .*")
+        .onceInLog(MessageType.PROGRESS, "Git Origin: Fetching the complete history of .*");
+  }
+
+  @Test
+  public void testPartialCloneFetchesFilesOnCheckout() throws Exception {
+    git("config", "uploadpack.allowFilter", "true");
+    options.git.originPartialCloneFilter = "blob:none";
+    origin = origin();
+    singleFileCommit("John Name <john@name.com>", "change2", "test.txt", "new content");
+
+    newReader().checkout(origin.resolve("HEAD"), checkoutDir);
+
+    assertThatPath(checkoutDir)
+        .containsFile("test.txt", "new content")
+        .containsNoMoreFiles();
+    assertThat(origin.getRepository()
+        .simpleCommand("config", "remote.origin.partialclonefilter").getStdout().trim())
+        .isEqualTo("blob:none");
+  }
+
   @Test
   public void testNoChanges() throws Exception {
     ImmutableList<Change<GitReference>> changes = newReader()
@@ -369,6 +582,24 @@ public class GitOriginTest {
             + "  Discarded value: 'bar'");
   }
 
+  @Test
+  public void testChangeMessageIsKeptVerbatim() throws Exception {
+    Files.write(remote.resolve("test.txt"), "content".getBytes(UTF_8));
+    repo.add().files("test.txt").run();
+    git("commit", "--cleanup=verbatim", "--author=John Name <john@name.com>", "-m", ""
+        + "Title\n"
+        + "\n"
+        + "  Indented line\n"
+        + "foo: bar\n"
+        + "\n"
+        + "\n");
+
+    Change<GitReference> change = newReader().change(getLastCommitRef());
+    // Trailing empty lines are ignored, like in the default git log format
+    assertThat(change.getMessage()).isEqualTo("Title\n\n  Indented line\nfoo: bar\n");
+    assertThat(change.getLabels()).isEqualTo(ImmutableMap.of("foo", "bar"));
+  }
+
   @Test
   public void testNoChange() throws Exception {
     // This is needed to initialize the local repo
@@ -402,6 +633,60 @@ public class GitOriginTest {
     assertThat(visited.get(1).firstLineMessage()).isEqualTo("two");
   }
 
+  @Test
+  public void testVisitStopsReadingHistory() throws Exception {
+    for (int i = 0; i < 30; i++) {
+      singleFileCommit("John Name <john@name.com>", "change" + i, "test.txt", "content" + i);
+    }
+    List<String> visited = new ArrayList<>();
+    newReader().visitChanges(getLastCommitRef(),
+        input -> {
+          visited.add(input.firstLineMessage());
+          return visited.size() == 3 ? VisitResult.TERMINATE : VisitResult.CONTINUE;
+        });
+
+    assertThat(visited).containsExactly("change29", "change28", "change27").inOrder();
+  }
+
+  @Test
+  public void testVisitPastTheShallowBoundary() throws Exception {
+    origin = shallowOrigin();
+    for (int i = 2; i <= 4; i++) {
+      singleFileCommit("John Name <john@name.com>", "change" + i, "test.txt", "content" + i);
+    }
+    GitReference head = origin.resolve("HEAD");
+    assertThat(origin.getRepository().isShallow()).isTrue();
+
+    List<String> visited = new ArrayList<>();
+    newReader().visitChanges(head,
+        input -> {
+          visited.add(input.firstLineMessage());
+          return VisitResult.CONTINUE;
+        });
+
+    // Each change is visited once, even if the history is read again after deepening it
+    assertThat(visited)
+        .containsExactly("change4", "change3", "change2", "first file").inOrder();
+    assertThat(origin.getRepository().isShallow()).isFalse();
+  }
+
+  @Test
+  public void testVisitDoesNotDeepenIfTerminatedBeforeTheShallowBoundary() throws Exception {
+    origin = shallowOrigin();
+    singleFileCommit("John Name <john@name.com>", "change2", "test.txt", "content2");
+    GitReference head = origin.resolve("HEAD");
+
+    List<String> visited = new ArrayList<>();
+    newReader().visitChanges(head,
+        input -> {
+          visited.add(input.firstLineMessage());
+          return VisitResult.TERMINATE;
+        });
+
+    assertThat(visited).containsExactly("change2");
+    assertThat(origin.getRepository().isShallow()).isTrue();
+  }
+
   @Test
   public void testVisitMerge() throws Exception {
     createBranchMerge("John Name <john@name.com>");
@@ -26,12 +26,17 @@ import static java.nio.charset.StandardCharsets.UTF_8;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterables;
 import com.google.copybara.CannotResolveReferenceException;
 import com.google.copybara.RepoException;
+import com.google.copybara.RunScope;
+import com.google.copybara.git.GitRepository.GitObjectType;
 import com.google.copybara.git.GitRepository.StatusFile;
+import com.google.copybara.git.GitRepository.TreeElement;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.concurrent.CountDownLatch;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
@@ -75,6 +80,68 @@ public class GitRepositoryTest {
     assertThat(ImmutableSet.of(after.values())).hasSize(1);
   }
 
+  @Test
+  public void testReadOnlyCommandsDontWaitForTheCacheLock() throws Exception {
+    String repoStorage = Files.createTempDirectory("repoStorage").toString();
+    GitRepository cache =
+        GitRepository.bareRepoInCache("file:///foo", System.getenv(), /*verbose=*/true,
+            repoStorage);
+    cache.initGitDir();
+    CountDownLatch finished = new CountDownLatch(1);
+    // Not a read-only command, so it holds the lock while it runs
+    Thread slowCommand = new Thread(() -> {
+      try {
+        cache.simpleCommand("-c", "alias.slow=!sleep 5", "slow");
+      } catch (RepoException e) {
+        throw new RuntimeException(e);
+      } finally {
+        finished.countDown();
+      }
+    });
+    slowCommand.start();
+    Thread.sleep(500);
+
+    GitRepository other =
+        GitRepository.bareRepoInCache("file:///foo", System.getenv(), /*verbose=*/true,
+            repoStorage);
+    assertThat(other.simpleCommand("rev-parse", "--git-dir").getStdout().trim())
+        .isEqualTo(cache.getGitDir().toString());
+    assertThat(finished.getCount()).isEqualTo(1);
+    slowCommand.join();
+  }
+
+  @Test
+  public void testFetchSingleRefOncePerRun() throws Exception {
+    Files.write(workdir.resolve("foo.txt"), "foo".getBytes(UTF_8));
+    repository.add().files("foo.txt").run();
+    repository.simpleCommand("commit", "-m", "first");
+    String first = repository.revParse("HEAD");
+    String url = "file://" + repository.getGitDir();
+    GitRepository cache = GitRepository.bareRepo(Files.createTempDirectory("cache"),
+        System.getenv(), /*verbose=*/true);
+    cache.initGitDir();
+
+    try (RunScope ignored = RunScope.enter()) {
+      assertThat(cache.fetchSingleRef(url, "master").asString()).isEqualTo(first);
+      Files.write(workdir.resolve("foo.txt"), "bar".getBytes(UTF_8));
+      repository.simpleCommand("commit", "-a", "-m", "second");
+      // Not fetched again
+      assertThat(cache.fetchSingleRef(url, "master").asString()).isEqualTo(first);
+
+      // A push can change the references, so they are fetched again
+      cache.simpleCommand("push", url, first + ":refs/heads/other");
+      assertThat(cache.fetchSingleRef(url, "master").asString())
+          .isEqualTo(repository.revParse("HEAD"));
+    }
+    Files.write(workdir.resolve("foo.txt"), "baz".getBytes(UTF_8));
+    repository.simpleCommand("commit", "-a", "-m", "third");
+    // Another run fetches it again
+    try (RunScope ignored = RunScope.enter()) {
+      assertThat(cache.fetchSingleRef(url, "master").asString())
+          .isEqualTo(repository.revParse("HEAD"));
+    }
+  }
+
   @Test
   public void testStatus() throws RepoException, IOException {
     GitRepository dest = GitRepository.bareRepo(Files.createTempDirectory("destDir"),
@@ -160,6 +227,33 @@ public class GitRepositoryTest {
     assertThat(result.getInserted()).isEmpty();
   }
 
+  @Test
+  public void testFetchOnlyReportsFetchedRefs() throws Exception {
+    GitRepository dest = GitRepository.bareRepo(Files.createTempDirectory("destDir"),
+        System.getenv(), /*verbose=*/true);
+    dest.initGitDir();
+
+    Files.write(workdir.resolve("foo.txt"), new byte[]{});
+    repository.add().files("foo.txt").run();
+    repository.simpleCommand("commit", "foo.txt", "-m", "message");
+    repository.simpleCommand("branch", "other");
+    repository.simpleCommand("tag", "a_tag");
+
+    String fetchUrl = "file://" + repository.getGitDir();
+
+    FetchResult result = dest.fetch(fetchUrl, /*prune=*/false, /*force=*/true,
+        ImmutableList.of("refs/heads/master"));
+    assertThat(result.getInserted()).isEmpty();
+
+    result = dest.fetch(fetchUrl, /*prune=*/false, /*force=*/true,
+        ImmutableList.of("refs/heads/master:refs/heads/master"));
+    assertThat(result.getDeleted()).isEmpty();
+    assertThat(result.getUpdated()).isEmpty();
+    assertThat(result.getInserted().keySet()).containsExactly(
+        "refs/heads/master",
+        "refs/tags/a_tag");
+  }
+
   @Test
   public void testCheckoutLocalBranch() throws Exception {
     thrown.expect(RepoException.class);
@@ -167,6 +261,45 @@ public class GitRepositoryTest {
     repository.simpleCommand("checkout", "foo");
   }
 
+  @Test
+  public void testLsTree() throws Exception {
+    Files.createDirectories(workdir.resolve("dir/sub"));
+    Files.write(workdir.resolve("foo.txt"), "foo".getBytes(UTF_8));
+    Files.write(workdir.resolve("dir/sub/bar.txt"), "bar".getBytes(UTF_8));
+    repository.add().files("foo.txt", "dir/sub/bar.txt").run();
+    repository.simpleCommand("commit", "-m", "message");
+    GitReference head = repository.resolveReference("HEAD");
+
+    assertThat(repository.lsTree(head, "foo.txt")).hasSize(1);
+    TreeElement file = Iterables.getOnlyElement(repository.lsTree(head, "dir/sub/bar.txt"));
+    assertThat(file.getType()).isEqualTo(GitObjectType.BLOB);
+    assertThat(file.getPath()).isEqualTo("dir/sub/bar.txt");
+    assertThat(file.getRef()).isEqualTo(repository.revParse("HEAD:dir/sub/bar.txt"));
+    TreeElement dir = Iterables.getOnlyElement(repository.lsTree(head, "dir/sub"));
+    assertThat(dir.getType()).isEqualTo(GitObjectType.TREE);
+    assertThat(dir.getRef()).isEqualTo(repository.revParse("HEAD:dir/sub"));
+
+    assertThat(repository.lsTree(head, "missing")).isEmpty();
+    assertThat(repository.lsTree(head, "missing/bar.txt")).isEmpty();
+    assertThat(repository.lsTree(head, "foo.txt/bar.txt")).isEmpty();
+    // Not a plain path, executes ls-tree
+    assertThat(repository.lsTree(head, "dir/sub/")).hasSize(1);
+  }
+
+  @Test
+  public void testResolveReferenceCompleteSha1() throws Exception {
+    Files.write(workdir.resolve("foo.txt"), "foo".getBytes(UTF_8));
+    repository.add().files("foo.txt").run();
+    repository.simpleCommand("commit", "-m", "message");
+    String sha1 = repository.revParse("HEAD");
+
+    assertThat(repository.resolveReference(sha1).asString()).isEqualTo(sha1);
+
+    thrown.expect(CannotResolveReferenceException.class);
+    thrown.expectMessage("Cannot find '0000000000000000000000000000000000000000' object");
+    repository.resolveReference("0000000000000000000000000000000000000000");
+  }
+
   @Test
   public void testGitBinaryResolution() throws Exception {
     assertThat(GitRepository.resolveGitBinary(ImmutableMap.<String, String>of()))
@@ -67,6 +67,8 @@ public final class SubmodulesInDestinationTest {
     options = new OptionsBuilder().setConsole(console);
     options.gitDestination.committerEmail = "commiter@email";
     options.gitDestination.committerName = "Bara Kopi";
+    options.git.repoStorage =
+        Files.createTempDirectory("SubmodulesInDestinationTest-repoStorage").toString();
     destinationFiles = new Glob(ImmutableList.of("**"));
 
     url = "file://" + repoGitDir;
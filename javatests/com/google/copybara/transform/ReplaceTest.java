@@ -28,6 +28,8 @@ import com.google.copybara.testing.FileSubjects;
 import com.google.copybara.testing.OptionsBuilder;
 import com.google.copybara.testing.SkylarkTestExecutor;
 import com.google.copybara.testing.TransformWorks;
+import com.google.copybara.util.FileUtil;
+import com.google.copybara.util.FileUtil.CopySymlinkStrategy;
 import com.google.copybara.util.console.Message.MessageType;
 import com.google.copybara.util.console.testing.TestingConsole;
 import java.io.IOException;
@@ -713,6 +715,27 @@ public final class ReplaceTest {
             + "foo\n");
   }
 
+  @Test
+  public void testReplaceManyHardLinkedFiles() throws Exception {
+    Path original = Files.createTempDirectory("original");
+    for (int i = 0; i < 2000; i++) {
+      writeFile(original.resolve("file" + i + ".txt"), "foo");
+    }
+    Path snapshot = Files.createTempDirectory("snapshot");
+    FileUtil.snapshotFilesRecursively(original, snapshot,
+        CopySymlinkStrategy.FAIL_OUTSIDE_SYMLINKS);
+
+    eval("core.replace(\n"
+        + "  before = 'foo',\n"
+        + "  after  = 'bar',\n"
+        + ")").transform(TransformWorks.of(snapshot, "testmsg", console));
+
+    for (int i = 0; i < 2000; i++) {
+      assertThatPath(snapshot).containsFile("file" + i + ".txt", "bar");
+      assertThatPath(original).containsFile("file" + i + ".txt", "foo");
+    }
+  }
+
   private Replace eval(String replace) throws ValidationException {
     return skylark.eval("r", "r = " + replace);
   }
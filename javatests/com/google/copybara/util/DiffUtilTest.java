@@ -19,6 +19,7 @@ package com.google.copybara.util;
 import static com.google.common.truth.Truth.assertThat;
 import static com.google.copybara.testing.FileSubjects.assertThatPath;
 
+import com.google.common.collect.ImmutableList;
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
@@ -72,6 +73,77 @@ public class DiffUtilTest {
     assertThat(diffContents).isEmpty();
   }
 
+  @Test
+  public void differentFiles() throws Exception {
+    writeFile(left, "same.txt", "foo");
+    writeFile(left, "b/modified.txt", "bar");
+    writeFile(left, "only_left.txt", "foo");
+    writeFile(left, "same_size.txt", "aaa");
+    writeFile(right, "same.txt", "foo");
+    writeFile(right, "b/modified.txt", "new bar");
+    writeFile(right, "c/only_right.txt", "bar");
+    writeFile(right, "same_size.txt", "aab");
+    writeFile(left, "hard_link.txt", "baz");
+    Files.createLink(right.resolve("hard_link.txt"), left.resolve("hard_link.txt"));
+
+    assertThat(DiffUtil.differentFiles(left, right, /*maxDifferences=*/ 10))
+        .containsExactly("b/modified.txt", "c/only_right.txt", "only_left.txt", "same_size.txt")
+        .inOrder();
+    assertThat(DiffUtil.differentFiles(left, right, /*maxDifferences=*/ 2))
+        .containsExactly("b/modified.txt", "c/only_right.txt")
+        .inOrder();
+  }
+
+  @Test
+  public void differentFilesInPathOrder() throws Exception {
+    writeFile(left, "a.txt", "foo");
+    writeFile(left, "a/b.txt", "foo");
+    writeFile(left, "a0.txt", "foo");
+    writeFile(left, "a-b/c.txt", "foo");
+    writeFile(right, "a/b.txt", "bar");
+    writeFile(right, "a/c.txt", "bar");
+    writeFile(right, "a-b/c.txt", "bar");
+
+    assertThat(DiffUtil.differentFiles(left, right, /*maxDifferences=*/ 10))
+        .containsExactly("a-b/c.txt", "a.txt", "a/b.txt", "a/c.txt", "a0.txt")
+        .inOrder();
+    assertThat(DiffUtil.differentFiles(left, right, /*maxDifferences=*/ 3))
+        .containsExactly("a-b/c.txt", "a.txt", "a/b.txt")
+        .inOrder();
+  }
+
+  @Test
+  public void differentFilesEmpty() throws Exception {
+    writeFile(left, "file1.txt", "foo");
+    writeFile(left, "b/file2.txt", "bar");
+    writeFile(right, "file1.txt", "foo");
+    writeFile(right, "b/file2.txt", "bar");
+    createDir(right, "empty_dir");
+
+    assertThat(DiffUtil.differentFiles(left, right, /*maxDifferences=*/ 10)).isEmpty();
+  }
+
+  @Test
+  public void diffFiles() throws Exception {
+    writeFile(left, "file1.txt", "foo");
+    writeFile(left, "file2.txt", "bar");
+    writeFile(right, "file1.txt", "new foo");
+    writeFile(right, "file2.txt", "new bar");
+
+    String diff = new String(DiffUtil.diffFiles(left, right, ImmutableList.of("file1.txt"),
+        /*verbose*/ true), StandardCharsets.UTF_8);
+
+    assertThat(diff).contains("a/left/file1.txt");
+    assertThat(diff).contains("+new foo");
+    assertThat(diff).doesNotContain("file2.txt");
+    assertThatPath(left.getParent())
+        .containsFile("left/file1.txt", "foo")
+        .containsFile("left/file2.txt", "bar")
+        .containsFile("right/file1.txt", "new foo")
+        .containsFile("right/file2.txt", "new bar")
+        .containsNoMoreFiles();
+  }
+
   @Test
   public void apply() throws Exception {
     writeFile(left, "file1.txt", "foo");
@@ -199,6 +199,40 @@ public class FileUtilTest {
     assertThat(Files.isWritable(two.resolve("absolute"))).isTrue();
   }
 
+  @Test
+  public void testSnapshotIsCopyOnWrite() throws Exception {
+    Path temp = Files.createTempDirectory("temp");
+    Path one = Files.createDirectory(temp.resolve("one"));
+    Path two = Files.createDirectory(temp.resolve("two"));
+    Files.createDirectories(one.resolve("foo"));
+    Files.write(one.resolve("foo/modified.txt"), "original".getBytes(UTF_8));
+    Files.write(one.resolve("unmodified.txt"), "unmodified".getBytes(UTF_8));
+    Path executable = Files.write(one.resolve("executable.sh"), "original".getBytes(UTF_8));
+    Files.setPosixFilePermissions(executable, ImmutableSet.of(
+        PosixFilePermission.OWNER_READ, PosixFilePermission.OWNER_WRITE,
+        PosixFilePermission.OWNER_EXECUTE));
+    Files.createSymbolicLink(one.resolve("link"), Paths.get("unmodified.txt"));
+
+    FileUtil.snapshotFilesRecursively(one, two, CopySymlinkStrategy.FAIL_OUTSIDE_SYMLINKS);
+
+    assertThat(Files.isSameFile(one.resolve("unmodified.txt"), two.resolve("unmodified.txt")))
+        .isTrue();
+    assertThat(Files.isSymbolicLink(two.resolve("link"))).isTrue();
+
+    FileUtil.writeFile(two.resolve("foo/modified.txt"), "modified".getBytes(UTF_8));
+    FileUtil.writeFile(two.resolve("executable.sh"), "modified".getBytes(UTF_8));
+
+    assertThatPath(one)
+        .containsFile("foo/modified.txt", "original")
+        .containsFile("executable.sh", "original")
+        .containsFile("unmodified.txt", "unmodified");
+    assertThatPath(two)
+        .containsFile("foo/modified.txt", "modified")
+        .containsFile("executable.sh", "modified")
+        .containsFile("unmodified.txt", "unmodified");
+    assertThat(Files.isExecutable(two.resolve("executable.sh"))).isTrue();
+  }
+
   @Test
   public void testCopyWithGlob() throws Exception {
     Path temp = Files.createTempDirectory("temp");
@@ -113,6 +113,57 @@ public class ConsoleTest {
         .containsNoMoreMessages();
   }
 
+  @Test
+  public void prefixConsole() throws Exception {
+    TestingConsole delegate = new TestingConsole();
+    Console console = new PrefixConsole("[foo] ", delegate);
+    console.error("error");
+    console.warn("warning");
+    console.info("info");
+    console.progress("progress");
+
+    delegate.assertThat()
+        .matchesNext(MessageType.ERROR, "\\[foo\\] error")
+        .matchesNext(MessageType.WARNING, "\\[foo\\] warning")
+        .matchesNext(MessageType.INFO, "\\[foo\\] info")
+        .matchesNext(MessageType.PROGRESS, "\\[foo\\] progress")
+        .containsNoMoreMessages();
+  }
+
+  @Test
+  public void threadLocalConsole() throws Exception {
+    TestingConsole defaultConsole = new TestingConsole();
+    TestingConsole fooConsole = new TestingConsole();
+    TestingConsole barConsole = new TestingConsole();
+    ThreadLocalConsole console = new ThreadLocalConsole(defaultConsole);
+
+    console.info("before");
+    try (ThreadLocalConsole.Scope ignored = console.enter(fooConsole)) {
+      console.info("foo");
+      Thread thread = new Thread(() -> {
+        try (ThreadLocalConsole.Scope ignored2 = console.enter(barConsole)) {
+          console.info("bar");
+        }
+        console.info("inherited");
+      });
+      thread.start();
+      thread.join();
+    }
+    console.info("after");
+
+    defaultConsole.assertThat()
+        .matchesNext(MessageType.INFO, "before")
+        .matchesNext(MessageType.INFO, "after")
+        .containsNoMoreMessages();
+    fooConsole.assertThat()
+        .matchesNext(MessageType.INFO, "foo")
+        .matchesNext(MessageType.INFO, "inherited")
+        .containsNoMoreMessages();
+    barConsole.assertThat()
+        .matchesNext(MessageType.INFO, "bar")
+        .containsNoMoreMessages();
+  }
+
   @Test
   public void captureAllConsole() throws Exception {
     TestingConsole delegate = new TestingConsole()